@@ -30,10 +30,12 @@ import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
 import org.openstreetmap.josm.plugins.mapwithai.backend.DownloadListener;
 import org.openstreetmap.josm.plugins.mapwithai.backend.MapWithAIAction;
+import org.openstreetmap.josm.plugins.mapwithai.backend.MapWithAIDownloadScheduler;
 import org.openstreetmap.josm.plugins.mapwithai.backend.MapWithAILayer;
 import org.openstreetmap.josm.plugins.mapwithai.backend.MapWithAIMoveAction;
 import org.openstreetmap.josm.plugins.mapwithai.backend.MapWithAIObject;
 import org.openstreetmap.josm.plugins.mapwithai.backend.MapWithAIRemoteControl;
+import org.openstreetmap.josm.plugins.mapwithai.backend.MapWithAIRetryScheduler;
 import org.openstreetmap.josm.plugins.mapwithai.backend.MapWithAIUploadHook;
 import org.openstreetmap.josm.plugins.mapwithai.backend.MergeDuplicateWaysAction;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAILayerInfo;
@@ -193,5 +195,7 @@ public final class MapWithAIPlugin extends Plugin implements Destroyable {
         OSMDownloadSource.removeDownloadType(OSMDownloadSource.getDownloadType(MapWithAIDownloadSourceType.class));
         VALIDATORS.forEach(OsmValidator::removeTest);
         DownloadListener.destroyAll();
+        MapWithAIDownloadScheduler.shutdown();
+        MapWithAIRetryScheduler.shutdown();
     }
 }
@@ -9,6 +9,8 @@ import java.net.SocketTimeoutException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -17,10 +19,10 @@ import java.util.stream.Collectors;
 import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.DataSource;
 import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.Notification;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
-import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.io.BoundingBoxDownloader;
@@ -33,6 +35,7 @@ import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIConflationCategory;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIType;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.PreConflatedDataUtils;
 import org.openstreetmap.josm.plugins.mapwithai.tools.MapPaintUtils;
 import org.openstreetmap.josm.tools.HttpClient;
 import org.openstreetmap.josm.tools.Logging;
@@ -46,11 +49,13 @@ public class BoundingBoxMapWithAIDownloader extends BoundingBoxDownloader {
     private final String url;
     private final boolean crop;
 
-    private static long lastErrorTime;
-
     private final Bounds downloadArea;
+    private final MapWithAITile tile;
     private final MapWithAIInfo info;
     private DataConflationSender dcs;
+    private ServerIdIndex serverIdIndex;
+    /** {@code true} if the download failed, and will be retried in the background */
+    private volatile boolean retryPending;
 
     private static final int DEFAULT_TIMEOUT = 50_000; // 50 seconds
 
@@ -62,11 +67,29 @@ public class BoundingBoxMapWithAIDownloader extends BoundingBoxDownloader {
      * @param crop         Whether or not to crop the download area
      */
     public BoundingBoxMapWithAIDownloader(Bounds downloadArea, MapWithAIInfo info, boolean crop) {
+        this(downloadArea, null, info, crop);
+    }
+
+    /**
+     * Create a new {@link BoundingBoxMapWithAIDownloader} object for a tile. The
+     * result is cached, and cached results are used when available.
+     *
+     * @param tile The tile to download
+     * @param info The info to use to get the url to download
+     * @param crop Whether or not to crop the download area
+     */
+    public BoundingBoxMapWithAIDownloader(MapWithAITile tile, MapWithAIInfo info, boolean crop) {
+        this(tile.getBounds(), tile, info, crop);
+    }
+
+    private BoundingBoxMapWithAIDownloader(Bounds downloadArea, MapWithAITile tile, MapWithAIInfo info,
+            boolean crop) {
         super(downloadArea);
         this.info = info;
         this.url = info.getUrlExpanded();
         this.crop = crop;
         this.downloadArea = downloadArea;
+        this.tile = tile;
     }
 
     @Override
@@ -74,44 +97,200 @@ public class BoundingBoxMapWithAIDownloader extends BoundingBoxDownloader {
         return url.replace("{bbox}", Double.toString(lon1) + ',' + lat1 + ',' + lon2 + ',' + lat2)
                 .replace("{xmin}", Double.toString(lon1)).replace("{ymin}", Double.toString(lat1))
                 .replace("{xmax}", Double.toString(lon2)).replace("{ymax}", Double.toString(lat2))
-                + (crop ? "&crop_bbox=" + DetectTaskingManagerUtils.getTaskingManagerBounds().toBBox().toStringCSV(",")
-                        : "");
+                + (crop ? "&crop_bbox=" + getCropBBox() : "");
+    }
+
+    private static String getCropBBox() {
+        return DetectTaskingManagerUtils.getTaskingManagerBounds().toBBox().toStringCSV(",");
+    }
+
+    /**
+     * Get the tile this downloader is getting data for
+     *
+     * @return The tile, or {@code null} if this downloader is not downloading a
+     *         tile
+     */
+    public MapWithAITile getTile() {
+        return tile;
+    }
+
+    /**
+     * Get a key that identifies the data this downloader will get
+     *
+     * @return A key for the source and area of this download
+     */
+    String getDownloadKey() {
+        return String.join("|", MapWithAIDownloadScheduler.getSourceKey(info), String.valueOf(url),
+                tile != null ? tile.toString() : downloadArea.encodeAsString(","), Boolean.toString(crop));
+    }
+
+    /**
+     * Get the area this downloader is getting data for
+     *
+     * @return The download area
+     */
+    public Bounds getDownloadArea() {
+        return downloadArea;
+    }
+
+    /**
+     * Create a new downloader for the same data, for retrying a download
+     *
+     * @return A new downloader for the same source and area
+     */
+    BoundingBoxMapWithAIDownloader copy() {
+        return new BoundingBoxMapWithAIDownloader(downloadArea, tile, info, crop).setServerIdIndex(serverIdIndex);
+    }
+
+    /**
+     * Set the index to use to drop features that have already been downloaded
+     * (e.g., for an overlapping tile)
+     *
+     * @param serverIdIndex The index for the download this is part of. May be
+     *                      {@code null}.
+     * @return This downloader, for easy chaining
+     */
+    public BoundingBoxMapWithAIDownloader setServerIdIndex(ServerIdIndex serverIdIndex) {
+        this.serverIdIndex = serverIdIndex;
+        return this;
+    }
+
+    /**
+     * Check if the download failed, and will be retried in the background. The
+     * data returned by the download is empty in that case, and the area should
+     * not be considered to be downloaded until the retry succeeds (see
+     * {@link MapWithAIRetryScheduler}).
+     *
+     * @return {@code true} if the last download will be retried
+     */
+    public boolean isRetryPending() {
+        return retryPending;
+    }
+
+    /**
+     * Get the source this downloader is getting data from
+     *
+     * @return The source information
+     */
+    public MapWithAIInfo getInfo() {
+        return info;
     }
 
     @Override
     public DataSet parseOsm(ProgressMonitor progressMonitor) throws OsmTransferException {
+        return process(fetch(progressMonitor));
+    }
+
+    /**
+     * Get the cleaned up data from the tile cache or the server. This does not
+     * depend upon the caller (see {@link #getDownloadKey()}), so the result may
+     * be shared by several downloads of the same area. Each caller should use
+     * {@link #process(DataSet)} on its own copy of the result.
+     *
+     * @param progressMonitor The monitor to update
+     * @return The data, or {@code null} if the download will be retried in the
+     *         background
+     * @throws OsmTransferException If the download failed, and will not be
+     *                              retried
+     */
+    DataSet fetch(ProgressMonitor progressMonitor) throws OsmTransferException {
+        final DataSet cached = tile != null ? getCachedTile(progressMonitor) : null;
+        return cached != null ? cached : download(progressMonitor);
+    }
+
+    /**
+     * Perform the steps that depend upon the caller: remove the features that the
+     * caller has already seen (see {@link #setServerIdIndex(ServerIdIndex)}), and
+     * conflate the data with the current OSM data.
+     *
+     * @param externalData The data from {@link #fetch(ProgressMonitor)}, which
+     *                     is modified. May be {@code null}.
+     * @return The data for the caller
+     */
+    DataSet process(DataSet externalData) {
+        retryPending = externalData == null;
+        if (externalData == null) {
+            // The data will be merged into the layer when the retry finishes
+            DataSet ds = new DataSet();
+            MapPaintUtils.addSourcesToPaintStyle(ds);
+            return ds;
+        }
+        // This is after the data is cached, since the duplicates depend upon the other tiles.
+        // It is before the conflation, so that duplicates are not sent to the conflation server.
+        final Map<OsmPrimitive, String> serverIds = ServerIdIndex.takeServerIds(externalData);
+        if (serverIdIndex != null) {
+            serverIdIndex.removeDuplicates(externalData, info, serverIds);
+        }
+        // The conflation depends upon the current OSM data, so it is done every time instead of being cached
+        final DataSet conflated = conflate(externalData);
+        MapPaintUtils.addSourcesToPaintStyle(conflated);
+        return conflated;
+    }
+
+    /**
+     * Get the tile from the tile cache
+     *
+     * @param progressMonitor The monitor to update
+     * @return The cached (unconflated) data, or {@code null} if the tile is not
+     *         cached
+     */
+    private DataSet getCachedTile(ProgressMonitor progressMonitor) {
+        DataSet cached = MapWithAITileCache.get(info, tile, crop ? getCropBBox() : null);
+        if (cached != null) {
+            progressMonitor.beginTask(getTaskName());
+            try {
+                PreConflatedDataUtils.hideConflatedData(cached);
+            } finally {
+                progressMonitor.finishTask();
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Download the data from the server. Tiles are cached before they are
+     * conflated.
+     *
+     * @param progressMonitor The monitor to update
+     * @return The downloaded data, or {@code null} if the download will be
+     *         retried in the background
+     * @throws OsmTransferException If the download failed, and will not be
+     *                              retried
+     */
+    private DataSet download(ProgressMonitor progressMonitor) throws OsmTransferException {
         long startTime = System.nanoTime();
+        final MapWithAIRetryScheduler retryScheduler = MapWithAIRetryScheduler.getInstance();
         try {
             DataSet externalData = super.parseOsm(progressMonitor);
-            if (!this.info.isConflated()
-                    && !MapWithAIConflationCategory.conflationUrlFor(this.info.getCategory()).isEmpty()) {
-                if (externalData.getDataSourceBounds().isEmpty()) {
-                    externalData.addDataSource(new DataSource(this.downloadArea, "External Data"));
-                }
-                DataSet toConflate = getConflationData(this.downloadArea);
-                dcs = new DataConflationSender(this.info.getCategory(), toConflate, externalData);
-                dcs.run();
-                try {
-                    DataSet conflatedData = dcs.get(30, TimeUnit.SECONDS);
-                    if (conflatedData != null) {
-                        externalData = conflatedData;
-                    }
-                } catch (InterruptedException e) {
-                    Logging.error(e);
-                    Thread.currentThread().interrupt();
-                } catch (ExecutionException | TimeoutException e) {
-                    Logging.error(e);
-                }
+            retryScheduler.recordSuccess(this);
+            if (tile != null) {
+                MapWithAITileSizeController.getInstance().recordSuccess(info, tile.getZoom(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+                        externalData.allPrimitives().size());
+            }
+            if (tile != null && !externalData.getDataSources().isEmpty()) {
+                MapWithAITileCache.put(info, tile, crop ? getCropBBox() : null, externalData);
             }
-            MapPaintUtils.addSourcesToPaintStyle(externalData);
             return externalData;
         } catch (OsmApiException e) {
-            if (!(e.getResponseCode() == 504 && (System.nanoTime() - lastErrorTime) < 120_000_000_000L)) {
+            if (e.getResponseCode() == 504) {
+                MapWithAITileSizeController.getInstance().recordFailure(info);
+            }
+            // Only retry in the background if the server has been having issues
+            final boolean recentFailure = retryScheduler.hasFailedRecently(info, 2, TimeUnit.MINUTES);
+            if (e.getResponseCode() >= 500) {
+                retryScheduler.recordFailure(info);
+            }
+            if (!(e.getResponseCode() == 504 && recentFailure && retryScheduler.retry(this))) {
                 throw e;
             }
         } catch (OsmTransferException e) {
-            if (e.getCause() instanceof SocketTimeoutException && (System.nanoTime() - startTime) > 30_000_000_000L) {
-                updateLastErrorTime(System.nanoTime());
+            if (e.getCause() instanceof SocketTimeoutException) {
+                MapWithAITileSizeController.getInstance().recordFailure(info);
+                retryScheduler.recordFailure(info);
+            }
+            if (e.getCause() instanceof SocketTimeoutException && (System.nanoTime() - startTime) > 30_000_000_000L
+                    && retryScheduler.retry(this)) {
                 Notification note = new Notification();
                 GuiHelper.runInEDT(() -> note.setContent(tr(
                         "Attempting to download data in the background. This may fail or succeed in a few minutes.")));
@@ -120,23 +299,49 @@ public class BoundingBoxMapWithAIDownloader extends BoundingBoxDownloader {
                 throw e;
             }
         }
-        // Just in case something happens, try again...
-        DataSet ds = new DataSet();
-        GetDataRunnable runnable = new GetDataRunnable(downloadArea, ds, NullProgressMonitor.INSTANCE);
-        runnable.setMapWithAIInfo(info);
-        MainApplication.worker.execute(() -> {
+        return null;
+    }
+
+    /**
+     * Conflate downloaded data with the current OSM data
+     *
+     * @param externalData The downloaded data
+     * @return The conflated data (may be {@code externalData})
+     */
+    private DataSet conflate(DataSet externalData) {
+        if (this.info.isConflated() || externalData.allNonDeletedPrimitives().isEmpty()) {
+            return externalData;
+        }
+        if (!MapWithAIConflationCategory.conflationUrlFor(this.info.getCategory()).isEmpty()) {
+            if (externalData.getDataSourceBounds().isEmpty()) {
+                externalData.addDataSource(new DataSource(this.downloadArea, "External Data"));
+            }
+            DataSet toConflate = getConflationData(this.downloadArea);
+            dcs = new DataConflationSender(this.info.getCategory(),
+                    toConflate == null ? null : ConflationContextExtractor.getContext(toConflate, this.downloadArea),
+                    externalData);
+            dcs.start();
             try {
-                // It seems that the server has issues if I make a request soon
-                // after the failing request due to a timeout.
-                TimeUnit.SECONDS.sleep(10);
-            } catch (InterruptedException e1) {
+                DataSet conflatedData = dcs.get(30, TimeUnit.SECONDS);
+                if (conflatedData != null) {
+                    if (conflatedData.getDataSources().isEmpty()) {
+                        externalData.getDataSources().forEach(conflatedData::addDataSource);
+                    }
+                    return conflatedData;
+                }
+            } catch (InterruptedException e) {
+                Logging.error(e);
                 Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                Logging.error(e);
+            } catch (CancellationException e) {
+                // The unconflated data is used instead
+                Logging.trace(e);
             }
-            runnable.compute();
-        });
-
-        MapPaintUtils.addSourcesToPaintStyle(ds);
-        return ds;
+        } else if (LocalConflation.isEnabled()) {
+            LocalConflation.conflate(externalData, getConflationData(this.downloadArea));
+        }
+        return externalData;
     }
 
     /**
@@ -154,20 +359,18 @@ public class BoundingBoxMapWithAIDownloader extends BoundingBoxDownloader {
                 .map(OsmDataLayer::getDataSet).orElse(null);
     }
 
-    private static void updateLastErrorTime(long time) {
-        lastErrorTime = time;
-    }
-
     @Override
     protected DataSet parseDataSet(InputStream source, ProgressMonitor progressMonitor) throws IllegalDataException {
         DataSet ds;
+        // The tags are all cleaned up in a single pass
+        final TagCleanupRules tagRules = GetDataRunnable.getDefaultTagCleanupRules();
         String contentType = this.activeConnection.getResponse().getHeaderField("Content-Type");
         if (contentType.contains("text/xml")) {
             ds = OsmReader.parseDataSet(source, progressMonitor, OsmReader.Options.SAVE_ORIGINAL_ID);
         } else if (MapWithAIType.ESRI_FEATURE_SERVER == this.info.getSourceType()) {
             ds = GeoJSONReader.parseDataSet(source, progressMonitor);
             if (info.getReplacementTags() != null) {
-                GetDataRunnable.replaceKeys(ds, info.getReplacementTags());
+                tagRules.renameKeys(info.getReplacementTags());
             }
         } else {
             // Fall back to XML parsing
@@ -176,12 +379,16 @@ public class BoundingBoxMapWithAIDownloader extends BoundingBoxDownloader {
         }
         if (url != null && info.getUrl() != null && !info.getUrl().trim().isEmpty()) {
             if (info.getSource() != null) {
-                GetDataRunnable.addSourceTag(ds, info.getSource());
+                tagRules.addSource(GetDataRunnable.SOURCE_TAG_KEY, info.getSource());
             } else {
-                GetDataRunnable.addMapWithAISourceTag(ds, getMapWithAISourceTag(info));
+                tagRules.addSource(GetDataRunnable.MAPWITHAI_SOURCE_TAG_KEY, getMapWithAISourceTag(info));
             }
         }
-        GetDataRunnable.cleanup(ds, downloadArea, info);
+        // The server ids are removed by the cleanup, but they are needed (after the tile is cached) to remove
+        // features that are in more than one tile
+        final Map<OsmPrimitive, String> serverIds = ServerIdIndex.getServerIds(ds);
+        GetDataRunnable.cleanup(ds, downloadArea, info, tagRules);
+        ServerIdIndex.keepServerIds(serverIds);
         return ds;
     }
 
@@ -0,0 +1,165 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+
+/**
+ * The data that a {@link CleanupStage} works on. This is either a whole
+ * dataset, or the primitives in (a buffer around) some regions of a dataset.
+ * The primitives are looked up each time, since the stages modify the dataset.
+ */
+public final class CleanupContext {
+    /** The buffer around the regions (degrees) */
+    private static final double DEGREE_BUFFER = 0.001;
+
+    private final DataSet dataSet;
+    private final Bounds bounds;
+    private final MapWithAIInfo info;
+    private final TagCleanupRules tagRules;
+    /** The buffered regions, or {@code null} for the whole dataset */
+    private final List<BBox> regions;
+
+    /**
+     * Create a new context
+     *
+     * @param dataSet  The dataset to clean up
+     * @param bounds   The bounds of the new data
+     * @param regions  The regions to clean up, or {@code null} for the whole
+     *                 dataset
+     * @param info     The source of the data. May be {@code null}.
+     * @param tagRules The tag cleanup rules to use
+     */
+    CleanupContext(DataSet dataSet, Bounds bounds, Collection<BBox> regions, MapWithAIInfo info,
+            TagCleanupRules tagRules) {
+        this.dataSet = dataSet;
+        this.bounds = bounds;
+        this.info = info;
+        this.tagRules = tagRules;
+        this.regions = regions == null ? null
+                : regions.stream().filter(BBox::isValid)
+                        .map(bbox -> new BBox(bbox.getTopLeftLon() - DEGREE_BUFFER,
+                                bbox.getBottomRightLat() - DEGREE_BUFFER, bbox.getBottomRightLon() + DEGREE_BUFFER,
+                                bbox.getTopLeftLat() + DEGREE_BUFFER))
+                        .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the dataset to clean up
+     *
+     * @return The dataset
+     */
+    public DataSet getDataSet() {
+        return dataSet;
+    }
+
+    /**
+     * Get the bounds of the new data
+     *
+     * @return The bounds
+     */
+    public Bounds getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Get the source of the data
+     *
+     * @return The source. May be {@code null}.
+     */
+    public MapWithAIInfo getInfo() {
+        return info;
+    }
+
+    /**
+     * Get the tag cleanup rules
+     *
+     * @return The rules to apply to the tags of the primitives
+     */
+    public TagCleanupRules getTagCleanupRules() {
+        return tagRules;
+    }
+
+    /**
+     * Check if the whole dataset is being cleaned up
+     *
+     * @return {@code true} if the context is the whole dataset
+     */
+    public boolean isComplete() {
+        return regions == null;
+    }
+
+    /**
+     * Get the ways to clean up
+     *
+     * @return The ways in the context
+     */
+    public Collection<Way> getWays() {
+        if (isComplete()) {
+            return dataSet.getWays();
+        }
+        final Set<Way> ways = new LinkedHashSet<>();
+        regions.forEach(region -> ways.addAll(dataSet.searchWays(region)));
+        return ways;
+    }
+
+    /**
+     * Get the ways and the ways connected to them, so that ways that share nodes
+     * with the ways in the regions are found
+     *
+     * @return The ways, and the ways connected to them
+     */
+    public Collection<Way> getConnectedWays() {
+        if (isComplete()) {
+            return dataSet.getWays();
+        }
+        final Set<Way> ways = new LinkedHashSet<>(getWays());
+        for (Way way : new ArrayList<>(ways)) {
+            way.getNodes().forEach(node -> node.getReferrers().stream().filter(Way.class::isInstance)
+                    .map(Way.class::cast).forEach(ways::add));
+        }
+        return ways;
+    }
+
+    /**
+     * Get the nodes to clean up
+     *
+     * @return The nodes in the context, including the nodes of its ways
+     */
+    public Collection<Node> getNodes() {
+        if (isComplete()) {
+            return dataSet.getNodes();
+        }
+        final Set<Node> nodes = new LinkedHashSet<>();
+        regions.forEach(region -> nodes.addAll(dataSet.searchNodes(region)));
+        getWays().forEach(way -> nodes.addAll(way.getNodes()));
+        return nodes;
+    }
+
+    /**
+     * Get all of the primitives to clean up
+     *
+     * @return The (non-deleted) primitives in the context
+     */
+    public Collection<OsmPrimitive> getPrimitives() {
+        if (isComplete()) {
+            return dataSet.allNonDeletedPrimitives();
+        }
+        final Set<OsmPrimitive> primitives = new LinkedHashSet<>(getNodes());
+        primitives.addAll(getWays());
+        regions.forEach(region -> primitives.addAll(dataSet.searchRelations(region)));
+        return primitives;
+    }
+}
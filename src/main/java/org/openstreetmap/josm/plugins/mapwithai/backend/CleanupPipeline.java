@@ -0,0 +1,184 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openstreetmap.josm.data.preferences.ListProperty;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * The registry of {@link CleanupStage}s that are run on downloaded data, in
+ * order. The time taken by each stage, and the number of primitives it
+ * processed, are recorded (see {@link #getStatistics()}).
+ * <p>
+ * Stages can be disabled with the {@code MapWithAI.cleanup.disabled}
+ * preference. Each entry is either a stage name (disabled for all sources) or
+ * {@code source id:stage name} (disabled for one source).
+ */
+public final class CleanupPipeline {
+    /** The stages that should not be run */
+    private static final ListProperty DISABLED_STAGES = new ListProperty(
+            MapWithAIPlugin.NAME.concat(".cleanup.disabled"), Collections.emptyList());
+
+    private static final List<CleanupStage> STAGES = new CopyOnWriteArrayList<>(
+            DefaultCleanupStages.getDefaultStages());
+    private static final Map<String, Statistics> STATISTICS = new ConcurrentHashMap<>();
+
+    private CleanupPipeline() {
+        // Hide the constructor
+    }
+
+    /**
+     * Run all of the enabled stages
+     *
+     * @param context The data to clean up
+     */
+    public static void run(CleanupContext context) {
+        for (CleanupStage stage : STAGES) {
+            if (isEnabled(stage, context.getInfo())) {
+                run(stage, context);
+            }
+        }
+    }
+
+    /**
+     * Run a stage, and record how long it took
+     *
+     * @param stage   The stage to run
+     * @param context The data to clean up
+     */
+    static void run(CleanupStage stage, CleanupContext context) {
+        final long start = System.nanoTime();
+        final int processed = stage.run(context);
+        final long time = System.nanoTime() - start;
+        STATISTICS.computeIfAbsent(stage.getName(), name -> new Statistics()).record(time, processed);
+        Logging.trace("{0}: cleanup stage {1} took {2} ms for {3} primitives", MapWithAIPlugin.NAME,
+                stage.getName(), TimeUnit.NANOSECONDS.toMillis(time), processed);
+    }
+
+    /**
+     * Check if a stage should be run for a source
+     *
+     * @param stage The stage
+     * @param info  The source. May be {@code null}.
+     * @return {@code true} if the stage is enabled for the source, and has not
+     *         been disabled by the user
+     */
+    public static boolean isEnabled(CleanupStage stage, MapWithAIInfo info) {
+        final List<String> disabled = DISABLED_STAGES.get();
+        if (disabled.contains(stage.getName())
+                || (info != null && disabled.contains(info.getId() + ':' + stage.getName()))) {
+            return false;
+        }
+        return stage.isEnabled(info);
+    }
+
+    /**
+     * Add a stage to the end of the pipeline
+     *
+     * @param stage The stage to add
+     */
+    public static void addStage(CleanupStage stage) {
+        addStage(STAGES.size(), stage);
+    }
+
+    /**
+     * Add a stage to the pipeline. If a stage with the same name is already in
+     * the pipeline, it is replaced.
+     *
+     * @param index The position to add the stage at
+     * @param stage The stage to add
+     */
+    public static synchronized void addStage(int index, CleanupStage stage) {
+        removeStage(stage.getName());
+        STAGES.add(Math.max(0, Math.min(index, STAGES.size())), stage);
+    }
+
+    /**
+     * Remove a stage from the pipeline
+     *
+     * @param name The name of the stage to remove
+     * @return {@code true} if the stage was removed
+     */
+    public static synchronized boolean removeStage(String name) {
+        return STAGES.removeIf(stage -> stage.getName().equals(name));
+    }
+
+    /**
+     * Get the stages, in the order that they are run
+     *
+     * @return The stages in the pipeline
+     */
+    public static List<CleanupStage> getStages() {
+        return Collections.unmodifiableList(STAGES);
+    }
+
+    /**
+     * Reset the pipeline to the default stages, and clear the statistics
+     */
+    public static synchronized void reset() {
+        STAGES.clear();
+        STAGES.addAll(DefaultCleanupStages.getDefaultStages());
+        STATISTICS.clear();
+    }
+
+    /**
+     * Get the statistics for the stages that have been run
+     *
+     * @return The statistics, by stage name
+     */
+    public static Map<String, Statistics> getStatistics() {
+        return Collections.unmodifiableMap(new TreeMap<>(STATISTICS));
+    }
+
+    /**
+     * The statistics for a stage
+     */
+    public static final class Statistics {
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong time = new AtomicLong();
+        private final AtomicLong processed = new AtomicLong();
+
+        void record(long nanoseconds, int primitives) {
+            runs.incrementAndGet();
+            time.addAndGet(nanoseconds);
+            processed.addAndGet(primitives);
+        }
+
+        /**
+         * Get the number of times the stage was run
+         *
+         * @return The number of runs
+         */
+        public long getRuns() {
+            return runs.get();
+        }
+
+        /**
+         * Get the total time the stage took
+         *
+         * @return The wall time, in nanoseconds
+         */
+        public long getTime() {
+            return time.get();
+        }
+
+        /**
+         * Get the total number of primitives that the stage processed
+         *
+         * @return The number of primitives
+         */
+        public long getProcessed() {
+            return processed.get();
+        }
+    }
+}
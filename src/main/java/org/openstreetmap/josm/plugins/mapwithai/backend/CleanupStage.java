@@ -0,0 +1,64 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.Collection;
+
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+
+/**
+ * A stage of the cleanup of downloaded data. Stages are registered with
+ * {@link CleanupPipeline}, and are run in order.
+ */
+public interface CleanupStage {
+    /**
+     * Get the name of the stage. This is used to disable the stage, and for
+     * statistics.
+     *
+     * @return The unique name of the stage
+     */
+    String getName();
+
+    /**
+     * Get the types of primitives that the stage reads
+     *
+     * @return The primitive types
+     */
+    Collection<Class<? extends OsmPrimitive>> getReadTypes();
+
+    /**
+     * Get the types of primitives that the stage may modify (or delete)
+     *
+     * @return The primitive types
+     */
+    Collection<Class<? extends OsmPrimitive>> getWriteTypes();
+
+    /**
+     * Check if the stage may be run on different parts of a dataset at the same
+     * time
+     *
+     * @return {@code true} if the stage only reads and modifies the primitives in
+     *         its context
+     */
+    default boolean isParallelSafe() {
+        return false;
+    }
+
+    /**
+     * Check if the stage should be run for a source
+     *
+     * @param info The source of the data. May be {@code null}.
+     * @return {@code true} if the stage should be run
+     */
+    default boolean isEnabled(MapWithAIInfo info) {
+        return true;
+    }
+
+    /**
+     * Run the stage
+     *
+     * @param context The data to clean up
+     * @return The number of primitives that the stage processed
+     */
+    int run(CleanupContext context);
+}
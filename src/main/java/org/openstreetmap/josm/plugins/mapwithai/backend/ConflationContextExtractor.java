@@ -0,0 +1,200 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
+import org.openstreetmap.josm.data.preferences.DoubleProperty;
+import org.openstreetmap.josm.io.OsmWriter;
+import org.openstreetmap.josm.io.OsmWriterFactory;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Extract the OSM data around a download area, for sending to a conflation
+ * server. Only the primitives in the area (plus a buffer) are sent, but ways
+ * are always complete. The serialized context is cached until the OSM data
+ * changes.
+ */
+public final class ConflationContextExtractor {
+    /** The buffer around the download area to include (meters) */
+    private static final DoubleProperty BUFFER = new DoubleProperty(
+            MapWithAIPlugin.NAME.concat(".conflation.buffer"), 100);
+    /** The approximate number of meters in a degree of latitude */
+    private static final double METERS_PER_DEGREE = 111_320;
+    /** The maximum number of serialized contexts to keep per dataset */
+    private static final int MAX_CACHED_CONTEXTS = 32;
+
+    private static final Map<DataSet, ContextCache> CACHE = new WeakHashMap<>();
+
+    private ConflationContextExtractor() {
+        // Hide the constructor
+    }
+
+    /**
+     * Get the serialized OSM context for a download area
+     *
+     * @param dataSet The OSM data
+     * @param bounds  The download area
+     * @return The OSM XML for the primitives around the download area
+     */
+    public static byte[] getContext(DataSet dataSet, Bounds bounds) {
+        return getContext(dataSet, bounds, BUFFER.get());
+    }
+
+    /**
+     * Get the serialized OSM context for a download area
+     *
+     * @param dataSet The OSM data
+     * @param bounds  The download area
+     * @param buffer  The buffer around the download area (meters)
+     * @return The OSM XML for the primitives around the download area
+     */
+    public static byte[] getContext(DataSet dataSet, Bounds bounds, double buffer) {
+        final ContextCache cache;
+        synchronized (CACHE) {
+            cache = CACHE.computeIfAbsent(dataSet, ContextCache::new);
+        }
+        final String key = bounds.encodeAsString(",") + ',' + buffer;
+        final long version = cache.version.get();
+        byte[] context = cache.get(key, version);
+        if (context == null) {
+            context = serialize(dataSet, getPrimitives(dataSet, bounds, buffer));
+            cache.put(key, version, context);
+        }
+        return context;
+    }
+
+    /**
+     * Get the version of a dataset. The version changes whenever the dataset is
+     * modified, after it has been used with this class.
+     *
+     * @param dataSet The dataset
+     * @return The current version of the dataset
+     */
+    public static long getVersion(DataSet dataSet) {
+        synchronized (CACHE) {
+            return CACHE.computeIfAbsent(dataSet, ContextCache::new).version.get();
+        }
+    }
+
+    /**
+     * Get the primitives around a download area
+     *
+     * @param dataSet The OSM data
+     * @param bounds  The download area
+     * @param buffer  The buffer around the download area (meters)
+     * @return The primitives to send, including all nodes of the ways
+     */
+    static Set<OsmPrimitive> getPrimitives(DataSet dataSet, Bounds bounds, double buffer) {
+        final BBox bbox = getBufferedBBox(bounds, buffer);
+        final Set<OsmPrimitive> primitives = new TreeSet<>();
+        dataSet.getReadLock().lock();
+        try {
+            dataSet.searchNodes(bbox).stream().filter(ConflationContextExtractor::isUsable).forEach(primitives::add);
+            dataSet.searchWays(bbox).stream().filter(ConflationContextExtractor::isUsable)
+                    .forEach(way -> addWay(primitives, way));
+            for (Relation relation : dataSet.searchRelations(bbox)) {
+                if (isUsable(relation)) {
+                    primitives.add(relation);
+                    for (RelationMember member : relation.getMembers()) {
+                        if (member.isWay() && isUsable(member.getWay())) {
+                            addWay(primitives, member.getWay());
+                        } else if (member.isNode() && isUsable(member.getNode())) {
+                            primitives.add(member.getNode());
+                        }
+                    }
+                }
+            }
+        } finally {
+            dataSet.getReadLock().unlock();
+        }
+        return primitives;
+    }
+
+    private static void addWay(Collection<OsmPrimitive> primitives, Way way) {
+        primitives.add(way);
+        primitives.addAll(way.getNodes());
+    }
+
+    private static boolean isUsable(OsmPrimitive primitive) {
+        return !primitive.isDeleted() && !primitive.isIncomplete();
+    }
+
+    private static BBox getBufferedBBox(Bounds bounds, double buffer) {
+        final double latBuffer = buffer / METERS_PER_DEGREE;
+        final double maxAbsLat = Math.min(89, Math.max(Math.abs(bounds.getMinLat()), Math.abs(bounds.getMaxLat())));
+        final double lonBuffer = buffer / (METERS_PER_DEGREE * Math.cos(Math.toRadians(maxAbsLat)));
+        return new BBox(bounds.getMinLon() - lonBuffer, bounds.getMinLat() - latBuffer,
+                bounds.getMaxLon() + lonBuffer, bounds.getMaxLat() + latBuffer);
+    }
+
+    private static byte[] serialize(DataSet dataSet, Set<OsmPrimitive> primitives) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (PrintWriter printWriter = new PrintWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                OsmWriter writer = OsmWriterFactory.createOsmWriter(printWriter, true, "0.6")) {
+            writer.header(dataSet.getDownloadPolicy(), dataSet.getUploadPolicy());
+            writer.writeNodes(Utils.filteredCollection(primitives, Node.class));
+            writer.writeWays(Utils.filteredCollection(primitives, Way.class));
+            writer.writeRelations(Utils.filteredCollection(primitives, Relation.class));
+            writer.footer();
+        } catch (IOException e) {
+            Logging.error(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * The cached contexts for a single dataset
+     */
+    private static class ContextCache {
+        final AtomicLong version = new AtomicLong();
+        private final Map<String, byte[]> contexts = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = -3537542946306524924L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > MAX_CACHED_CONTEXTS;
+            }
+        };
+        private long contextVersion;
+
+        ContextCache(DataSet dataSet) {
+            dataSet.addDataSetListener(new DataSetListenerAdapter(event -> version.incrementAndGet()));
+        }
+
+        synchronized byte[] get(String key, long currentVersion) {
+            if (currentVersion != contextVersion) {
+                contexts.clear();
+                contextVersion = currentVersion;
+            }
+            return contexts.get(key);
+        }
+
+        synchronized void put(String key, long currentVersion, byte[] context) {
+            if (currentVersion == contextVersion) {
+                contexts.put(key, context);
+            }
+        }
+    }
+}
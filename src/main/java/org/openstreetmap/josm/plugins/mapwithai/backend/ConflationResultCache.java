@@ -0,0 +1,274 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openstreetmap.josm.data.cache.JCSCacheManager;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.preferences.LongProperty;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.IllegalDataException;
+import org.openstreetmap.josm.io.OsmReader;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.JosmRuntimeException;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+import org.apache.commons.jcs3.access.CacheAccess;
+import org.apache.commons.jcs3.engine.behavior.IElementAttributes;
+
+/**
+ * An on-disk cache of conflation server responses. Responses are keyed by a
+ * hash of the conflation url, the OSM context, and the contents of the
+ * external data, so identical requests are only sent once. The external data is
+ * hashed by content (not by id), since downloaded primitives get new ids every
+ * time they are parsed.
+ */
+public final class ConflationResultCache {
+    /** The maximum age of a cached response (seconds) */
+    private static final LongProperty MAX_AGE = new LongProperty(
+            MapWithAIPlugin.NAME.concat(".conflation.cache.maxage"), TimeUnit.DAYS.toSeconds(1));
+    /** The cache storing gzipped OSM XML for each response (least recently used responses are evicted) */
+    private static final CacheAccess<String, byte[]> RESULT_CACHE = JCSCacheManager.getCache("mapwithai:conflation",
+            10, 10_000, new File(Config.getDirs().getCacheDirectory(true), "mapwithai").getPath());
+
+    private ConflationResultCache() {
+        // Hide the constructor
+    }
+
+    /**
+     * Get a cached conflation response
+     *
+     * @param key The key from {@link #getKey}
+     * @return The conflated data, or {@code null} if the response is missing or
+     *         expired
+     */
+    public static DataSet get(String key) {
+        final byte[] data = RESULT_CACHE.get(key);
+        if (data != null) {
+            try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(data))) {
+                return OsmReader.parseDataSet(inputStream, NullProgressMonitor.INSTANCE,
+                        OsmReader.Options.SAVE_ORIGINAL_ID);
+            } catch (IOException | IllegalDataException e) {
+                Logging.error(e);
+                RESULT_CACHE.remove(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store a conflation response in the cache
+     *
+     * @param key      The key from {@link #getKey}
+     * @param response The response, as recorded by a {@link RecordingInputStream}
+     */
+    public static void put(String key, RecordingInputStream response) {
+        final byte[] data = response.getRecorded();
+        if (data != null) {
+            final IElementAttributes elementAttributes = RESULT_CACHE.getDefaultElementAttributes();
+            elementAttributes.setIsEternal(false);
+            elementAttributes.setMaxLife(MAX_AGE.get());
+            RESULT_CACHE.put(key, data, elementAttributes);
+        }
+    }
+
+    /**
+     * Clear the conflation cache
+     */
+    public static void clear() {
+        RESULT_CACHE.clear();
+    }
+
+    /**
+     * Get the key for a conflation request
+     *
+     * @param url        The conflation url
+     * @param osmContext The serialized OSM data, may be {@code null}
+     * @param osm        The OSM data, if it was not serialized (may be
+     *                   {@code null})
+     * @param external   The data to conflate
+     * @return The key to use in the cache
+     */
+    public static String getKey(String url, byte[] osmContext, DataSet osm, DataSet external) {
+        final MessageDigest digest = getDigest();
+        digest.update(String.valueOf(url).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        if (osmContext != null) {
+            digest.update(osmContext);
+        } else if (osm != null) {
+            update(digest, osm, true);
+        }
+        digest.update((byte) 0);
+        update(digest, external, false);
+        return Utils.toHexString(digest.digest());
+    }
+
+    /**
+     * Add a dataset to a digest
+     *
+     * @param digest  The digest to update
+     * @param dataSet The dataset to add
+     * @param withIds {@code true} if the ids are significant (i.e., the data is
+     *                referenced by id in the response)
+     */
+    private static void update(MessageDigest digest, DataSet dataSet, boolean withIds) {
+        final List<String> primitives = new ArrayList<>();
+        dataSet.getReadLock().lock();
+        try {
+            for (OsmPrimitive primitive : dataSet.allNonDeletedPrimitives()) {
+                primitives.add(withIds ? primitive.getPrimitiveId() + canonical(primitive) : canonical(primitive));
+            }
+        } finally {
+            dataSet.getReadLock().unlock();
+        }
+        primitives.sort(null);
+        for (String primitive : primitives) {
+            digest.update(primitive.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+    }
+
+    /**
+     * Get a canonical (id independent) string for a primitive
+     *
+     * @param primitive The primitive
+     * @return A string that is the same for primitives with the same tags and
+     *         geometry
+     */
+    private static String canonical(OsmPrimitive primitive) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(primitive.getType().getAPIName().charAt(0));
+        if (primitive instanceof Node) {
+            final Node node = (Node) primitive;
+            if (node.isLatLonKnown()) {
+                builder.append(node.lat()).append(',').append(node.lon());
+            }
+        } else if (primitive instanceof Way) {
+            for (Node node : ((Way) primitive).getNodes()) {
+                builder.append('[').append(canonical(node)).append(']');
+            }
+        } else if (primitive instanceof Relation) {
+            for (RelationMember member : ((Relation) primitive).getMembers()) {
+                builder.append('[').append(member.getRole()).append('=')
+                        .append(member.isRelation() ? member.getType().getAPIName() : canonical(member.getMember()))
+                        .append(']');
+            }
+        }
+        final Map<String, String> tags = new TreeMap<>(primitive.getKeys());
+        builder.append(tags.entrySet().stream().map(entry -> entry.getKey() + '=' + entry.getValue())
+                .collect(Collectors.joining("|", "{", "}")));
+        return builder.toString();
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required to be present in every Java implementation
+            throw new JosmRuntimeException(e);
+        }
+    }
+
+    /**
+     * An input stream that keeps a gzipped copy of everything that is read, so
+     * that a response can be parsed and cached at the same time
+     */
+    public static final class RecordingInputStream extends FilterInputStream {
+        private final ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+        private final OutputStream gzip;
+        private boolean failed;
+
+        /**
+         * Create a new recording stream
+         *
+         * @param in The stream to read from
+         * @throws IOException If the gzip stream could not be created
+         */
+        public RecordingInputStream(InputStream in) throws IOException {
+            super(in);
+            this.gzip = new GZIPOutputStream(recorded);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int read = super.read();
+            if (read >= 0) {
+                record(new byte[] { (byte) read }, 0, 1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                record(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes cannot be recorded
+            failed = true;
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void record(byte[] b, int off, int len) {
+            try {
+                gzip.write(b, off, len);
+            } catch (IOException e) {
+                Logging.trace(e);
+                failed = true;
+            }
+        }
+
+        /**
+         * Get the recorded (gzipped) data
+         *
+         * @return The data that has been read, or {@code null} if it could not be
+         *         recorded
+         */
+        byte[] getRecorded() {
+            if (failed) {
+                return null;
+            }
+            try {
+                gzip.close();
+            } catch (IOException e) {
+                Logging.trace(e);
+                return null;
+            }
+            return recorded.toByteArray();
+        }
+    }
+}
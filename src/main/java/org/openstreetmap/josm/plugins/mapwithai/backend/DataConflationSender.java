@@ -3,23 +3,29 @@ package org.openstreetmap.josm.plugins.mapwithai.backend;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolVersion;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.AbstractContentBody;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.openstreetmap.josm.data.osm.DataSet;
@@ -28,25 +34,29 @@ import org.openstreetmap.josm.io.IllegalDataException;
 import org.openstreetmap.josm.io.OsmReader;
 import org.openstreetmap.josm.io.OsmWriter;
 import org.openstreetmap.josm.io.OsmWriterFactory;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.backend.ConflationResultCache.RecordingInputStream;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAICategory;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIConflationCategory;
 import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
 
 /**
- * Conflate data with a third party server
+ * Conflate data with a third party server. The data is streamed to the server
+ * (it is never held in memory as a string), and the response is parsed as it
+ * is received. Responses are cached in the {@link ConflationResultCache}.
  *
  * @author Taylor Smock
  */
 public class DataConflationSender implements RunnableFuture<DataSet> {
+    private static ExecutorService executor;
 
-    private static final int MAX_POLLS = 100;
     private final DataSet external;
     private final DataSet osm;
+    private final byte[] osmContext;
     private final MapWithAICategory category;
-    private DataSet conflatedData;
-    private CloseableHttpClient client;
-    private boolean done;
-    private boolean cancelled;
+    private final FutureTask<DataSet> task;
+    private volatile HttpPost request;
 
     /**
      * Conflate external data
@@ -59,93 +69,188 @@ public class DataConflationSender implements RunnableFuture<DataSet> {
         Objects.requireNonNull(external, tr("We must have data to conflate"));
         Objects.requireNonNull(category, tr("We must have a category for the data"));
         this.osm = openstreetmap;
+        this.osmContext = null;
         this.external = external;
         this.category = category;
+        this.task = new FutureTask<>(this::conflate);
+    }
+
+    /**
+     * Conflate external data
+     *
+     * @param category      The category to use to determine the conflation server
+     * @param openstreetmap The serialized OSM data (may be null -- try to avoid
+     *                      this), see {@link ConflationContextExtractor}
+     * @param external      The data to conflate (may not be null)
+     */
+    public DataConflationSender(MapWithAICategory category, byte[] openstreetmap, DataSet external) {
+        Objects.requireNonNull(external, tr("We must have data to conflate"));
+        Objects.requireNonNull(category, tr("We must have a category for the data"));
+        this.osm = null;
+        this.osmContext = openstreetmap;
+        this.external = external;
+        this.category = category;
+        this.task = new FutureTask<>(this::conflate);
+    }
+
+    /**
+     * Start the conflation in the background
+     *
+     * @return This object, for easy chaining
+     */
+    public DataConflationSender start() {
+        getExecutor().execute(this);
+        return this;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null || executor.isShutdown()) {
+            executor = Executors.newCachedThreadPool(
+                    Utils.newThreadFactory(MapWithAIPlugin.NAME.concat("-conflation-%d"), Thread.NORM_PRIORITY));
+        }
+        return executor;
     }
 
     @Override
     public void run() {
-        String url = MapWithAIConflationCategory.conflationUrlFor(category);
-        this.client = HttpClients.createDefault();
-        try (CloseableHttpClient currentClient = this.client) {
-            MultipartEntityBuilder multipartEntityBuilder = MultipartEntityBuilder.create();
-            if (osm != null) {
-                StringWriter output = new StringWriter();
-                try (OsmWriter writer = OsmWriterFactory.createOsmWriter(new PrintWriter(output), true, "0.6")) {
-                    writer.write(osm);
-                    multipartEntityBuilder.addTextBody("openstreetmap", output.toString(), ContentType.APPLICATION_XML);
-                }
-            }
-            // We need to reset the writers to avoid writing previous streams
-            StringWriter output = new StringWriter();
-            try (OsmWriter writer = OsmWriterFactory.createOsmWriter(new PrintWriter(output), true, "0.6")) {
-                writer.write(external);
-                multipartEntityBuilder.addTextBody("external", output.toString(), ContentType.APPLICATION_XML);
-            }
-            HttpEntity postData = multipartEntityBuilder.build();
-            HttpUriRequest request = RequestBuilder.post(url).setEntity(postData).build();
+        task.run();
+    }
 
-            HttpResponse response = currentClient.execute(request);
-            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                conflatedData = OsmReader.parseDataSet(response.getEntity().getContent(), NullProgressMonitor.INSTANCE,
-                        OsmReader.Options.SAVE_ORIGINAL_ID);
-            } else {
-                conflatedData = null;
-            }
-            ProtocolVersion protocolVersion = response.getStatusLine().getProtocolVersion();
-            Logging.info(new StringBuilder(request.getMethod()).append(' ').append(url).append(" -> ")
+    /**
+     * Send the data to the conflation server
+     *
+     * @return The conflated data, or {@code null} if the server did not conflate
+     *         the data
+     * @throws IOException          If there was an issue communicating with the
+     *                              server
+     * @throws IllegalDataException If the server returned bad data
+     */
+    private DataSet conflate() throws IOException, IllegalDataException {
+        final String url = MapWithAIConflationCategory.conflationUrlFor(category);
+        final String key = ConflationResultCache.getKey(url, osmContext, osm, external);
+        final DataSet cached = ConflationResultCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final MultipartEntityBuilder multipartEntityBuilder = MultipartEntityBuilder.create();
+        if (osmContext != null) {
+            multipartEntityBuilder.addBinaryBody("openstreetmap", osmContext,
+                    ContentType.APPLICATION_XML.withCharset(StandardCharsets.UTF_8), null);
+        } else if (osm != null) {
+            multipartEntityBuilder.addPart("openstreetmap", new OsmContentBody(osm));
+        }
+        multipartEntityBuilder.addPart("external", new OsmContentBody(external));
+        final HttpPost post = new HttpPost(url);
+        post.setEntity(multipartEntityBuilder.build());
+        this.request = post;
+        if (isCancelled()) {
+            return null;
+        }
+        try (CloseableHttpClient client = HttpClients.createDefault()) {
+            final HttpResponse response = client.execute(post);
+            final ProtocolVersion protocolVersion = response.getStatusLine().getProtocolVersion();
+            Logging.info(new StringBuilder(post.getMethod()).append(' ').append(url).append(" -> ")
                     .append(protocolVersion.getProtocol()).append('/').append(protocolVersion.getMajor()).append('.')
                     .append(protocolVersion.getMinor()).append(' ').append(response.getStatusLine().getStatusCode())
                     .toString());
-            this.done = true;
-        } catch (IOException | UnsupportedOperationException | IllegalDataException e) {
-            Logging.error(e);
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                try (RecordingInputStream inputStream = new RecordingInputStream(response.getEntity().getContent())) {
+                    final DataSet conflated = OsmReader.parseDataSet(inputStream, NullProgressMonitor.INSTANCE,
+                            OsmReader.Options.SAVE_ORIGINAL_ID);
+                    ConflationResultCache.put(key, inputStream);
+                    return conflated;
+                }
+            }
+            return null;
         }
     }
 
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
-        try {
-            client.close();
-        } catch (IOException e) {
-            Logging.error(e);
-            return false;
+        final boolean cancelled = task.cancel(mayInterruptIfRunning);
+        final HttpPost post = this.request;
+        if (cancelled && post != null) {
+            post.abort();
         }
-        this.done = true;
-        this.cancelled = true;
-        return true;
+        return cancelled;
     }
 
     @Override
     public boolean isCancelled() {
-        return this.cancelled;
+        return task.isCancelled();
     }
 
     @Override
     public boolean isDone() {
-        return this.done;
+        return task.isDone();
     }
 
     @Override
     public DataSet get() throws InterruptedException, ExecutionException {
-        while (!isDone()) {
-            Thread.sleep(100);
-        }
-        return this.conflatedData;
+        return task.get();
     }
 
+    /**
+     * Wait for the conflated data. The request is cancelled if it does not finish
+     * in time.
+     *
+     * @throws java.util.concurrent.CancellationException if the request was
+     *                                                     cancelled
+     */
     @Override
     public DataSet get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        long realtime = unit.toMillis(timeout);
-        long waitTime = realtime > MAX_POLLS ? realtime / MAX_POLLS : 1;
-        long timeWaited = 0;
-        while (!isDone()) {
-            Thread.sleep(waitTime);
-            timeWaited += waitTime;
+        try {
+            return task.get(timeout, unit);
+        } catch (TimeoutException | InterruptedException e) {
+            cancel(true);
+            throw e;
         }
-        if (!isDone() && timeWaited > realtime) {
-            throw new TimeoutException();
+    }
+
+    /**
+     * A multipart body that writes a dataset directly to the request
+     */
+    private static class OsmContentBody extends AbstractContentBody {
+        private final DataSet dataSet;
+
+        OsmContentBody(DataSet dataSet) {
+            super(ContentType.APPLICATION_XML.withCharset(StandardCharsets.UTF_8));
+            this.dataSet = dataSet;
+        }
+
+        @Override
+        public String getFilename() {
+            return null;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            // Don't let the writer close the request stream
+            final OutputStream nonClosing = new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+            try (PrintWriter printWriter = new PrintWriter(new OutputStreamWriter(nonClosing, StandardCharsets.UTF_8));
+                    OsmWriter writer = OsmWriterFactory.createOsmWriter(printWriter, true, "0.6")) {
+                writer.write(dataSet);
+            }
+        }
+
+        @Override
+        public String getTransferEncoding() {
+            return MIME.ENC_8BIT;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
         }
-        return this.conflatedData;
     }
 }
@@ -0,0 +1,190 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.commands.MergeDuplicateWays;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAICategory;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.PreConflatedDataUtils;
+
+/**
+ * The cleanup stages that are in the {@link CleanupPipeline} by default
+ */
+final class DefaultCleanupStages {
+    /** The tag cleanup rules are applied */
+    static final String TAGS = "tags";
+    /** Duplicate nodes are merged */
+    static final String DUPLICATE_NODES = "duplicate_nodes";
+    /** Ways that share part of their geometry get the missing nodes */
+    static final String PARTIAL_WAYS = "partial_ways";
+    /** Data that has already been conflated by the source is hidden */
+    static final String PRECONFLATED = "preconflated";
+    /** Ways that have already been added to an OSM layer are removed */
+    static final String ALREADY_ADDED = "already_added";
+    /** Duplicate highways are merged */
+    static final String DUPLICATE_WAYS = "duplicate_ways";
+    /** Artifacts (e.g., spikes) are removed from ways */
+    static final String ARTIFACTS = "artifacts";
+
+    private static final List<Class<? extends OsmPrimitive>> ALL = Collections
+            .unmodifiableList(Arrays.asList(Node.class, Way.class, Relation.class));
+    private static final List<Class<? extends OsmPrimitive>> WAYS = Collections
+            .unmodifiableList(Arrays.asList(Node.class, Way.class));
+
+    private DefaultCleanupStages() {
+        // Hide the constructor
+    }
+
+    /**
+     * Get new instances of the default stages
+     *
+     * @return The default stages, in order
+     */
+    static List<CleanupStage> getDefaultStages() {
+        final List<CleanupStage> stages = new ArrayList<>();
+        stages.add(new SimpleStage(TAGS, ALL, ALL, context -> {
+            // All of the tag changes are made in a single pass
+            final Collection<OsmPrimitive> primitives = context.getPrimitives();
+            context.getTagCleanupRules().apply(context.getDataSet(), primitives);
+            return primitives.size();
+        }));
+        stages.add(new SimpleStage(DUPLICATE_NODES, WAYS, WAYS, context -> {
+            final Collection<Node> nodes = context.getNodes();
+            DuplicateNodeMerger.mergeNodes(context.getDataSet(), nodes);
+            return nodes.size();
+        }));
+        stages.add(new SimpleStage(PARTIAL_WAYS, WAYS, WAYS, context -> {
+            final Collection<Way> ways = context.getWays();
+            GetDataRunnable.mergeWays(ways, new WaySegmentIndex(context.getConnectedWays()));
+            return ways.size();
+        }));
+        stages.add(new SimpleStage(PRECONFLATED, ALL, ALL, context -> {
+            PreConflatedDataUtils.removeConflatedData(context.getDataSet(), context.getInfo());
+            return context.getDataSet().allPrimitives().size();
+        }).enabled(info -> info != null && info.getAlreadyConflatedKey() != null));
+        stages.add(new SimpleStage(ALREADY_ADDED, WAYS, WAYS, context -> {
+            final Collection<Way> ways = context.getWays();
+            GetDataRunnable.removeAlreadyAddedData(context.getDataSet(), ways);
+            return ways.size();
+        }));
+        stages.add(new SimpleStage(DUPLICATE_WAYS, WAYS, WAYS, context -> {
+            final Collection<Way> candidates = context.isComplete()
+                    ? context.getDataSet().searchWays(context.getBounds().toBBox())
+                    : context.getWays();
+            final List<Way> ways = candidates.stream().filter(w -> w.hasKey("highway")).collect(Collectors.toList());
+            if (!ways.isEmpty()) {
+                new MergeDuplicateWays(context.getDataSet(), ways).executeCommand();
+            }
+            return ways.size();
+        }).enabled(DefaultCleanupStages::mayHaveHighways));
+        stages.add(new SimpleStage(ARTIFACTS, WAYS, WAYS, DefaultCleanupStages::cleanupArtifacts).parallelSafe());
+        return stages;
+    }
+
+    /**
+     * Check if a source may have highways. Sources that only have buildings
+     * (and addresses) do not need highways to be merged.
+     *
+     * @param info The source
+     * @return {@code true} if the source may have highways
+     */
+    private static boolean mayHaveHighways(MapWithAIInfo info) {
+        if (info == null || info.getCategory() == null) {
+            return true;
+        }
+        final Predicate<MapWithAICategory> buildings = category -> category == MapWithAICategory.BUILDING
+                || category == MapWithAICategory.ADDRESS;
+        return !buildings.test(info.getCategory()) || !info.getAdditionalCategories().stream().allMatch(buildings);
+    }
+
+    private static int cleanupArtifacts(CleanupContext context) {
+        // The ways have been modified, so the index needs to be (re)built
+        final double cellSize = MapWithAIPreferenceHelper.getMaxNodeDistance() * 10;
+        final WaySegmentIndex index = cellSize > 0 ? new WaySegmentIndex(context.getWays(), cellSize) : null;
+        final Bounds bounds = context.getBounds();
+        final Collection<Way> ways;
+        if (!context.isComplete()) {
+            ways = context.getWays();
+        } else if (bounds.isCollapsed() || bounds.isOutOfTheWorld()) {
+            ways = context.getDataSet().getWays();
+        } else {
+            ways = context.getDataSet().searchWays(bounds.toBBox());
+        }
+        ways.parallelStream().filter(way -> !way.isDeleted())
+                .forEach(way -> GetDataRunnable.cleanupArtifacts(way, index));
+        return ways.size();
+    }
+
+    /**
+     * A stage that runs a function
+     */
+    private static final class SimpleStage implements CleanupStage {
+        private final String name;
+        private final Collection<Class<? extends OsmPrimitive>> readTypes;
+        private final Collection<Class<? extends OsmPrimitive>> writeTypes;
+        private final ToIntFunction<CleanupContext> function;
+        private Predicate<MapWithAIInfo> enabled = info -> true;
+        private boolean parallelSafe;
+
+        SimpleStage(String name, Collection<Class<? extends OsmPrimitive>> readTypes,
+                Collection<Class<? extends OsmPrimitive>> writeTypes, ToIntFunction<CleanupContext> function) {
+            this.name = name;
+            this.readTypes = readTypes;
+            this.writeTypes = writeTypes;
+            this.function = function;
+        }
+
+        SimpleStage enabled(Predicate<MapWithAIInfo> enabled) {
+            this.enabled = enabled;
+            return this;
+        }
+
+        SimpleStage parallelSafe() {
+            this.parallelSafe = true;
+            return this;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Collection<Class<? extends OsmPrimitive>> getReadTypes() {
+            return readTypes;
+        }
+
+        @Override
+        public Collection<Class<? extends OsmPrimitive>> getWriteTypes() {
+            return writeTypes;
+        }
+
+        @Override
+        public boolean isParallelSafe() {
+            return parallelSafe;
+        }
+
+        @Override
+        public boolean isEnabled(MapWithAIInfo info) {
+            return enabled.test(info);
+        }
+
+        @Override
+        public int run(CleanupContext context) {
+            return function.applyAsInt(context);
+        }
+    }
+}
@@ -7,14 +7,25 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.openstreetmap.josm.actions.downloadtasks.DownloadOsmTask;
 import org.openstreetmap.josm.actions.downloadtasks.DownloadParams;
 import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.Notification;
@@ -23,13 +34,17 @@ import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.io.OsmServerReader;
 import org.openstreetmap.josm.io.OsmTransferException;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAILayerInfo;
 import org.openstreetmap.josm.tools.ImageProvider;
+import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.Utils;
 import org.xml.sax.SAXException;
 
 public class DownloadMapWithAITask extends DownloadOsmTask {
+    /** How often we check for cancellation while waiting for downloads */
+    private static final long CANCEL_CHECK_MILLISECONDS = 250;
     private final List<MapWithAIInfo> urls;
 
     private static class Notifications {
@@ -99,9 +114,16 @@ public class DownloadMapWithAITask extends DownloadOsmTask {
     }
 
     class DownloadTask extends AbstractInternalTask {
-        BoundingBoxMapWithAIDownloader downloader;
+        private List<CompletableFuture<DataSet>> futures = Collections.emptyList();
         final Bounds bounds;
         private List<MapWithAIInfo> relevantUrls;
+        private boolean merged;
+        /** Used to drop features that are in more than one tile */
+        private final ServerIdIndex serverIdIndex = new ServerIdIndex();
+        /** The downloaders for the submitted downloads */
+        private final Map<CompletableFuture<DataSet>, BoundingBoxMapWithAIDownloader> downloaders = new HashMap<>();
+        /** The sources with downloads that will be retried, which are not marked as downloaded */
+        private final Set<MapWithAIInfo> retried = new HashSet<>();
 
         DownloadTask(DownloadParams settings, String title, boolean ignoreException, boolean zoomAfterDownload,
                 Bounds bounds) {
@@ -117,8 +139,8 @@ public class DownloadMapWithAITask extends DownloadOsmTask {
         @Override
         protected void cancel() {
             setCanceled(true);
-            if (downloader != null) {
-                downloader.cancel();
+            synchronized (this) {
+                MapWithAIDownloadScheduler.cancel(futures);
             }
         }
 
@@ -131,31 +153,137 @@ public class DownloadMapWithAITask extends DownloadOsmTask {
                 Notifications.showEmptyNotification();
                 return;
             }
-            if (relevantUrls.size() < 5) {
-                monitor.indeterminateSubTask(tr("MapWithAI Download"));
-            } else {
-                monitor.setTicksCount(relevantUrls.size());
-            }
             downloadedData = new DataSet();
+            // Start all of the sources at once, so that we only wait for the slowest one
+            final LatLon center = bounds.getCenter();
+            final BlockingQueue<CompletableFuture<DataSet>> finished = new LinkedBlockingQueue<>();
+            final List<CompletableFuture<DataSet>> submitted = new ArrayList<>();
             for (MapWithAIInfo info : relevantUrls) {
-                if (isCanceled()) {
+                for (BoundingBoxMapWithAIDownloader downloader : getDownloaders(info)) {
+                    final CompletableFuture<DataSet> future = MapWithAIDownloadScheduler.getInstance().submitAsync(
+                            downloader, MapWithAIDownloadScheduler.getPriority(downloader.getDownloadArea(), center));
+                    future.whenComplete((dataSet, throwable) -> finished.add(future));
+                    submitted.add(future);
+                    downloaders.put(future, downloader);
+                }
+            }
+            synchronized (this) {
+                this.futures = submitted;
+            }
+            if (isCanceled()) {
+                MapWithAIDownloadScheduler.cancel(submitted);
+            }
+            monitor.setTicksCount(submitted.size());
+            monitor.subTask(tr("Downloading {0} Data", MapWithAIPlugin.NAME));
+            try {
+                awaitAll(submitted.size(), finished, monitor);
+            } finally {
+                MapWithAIDownloadScheduler.cancel(submitted);
+            }
+        }
+
+        /**
+         * Get the downloaders for a source
+         *
+         * @param info The source
+         * @return The downloaders for the tiles (or bounds) to download
+         */
+        private List<BoundingBoxMapWithAIDownloader> getDownloaders(MapWithAIInfo info) {
+            if (MapWithAIPreferenceHelper.isTiledDownload()) {
+                final List<MapWithAITile> tiles = MapWithAIDataUtils.getTiles(Collections.singleton(bounds),
+                        MapWithAIDataUtils.MAXIMUM_SIDE_DIMENSIONS, info);
+                if (!tiles.isEmpty()) {
+                    return tiles.stream()
+                            .map(tile -> new BoundingBoxMapWithAIDownloader(tile, info, false)
+                                    .setServerIdIndex(serverIdIndex))
+                            .collect(Collectors.toList());
+                }
+            }
+            return Collections.singletonList(
+                    new BoundingBoxMapWithAIDownloader(bounds, info, false).setServerIdIndex(serverIdIndex));
+        }
+
+        /**
+         * Wait for the downloads, merging the data as each download finishes
+         *
+         * @param count    The number of downloads
+         * @param finished The queue that downloads are added to when they finish
+         * @param monitor  The monitor to update
+         * @throws OsmTransferException If a download failed
+         */
+        private void awaitAll(int count, BlockingQueue<CompletableFuture<DataSet>> finished, ProgressMonitor monitor)
+                throws OsmTransferException {
+            final MapWithAILayer layer = MapWithAIDataUtils.getLayer(true);
+            OsmTransferException exception = null;
+            for (int done = 0; done < count && !isCanceled();) {
+                if (monitor.isCanceled()) {
+                    cancel();
                     break;
                 }
-                downloader = new BoundingBoxMapWithAIDownloader(bounds, info, false);
-                DataSet ds = downloader.parseOsm(monitor.createSubTaskMonitor(1, true));
-                downloadedData.mergeFrom(ds);
+                final CompletableFuture<DataSet> future;
+                try {
+                    future = finished.poll(CANCEL_CHECK_MILLISECONDS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new OsmTransferException(e);
+                }
+                if (future == null) {
+                    continue;
+                }
+                done++;
+                monitor.worked(1);
+                try {
+                    final DataSet dataSet = future.join();
+                    final BoundingBoxMapWithAIDownloader downloader = downloaders.get(future);
+                    if (downloader.isRetryPending()) {
+                        retried.add(downloader.getInfo());
+                    }
+                    // The primitives are moved into the layer, so only the areas are kept in the
+                    // downloaded data (instead of a copy of all of the primitives)
+                    dataSet.getDataSources().forEach(downloadedData::addDataSource);
+                    // Show the data as soon as we have it
+                    layer.getMergeQueue().add(dataSet);
+                    merged = true;
+                } catch (CancellationException e) {
+                    Logging.trace(e);
+                } catch (CompletionException e) {
+                    Logging.error(e);
+                    if (exception == null) {
+                        exception = e.getCause() instanceof OsmTransferException
+                                ? (OsmTransferException) e.getCause()
+                                : new OsmTransferException(e.getCause());
+                    }
+                }
+            }
+            if (exception != null) {
+                throw exception;
             }
         }
 
         @Override
         protected void finish() {
-            if (!isCanceled() && !isFailed()) {
-                synchronized (DownloadMapWithAITask.DownloadTask.class) {
-                    MapWithAILayer layer = MapWithAIDataUtils.getLayer(true);
-                    layer.getDataSet().mergeFrom(downloadedData);
-                    relevantUrls.forEach(layer::addDownloadedInfo);
-                }
-                GetDataRunnable.cleanup(MapWithAIDataUtils.getLayer(true).getDataSet(), null, null);
+            MapWithAILayer layer = MapWithAIDataUtils.getLayer(false);
+            if (layer == null) {
+                return;
+            }
+            final boolean succeeded = !isCanceled() && !isFailed();
+            if (succeeded) {
+                relevantUrls.forEach(layer::addDownloadedInfo);
+                // Areas that will be retried are marked as downloaded when the retry succeeds
+                relevantUrls.stream().filter(info -> !retried.contains(info))
+                        .forEach(info -> layer.getCoverage().add(info, bounds));
+            }
+            if (merged || succeeded) {
+                // This is called in the EDT, so the data is merged and cleaned up in the background.
+                // Only the changes to the layer are made in the EDT.
+                MapWithAIDataUtils.getForkJoinPool().execute(() -> {
+                    if (merged) {
+                        layer.getMergeQueue().flush();
+                    }
+                    if (succeeded) {
+                        layer.cleanup();
+                    }
+                });
             }
         }
 
@@ -0,0 +1,322 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.openstreetmap.josm.command.ChangeNodesCommand;
+import org.openstreetmap.josm.command.ChangePropertyCommand;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.DeleteCommand;
+import org.openstreetmap.josm.command.SequenceCommand;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+
+/**
+ * Merge nodes that are (nearly) on top of each other. Nodes are bucketed into
+ * a grid with cells the size of the merge distance, so each node is only
+ * compared with the nodes in the neighbouring cells. Each node that has not
+ * been merged yet collects the nodes that are close enough to it (not to the
+ * other nodes in its cluster, so rows of nodes are not chained together), and
+ * all of the clusters are merged with a single command.
+ * <p>
+ * A node is merged into a cluster when it is closer to the first node of the
+ * cluster than {@link MapWithAIPreferenceHelper#getMaxNodeDistance()} and its
+ * tags are the same (or one of them has no tags), or when they have the same
+ * tags and are closer than ten times that distance. A cluster never contains
+ * nodes with different tags. Only nodes that are not part of anything but
+ * highways are merged.
+ */
+public final class DuplicateNodeMerger {
+    /** The distance multiplier for nodes with the same tags */
+    private static final int SAME_TAGS_MULTIPLIER = 10;
+    /** Meters in a degree of latitude */
+    private static final double METERS_PER_DEGREE = 111_319.49;
+    /** The smallest cosine of the latitude to use, to avoid huge cells near the poles */
+    private static final double MINIMUM_COSINE = 0.01;
+
+    private DuplicateNodeMerger() {
+        // Hide the constructor
+    }
+
+    /**
+     * Merge duplicate nodes in a dataset
+     *
+     * @param dataSet The dataset to merge nodes in
+     * @return The number of nodes that were merged into other nodes
+     */
+    public static int mergeNodes(DataSet dataSet) {
+        return mergeNodes(dataSet, dataSet.getNodes());
+    }
+
+    /**
+     * Merge duplicate nodes in part of a dataset
+     *
+     * @param dataSet The dataset to merge nodes in
+     * @param nodes   The nodes that may be merged
+     * @return The number of nodes that were merged into other nodes
+     */
+    public static int mergeNodes(DataSet dataSet, Collection<Node> nodes) {
+        return mergeNodes(dataSet, nodes, MapWithAIPreferenceHelper.getMaxNodeDistance());
+    }
+
+    /**
+     * Merge duplicate nodes in a dataset
+     *
+     * @param dataSet    The dataset to merge nodes in
+     * @param candidates The nodes that may be merged
+     * @param distance   The maximum distance between nodes to merge (meters)
+     * @return The number of nodes that were merged into other nodes
+     */
+    static int mergeNodes(DataSet dataSet, Collection<Node> candidates, double distance) {
+        final List<Node> nodes = candidates.stream().filter(DuplicateNodeMerger::isMergeable)
+                .collect(Collectors.toList());
+        if (nodes.size() < 2 || distance <= 0) {
+            return 0;
+        }
+        final Clusters clusters = new Clusters(nodes);
+        clusters.cluster(distance);
+        final Command command = clusters.getCommand(dataSet);
+        if (command == null) {
+            return 0;
+        }
+        command.executeCommand();
+        return clusters.merged;
+    }
+
+    private static boolean isMergeable(Node node) {
+        return !node.isDeleted() && node.isLatLonKnown()
+                && node.getReferrers().stream().allMatch(prim -> prim instanceof Way && prim.hasKey("highway"));
+    }
+
+    /**
+     * The clusters of nodes to merge. Each cluster is the nodes that are close
+     * to its first node (the center).
+     */
+    private static final class Clusters {
+        private final List<Node> nodes;
+        private final double[] lat;
+        private final double[] lon;
+        /** The tags of each node, fetched once */
+        private final List<Map<String, String>> tags;
+        /** The center of the cluster of each node, or {@code -1} if the node is not in a cluster yet */
+        private final int[] center;
+        /** The tags of each cluster (on the center), {@code null} if no node in the cluster has tags */
+        private final List<Map<String, String>> clusterTags;
+        /** The cosine of the latitude furthest from the equator, so that cells are never too narrow */
+        private final double cosine;
+        int merged;
+
+        Clusters(List<Node> nodes) {
+            this.nodes = nodes;
+            final int size = nodes.size();
+            this.lat = new double[size];
+            this.lon = new double[size];
+            this.tags = new ArrayList<>(size);
+            this.clusterTags = new ArrayList<>(size);
+            this.center = new int[size];
+            double maxLat = 0;
+            for (int i = 0; i < size; i++) {
+                final Node node = nodes.get(i);
+                lat[i] = node.lat();
+                lon[i] = node.lon();
+                maxLat = Math.max(maxLat, Math.abs(lat[i]));
+                final Map<String, String> nodeTags = node.getKeys();
+                tags.add(nodeTags);
+                clusterTags.add(nodeTags.isEmpty() ? null : nodeTags);
+                center[i] = -1;
+            }
+            this.cosine = Math.max(MINIMUM_COSINE, Math.cos(Math.toRadians(maxLat)));
+        }
+
+        /**
+         * Cluster the nodes
+         *
+         * @param distance The maximum distance (meters) between the center of a
+         *                 cluster and the nodes in it, for nodes that do not have
+         *                 the same tags
+         */
+        void cluster(double distance) {
+            final double sameTagsDistance = distance * SAME_TAGS_MULTIPLIER;
+            final Map<Long, List<Integer>> grid = getGrid(distance, false);
+            final Map<Long, List<Integer>> sameTagsGrid = getGrid(sameTagsDistance, true);
+            for (int i = 0; i < nodes.size(); i++) {
+                if (center[i] >= 0) {
+                    continue;
+                }
+                center[i] = i;
+                for (int j : getNeighbours(grid, i, distance)) {
+                    if (center[j] < 0 && isLinkable(i, j) && getDistance(i, j) < distance) {
+                        add(i, j);
+                    }
+                }
+                if (!tags.get(i).isEmpty()) {
+                    for (int j : getNeighbours(sameTagsGrid, i, sameTagsDistance)) {
+                        if (center[j] < 0 && tags.get(i).equals(tags.get(j))
+                                && getDistance(i, j) < sameTagsDistance) {
+                            add(i, j);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Bucket the nodes into a grid
+         *
+         * @param distance The size of the cells (meters)
+         * @param tagged   {@code true} to only add nodes with tags
+         * @return The node indexes in each cell
+         */
+        private Map<Long, List<Integer>> getGrid(double distance, boolean tagged) {
+            final double cellLat = distance / METERS_PER_DEGREE;
+            final double cellLon = cellLat / cosine;
+            final Map<Long, List<Integer>> grid = new HashMap<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                if (!tagged || !tags.get(i).isEmpty()) {
+                    grid.computeIfAbsent(getCell((int) Math.floor(lon[i] / cellLon),
+                            (int) Math.floor(lat[i] / cellLat)), key -> new ArrayList<>(1)).add(i);
+                }
+            }
+            return grid;
+        }
+
+        /**
+         * Get the nodes in the cells around a node
+         *
+         * @param grid     The grid to look in
+         * @param i        The node index
+         * @param distance The size of the cells in the grid (meters)
+         * @return The node indexes in the cell of the node and the cells next to it
+         */
+        private List<Integer> getNeighbours(Map<Long, List<Integer>> grid, int i, double distance) {
+            final double cellLat = distance / METERS_PER_DEGREE;
+            final double cellLon = cellLat / cosine;
+            final int x = (int) Math.floor(lon[i] / cellLon);
+            final int y = (int) Math.floor(lat[i] / cellLat);
+            final List<Integer> neighbours = new ArrayList<>();
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    final List<Integer> cell = grid.get(getCell(x + dx, y + dy));
+                    if (cell != null) {
+                        neighbours.addAll(cell);
+                    }
+                }
+            }
+            // Keep the order of the nodes, so that the clusters do not depend upon the grid
+            Collections.sort(neighbours);
+            return neighbours;
+        }
+
+        /**
+         * Check if a node may be added to a cluster without a tag conflict
+         *
+         * @param i The center of the cluster
+         * @param j The node index
+         * @return {@code true} if the node may be in the cluster
+         */
+        private boolean isLinkable(int i, int j) {
+            final Map<String, String> iTags = clusterTags.get(i);
+            final Map<String, String> jTags = tags.get(j);
+            return iTags == null || jTags.isEmpty() || iTags.equals(jTags);
+        }
+
+        private double getDistance(int i, int j) {
+            return nodes.get(i).getCoor().greatCircleDistance(nodes.get(j).getCoor());
+        }
+
+        private void add(int i, int j) {
+            center[j] = i;
+            if (clusterTags.get(i) == null) {
+                clusterTags.set(i, clusterTags.get(j));
+            }
+        }
+
+        /**
+         * Get the command to merge all of the clusters
+         *
+         * @param dataSet The dataset with the nodes
+         * @return The command, or {@code null} if there is nothing to merge
+         */
+        Command getCommand(DataSet dataSet) {
+            final Map<Integer, List<Integer>> clusters = new LinkedHashMap<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                clusters.computeIfAbsent(center[i], key -> new ArrayList<>(1)).add(i);
+            }
+            final Map<Node, Node> replacements = new HashMap<>();
+            final List<Command> commands = new ArrayList<>();
+            for (Map.Entry<Integer, List<Integer>> cluster : clusters.entrySet()) {
+                if (cluster.getValue().size() < 2) {
+                    continue;
+                }
+                final Node target = getTarget(cluster.getValue());
+                for (int i : cluster.getValue()) {
+                    if (nodes.get(i) != target) {
+                        replacements.put(nodes.get(i), target);
+                    }
+                }
+                final Map<String, String> targetTags = clusterTags.get(cluster.getKey());
+                if (targetTags != null && !target.hasKeys()) {
+                    commands.add(new ChangePropertyCommand(Collections.singleton(target), targetTags));
+                }
+            }
+            if (replacements.isEmpty()) {
+                return null;
+            }
+            final Set<OsmPrimitive> toDelete = new LinkedHashSet<>(replacements.keySet());
+            final Set<Way> ways = replacements.keySet().stream().flatMap(node -> node.getReferrers().stream())
+                    .map(Way.class::cast).collect(Collectors.toCollection(LinkedHashSet::new));
+            for (Way way : ways) {
+                final List<Node> wayNodes = new ArrayList<>(way.getNodesCount());
+                for (Node node : way.getNodes()) {
+                    final Node replacement = replacements.getOrDefault(node, node);
+                    if (wayNodes.isEmpty() || wayNodes.get(wayNodes.size() - 1) != replacement) {
+                        wayNodes.add(replacement);
+                    }
+                }
+                if (wayNodes.stream().distinct().count() < 2) {
+                    toDelete.add(way);
+                } else {
+                    commands.add(new ChangeNodesCommand(way, wayNodes));
+                }
+            }
+            commands.add(new DeleteCommand(dataSet, toDelete));
+            merged = replacements.size();
+            return new SequenceCommand(tr("Merge {0} nodes", merged), commands);
+        }
+
+        /**
+         * Get the node to keep in a cluster. Nodes that are already in OSM are
+         * preferred, then the first node in the cluster.
+         *
+         * @param cluster The node indexes in the cluster
+         * @return The node to merge the other nodes into
+         */
+        private Node getTarget(List<Integer> cluster) {
+            Node target = nodes.get(cluster.get(0));
+            for (int i : cluster) {
+                final Node node = nodes.get(i);
+                if (!node.isNew() && (target.isNew() || node.getUniqueId() < target.getUniqueId())) {
+                    target = node;
+                }
+            }
+            return target;
+        }
+
+        private static long getCell(int x, int y) {
+            return ((long) x << 32) | (y & 0xffff_ffffL);
+        }
+    }
+}
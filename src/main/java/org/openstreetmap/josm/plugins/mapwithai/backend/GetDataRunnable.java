@@ -7,18 +7,23 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.RecursiveTask;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import org.openstreetmap.josm.actions.MergeNodesAction;
-import org.openstreetmap.josm.command.Command;
 import org.openstreetmap.josm.command.DeleteCommand;
 import org.openstreetmap.josm.data.Bounds;
-import org.openstreetmap.josm.data.osm.AbstractPrimitive;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.IPrimitive;
@@ -36,14 +41,11 @@ import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 import org.openstreetmap.josm.gui.util.GuiHelper;
-import org.openstreetmap.josm.io.OsmTransferException;
 import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
 import org.openstreetmap.josm.plugins.mapwithai.commands.MergeDuplicateWays;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAILayerInfo;
-import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.PreConflatedDataUtils;
 import org.openstreetmap.josm.tools.Geometry;
-import org.openstreetmap.josm.tools.JosmRuntimeException;
 import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.Pair;
 
@@ -63,9 +65,14 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
 
     private Integer maximumDimensions;
     private transient MapWithAIInfo info;
+    /** The server ids of the data downloaded by this task (and its subtasks) */
+    private transient ServerIdIndex serverIdIndex;
+    /** The zoom of the tiles the bounds are partitioned into, if set by the parent task */
+    private Integer partitionZoom;
 
     private static final int MAX_NUMBER_OF_BBOXES_TO_PROCESS = 1;
-    private static final String SERVER_ID_KEY = "current_id";
+    /** The key for the id of a primitive on the server it was downloaded from */
+    static final String SERVER_ID_KEY = "current_id";
 
     /** An equals sign (=) used for tag splitting */
     private static final String EQUALS = "=";
@@ -117,73 +124,198 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
 
     @Override
     public DataSet compute() {
-        final List<Bounds> bounds = maximumDimensions == null ? MapWithAIDataUtils.reduceBoundSize(runnableBounds)
-                : MapWithAIDataUtils.reduceBoundSize(runnableBounds, maximumDimensions);
+        final int dimensions = maximumDimensions == null ? MapWithAIDataUtils.MAXIMUM_SIDE_DIMENSIONS
+                : maximumDimensions;
+        final int zoom = partitionZoom == null ? getPartitionZoom(dimensions) : partitionZoom;
+        final List<Bounds> bounds = MapWithAIPreferenceHelper.isTiledDownload()
+                ? MapWithAITile.getTiles(runnableBounds, zoom).stream().map(MapWithAITile::getBounds)
+                        .collect(Collectors.toList())
+                : MapWithAIDataUtils.reduceBoundSize(runnableBounds, dimensions);
         monitor.beginTask(tr("Downloading {0} data ({1} total downloads)", MapWithAIPlugin.NAME, bounds.size()),
                 bounds.size() - 1);
+        if (serverIdIndex == null) {
+            serverIdIndex = new ServerIdIndex();
+        }
+        // The data is cleaned up in a dataset that is not in a layer, and then merged
+        DataSet detached = new DataSet();
+        List<DataSet> tiles = null;
         if (!monitor.isCanceled()) {
             if (bounds.size() == MAX_NUMBER_OF_BBOXES_TO_PROCESS) {
-                final DataSet temporaryDataSet = getDataReal(bounds.get(0), monitor);
-                synchronized (GetDataRunnable.class) {
-                    dataSet.mergeFrom(temporaryDataSet);
-                }
+                detached.mergeFrom(getDataReal(bounds.get(0), dimensions, zoom, monitor, serverIdIndex));
             } else {
-                final Collection<GetDataRunnable> tasks = bounds.parallelStream()
-                        .map(bound -> new GetDataRunnable(bound, dataSet, monitor.createSubTaskMonitor(0, true)))
-                        .collect(Collectors.toList());
+                // Each tile is cleaned up in its own task, so only the borders between the tiles are left
+                final List<GetDataRunnable> tasks = bounds.parallelStream().map(bound -> {
+                    final GetDataRunnable runnable = new GetDataRunnable(bound, new DataSet(),
+                            monitor.createSubTaskMonitor(0, true));
+                    runnable.setMaximumDimensions(dimensions);
+                    runnable.setMapWithAIInfo(info);
+                    runnable.serverIdIndex = serverIdIndex;
+                    runnable.partitionZoom = zoom;
+                    return runnable;
+                }).collect(Collectors.toList());
                 tasks.forEach(GetDataRunnable::fork);
                 tasks.parallelStream().forEach(runnable -> {
                     runnable.join();
                     monitor.worked(1);
                 });
+                tiles = tasks.stream().map(GetDataRunnable::join).collect(Collectors.toList());
             }
         }
         // This can technically be included in the above block, but it is here so that
         // cancellation is a little faster
-        if (!monitor.isCanceled() && !bounds.isEmpty()) {
-            cleanup(dataSet, bounds.get(0), info);
+        if (!monitor.isCanceled() && tiles != null) {
+            detached = PartitionStitcher.stitch(tiles, info, getDefaultTagCleanupRules());
+        } else if (!monitor.isCanceled() && !bounds.isEmpty()) {
+            cleanup(detached, bounds.get(0), info);
         }
+        merge(dataSet, detached);
         monitor.finishTask();
         return dataSet;
     }
 
     /**
-     * Perform cleanups on a dataset (one dataset at a time)
+     * Get the zoom of the tiles to partition the download into. This is the
+     * smallest zoom that any source downloads at, so that the tiles of a source
+     * never span more than one partition.
+     *
+     * @param maximumDimensions The maximum dimensions of a download
+     * @return The zoom to partition at
+     */
+    static int getPartitionZoom(int maximumDimensions) {
+        return new ArrayList<>(MapWithAILayerInfo.getInstance().getLayers()).stream()
+                .mapToInt(map -> MapWithAIDataUtils.getTileZoom(maximumDimensions, map)).min()
+                .orElseGet(() -> Math.max(MapWithAITile.getZoomForDimensions(maximumDimensions),
+                        MapWithAIPreferenceHelper.getTileZoom()));
+    }
+
+    /**
+     * Merge data into a dataset. If the dataset is shown in a layer, the merge is
+     * done in the EDT.
+     *
+     * @param target The dataset to merge data into
+     * @param source The data to merge
+     */
+    private static void merge(DataSet target, DataSet source) {
+        if (source.allPrimitives().isEmpty()) {
+            return;
+        }
+        if (MainApplication.getLayerManager().getLayersOfType(OsmDataLayer.class).stream()
+                .anyMatch(layer -> layer.getDataSet() == target)) {
+            GuiHelper.runInEDTAndWait(() -> target.mergeFrom(source));
+        } else {
+            synchronized (target) {
+                target.mergeFrom(source);
+            }
+        }
+    }
+
+    /**
+     * Perform cleanups on a dataset. The cleanup is run on the calling thread, so
+     * the dataset should not be shown in a layer (see
+     * {@link #cleanupRegions(DataSet, Collection, MapWithAIInfo)} for datasets
+     * that are). Cleanups of different datasets may run at the same time.
      *
      * @param dataSet The dataset to cleanup
      * @param bounds  The newly added bounds to the dataset. May be {@code null}.
      * @param info    The information used to download the data
      */
     public static void cleanup(DataSet dataSet, Bounds bounds, MapWithAIInfo info) {
-        GuiHelper.runInEDTAndWait(() -> realCleanup(dataSet, bounds, info));
+        cleanup(dataSet, bounds, info, getDefaultTagCleanupRules());
+    }
+
+    /**
+     * Perform cleanups on a dataset, on the calling thread
+     *
+     * @param dataSet  The dataset to cleanup
+     * @param bounds   The newly added bounds to the dataset. May be {@code null}.
+     * @param info     The information used to download the data
+     * @param tagRules The tag cleanup rules to use, see
+     *                 {@link #getDefaultTagCleanupRules()}
+     * @see #cleanup(DataSet, Bounds, MapWithAIInfo)
+     */
+    public static void cleanup(DataSet dataSet, Bounds bounds, MapWithAIInfo info, TagCleanupRules tagRules) {
+        realCleanup(dataSet, bounds, null, info, tagRules);
+    }
+
+    /**
+     * Perform cleanups on the parts of a dataset that is not shown in a layer, on
+     * the calling thread
+     *
+     * @param dataSet  The dataset to cleanup
+     * @param regions  The regions to clean up
+     * @param info     The information used to download the data. May be
+     *                 {@code null}.
+     * @param tagRules The tag cleanup rules to use
+     */
+    static void cleanupRegions(DataSet dataSet, Collection<BBox> regions, MapWithAIInfo info,
+            TagCleanupRules tagRules) {
+        realCleanup(dataSet, null, regions, info, tagRules);
     }
 
-    private static synchronized void realCleanup(DataSet dataSet, Bounds bounds, MapWithAIInfo info) {
+    /**
+     * Perform cleanups on the parts of a dataset that have changed. Only the
+     * primitives in (a buffer around) the regions are cleaned up, so the cost
+     * depends upon the size of the regions instead of the size of the dataset.
+     * Since the dataset may be shown in a layer, the primitives are cleaned up
+     * in a copy on the calling thread, and only the changes are applied in the
+     * EDT (see {@link RegionCleanup}).
+     *
+     * @param dataSet The dataset to cleanup
+     * @param regions The regions with new data
+     * @param info    The information used to download the data. May be
+     *                {@code null}.
+     */
+    public static void cleanupRegions(DataSet dataSet, Collection<BBox> regions, MapWithAIInfo info) {
+        if (regions.isEmpty()) {
+            return;
+        }
+        RegionCleanup.cleanupRegions(dataSet, regions, info, getDefaultTagCleanupRules());
+    }
+
+    /**
+     * Get the default tag cleanup rules. This replaces tags (see
+     * {@link MapWithAIPreferenceHelper#getReplacementTags()}), removes internal
+     * keys and empty tags, and deletes nodes that end up empty.
+     *
+     * @return A new set of rules, which may be extended
+     */
+    public static TagCleanupRules getDefaultTagCleanupRules() {
+        return new TagCleanupRules().replaceTags(getReplacementTags())
+                .removeKeys(MergeDuplicateWays.ORIG_ID, SERVER_ID_KEY).removeEmptyValues().deleteEmptyNodes();
+    }
+
+    private static void realCleanup(DataSet dataSet, Bounds bounds, Collection<BBox> regions, MapWithAIInfo info,
+            TagCleanupRules tagRules) {
+        // Only one cleanup may run on a dataset at a time, but different datasets may be cleaned up in parallel
+        synchronized (dataSet) {
+            realCleanupLocked(dataSet, bounds, regions, info, tagRules);
+        }
+    }
+
+    private static void realCleanupLocked(DataSet dataSet, Bounds bounds, Collection<BBox> regions,
+            MapWithAIInfo info, TagCleanupRules tagRules) {
+        CleanupPipeline.run(new CleanupContext(dataSet, getCleanupBounds(dataSet, bounds), regions, info, tagRules));
+    }
+
+    /**
+     * Get the bounds to use for a cleanup
+     *
+     * @param dataSet The dataset to cleanup
+     * @param bounds  The newly added bounds to the dataset. May be {@code null}.
+     * @return The bounds, or the bounds of the data sources of the dataset if
+     *         {@code bounds} is {@code null}
+     */
+    static Bounds getCleanupBounds(DataSet dataSet, Bounds bounds) {
         Bounds boundsToUse;
         if (bounds == null && !dataSet.getDataSourceBounds().isEmpty()) {
-            boundsToUse = dataSet.getDataSourceBounds().get(0);
+            boundsToUse = new Bounds(dataSet.getDataSourceBounds().get(0));
             dataSet.getDataSourceBounds().forEach(boundsToUse::extend);
         } else if (bounds == null) {
             boundsToUse = new Bounds(0, 0, 0, 0);
         } else {
             boundsToUse = bounds;
         }
-        replaceTags(dataSet);
-        removeCommonTags(dataSet);
-        removeEmptyTags(dataSet, bounds);
-        mergeNodes(dataSet);
-        cleanupDataSet(dataSet);
-        mergeWays(dataSet);
-        PreConflatedDataUtils.removeConflatedData(dataSet, info);
-        removeAlreadyAddedData(dataSet);
-        List<Way> ways = dataSet.searchWays(boundsToUse.toBBox()).stream().filter(w -> w.hasKey("highway"))
-                .collect(Collectors.toList());
-        if (!ways.isEmpty()) {
-            new MergeDuplicateWays(dataSet, ways).executeCommand();
-        }
-        (boundsToUse.isCollapsed() || boundsToUse.isOutOfTheWorld() ? dataSet.getWays()
-                : dataSet.searchWays(boundsToUse.toBBox())).parallelStream().filter(way -> !way.isDeleted())
-                        .forEach(GetDataRunnable::cleanupArtifacts);
+        return boundsToUse;
     }
 
     /**
@@ -227,11 +359,23 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
      * @param dataSet The dataset with potential duplicate ways (it is modified)
      */
     public static void removeAlreadyAddedData(DataSet dataSet) {
-        final List<DataSet> osmData = MainApplication.getLayerManager().getLayersOfType(OsmDataLayer.class)
-                .parallelStream().map(OsmDataLayer::getDataSet).filter(ds -> !ds.equals(dataSet))
-                .collect(Collectors.toList());
-        dataSet.getWays().parallelStream().filter(way -> !way.isDeleted() && way.getOsmId() <= 0)
-                .filter(way -> osmData.stream().anyMatch(ds -> checkIfPrimitiveDuplicatesPrimitiveInDataSet(way, ds)))
+        removeAlreadyAddedData(dataSet, dataSet.getWays());
+    }
+
+    /**
+     * Remove ways that have already been added to an OSM layer
+     *
+     * @param dataSet The dataset with potential duplicate ways (it is modified)
+     * @param ways    The ways in the dataset to check
+     */
+    static void removeAlreadyAddedData(DataSet dataSet, Collection<Way> ways) {
+        final List<DataSet> osmData = MainApplication.getLayerManager().getLayersOfType(OsmDataLayer.class).stream()
+                .map(OsmDataLayer::getDataSet).filter(ds -> !ds.equals(dataSet)).collect(Collectors.toList());
+        if (osmData.isEmpty()) {
+            return;
+        }
+        ways.stream().filter(way -> !way.isDeleted() && way.getOsmId() <= 0)
+                .filter(way -> osmData.stream().anyMatch(ds -> isAlreadyAdded(ds, way))).collect(Collectors.toList())
                 .forEach(way -> {
                     final List<Node> nodes = way.getNodes();
                     DeleteCommand.delete(Collections.singleton(way), true, true).executeCommand();
@@ -242,10 +386,22 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
                 });
     }
 
-    private static boolean checkIfPrimitiveDuplicatesPrimitiveInDataSet(OsmPrimitive primitive, DataSet ds) {
-        final List<OsmPrimitive> possibleDuplicates = searchDataSet(ds, primitive);
-        return possibleDuplicates.parallelStream().filter(prim -> !prim.isDeleted())
-                .anyMatch(prim -> checkIfProbableDuplicate(prim, primitive));
+    /**
+     * Check if a way has already been added to a dataset
+     *
+     * @param ds  The dataset to check (this may be modified in the EDT, so it is
+     *            read locked)
+     * @param way The way to look for
+     * @return {@code true} if the dataset has a probable duplicate of the way
+     */
+    private static boolean isAlreadyAdded(DataSet ds, Way way) {
+        ds.getReadLock().lock();
+        try {
+            return WayFingerprintIndex.getIndex(ds).getCandidates(way).stream()
+                    .anyMatch(prim -> !prim.isDeleted() && checkIfProbableDuplicate(prim, way));
+        } finally {
+            ds.getReadLock().unlock();
+        }
     }
 
     private static boolean checkIfProbableDuplicate(OsmPrimitive one, OsmPrimitive two) {
@@ -272,33 +428,21 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
         return equivalent;
     }
 
-    private static <T extends AbstractPrimitive> List<OsmPrimitive> searchDataSet(DataSet ds, T primitive) {
-        List<OsmPrimitive> returnList = Collections.emptyList();
-        if (primitive instanceof OsmPrimitive) {
-            final BBox tBBox = new BBox();
-            tBBox.addPrimitive((OsmPrimitive) primitive, DEGREE_BUFFER);
-            if (primitive instanceof Node) {
-                returnList = new ArrayList<>(ds.searchNodes(tBBox));
-            } else if (primitive instanceof Way) {
-                returnList = new ArrayList<>(ds.searchWays(tBBox));
-            } else if (primitive instanceof Relation) {
-                returnList = new ArrayList<>(ds.searchRelations(tBBox));
-            }
-        }
-        return returnList;
-    }
-
     /**
      * Replace tags in a dataset with a set of replacement tags
      *
      * @param dataSet The dataset with primitives to change
      */
     public static void replaceTags(DataSet dataSet) {
-        final Map<Tag, Tag> replaceTags = MapWithAIPreferenceHelper.getReplacementTags().entrySet().parallelStream()
+        replaceTags(dataSet, getReplacementTags());
+    }
+
+    private static Map<Tag, Tag> getReplacementTags() {
+        return MapWithAIPreferenceHelper.getReplacementTags().entrySet().stream()
                 .filter(entry -> entry.getKey().contains(EQUALS) && entry.getValue().contains(EQUALS))
                 .map(entry -> new Pair<>(Tag.ofString(entry.getKey()), Tag.ofString(entry.getValue())))
-                .collect(Collectors.toMap(pair -> pair.a, pair -> pair.b));
-        replaceTags(dataSet, replaceTags);
+                .collect(Collectors.toMap(pair -> pair.a, pair -> pair.b, (first, second) -> second,
+                        LinkedHashMap::new));
     }
 
     /**
@@ -308,8 +452,7 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
      * @param replaceTags The tags to replace
      */
     public static void replaceTags(DataSet dataSet, Map<Tag, Tag> replaceTags) {
-        replaceTags.forEach((orig, replace) -> dataSet.allNonDeletedPrimitives().parallelStream()
-                .filter(prim -> prim.hasTag(orig.getKey(), orig.getValue())).forEach(prim -> prim.put(replace)));
+        new TagCleanupRules().replaceTags(replaceTags).apply(dataSet);
     }
 
     /**
@@ -319,31 +462,7 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
      * @param replaceKeys The keys to replace (does not replace values)
      */
     public static void replaceKeys(DataSet dataSet, Map<String, String> replaceKeys) {
-        replaceKeys.entrySet().stream().filter(e -> !e.getKey().equals(e.getValue())).forEach(
-                e -> dataSet.allNonDeletedPrimitives().stream().filter(p -> p.hasKey(e.getKey())).forEach(p -> {
-                    p.put(e.getValue(), p.get(e.getKey()));
-                    p.remove(e.getKey());
-                }));
-    }
-
-    private static void cleanupDataSet(DataSet dataSet) {
-        Map<OsmPrimitive, String> origIds = dataSet.allPrimitives().parallelStream()
-                .filter(prim -> prim.hasKey(MergeDuplicateWays.ORIG_ID)).distinct()
-                .collect(Collectors.toMap(prim -> prim, prim -> prim.get(MergeDuplicateWays.ORIG_ID)));
-        final Map<OsmPrimitive, String> serverIds = dataSet.allPrimitives().parallelStream()
-                .filter(prim -> prim.hasKey(SERVER_ID_KEY)).distinct()
-                .collect(Collectors.toMap(prim -> prim, prim -> prim.get(SERVER_ID_KEY)));
-
-        final List<OsmPrimitive> toDelete = origIds.entrySet().parallelStream()
-                .filter(entry -> serverIds.containsValue(entry.getValue())).map(Map.Entry::getKey)
-                .collect(Collectors.toList());
-        if (!toDelete.isEmpty()) {
-            new DeleteCommand(toDelete).executeCommand();
-        }
-        origIds = origIds.entrySet().parallelStream().filter(entry -> !toDelete.contains(entry.getKey()))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-        serverIds.forEach((prim, str) -> prim.remove(SERVER_ID_KEY));
-        origIds.forEach((prim, str) -> prim.remove(MergeDuplicateWays.ORIG_ID));
+        new TagCleanupRules().renameKeys(replaceKeys).apply(dataSet);
     }
 
     /**
@@ -352,91 +471,42 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
      * @param dataSet The dataset to remove tags from
      */
     public static void removeCommonTags(DataSet dataSet) {
-        dataSet.allPrimitives().parallelStream().filter(prim -> prim.hasKey(MergeDuplicateWays.ORIG_ID))
-                .forEach(prim -> prim.remove(MergeDuplicateWays.ORIG_ID));
-        dataSet.getNodes().parallelStream().forEach(node -> node.remove(SERVER_ID_KEY));
-        final List<Node> emptyNodes = dataSet.getNodes().parallelStream().distinct().filter(node -> !node.isDeleted())
-                .filter(node -> node.getReferrers().isEmpty() && !node.hasKeys()).collect(Collectors.toList());
-        if (!emptyNodes.isEmpty()) {
-            new DeleteCommand(emptyNodes).executeCommand();
-        }
+        new TagCleanupRules().removeKeys(MergeDuplicateWays.ORIG_ID).removeNodeKeys(SERVER_ID_KEY).deleteEmptyNodes()
+                .apply(dataSet);
     }
 
-    private static void mergeNodes(DataSet dataSet) {
-        final List<Node> nodes = dataSet.getNodes().parallelStream().filter(node -> !node.isDeleted())
-                .collect(Collectors.toList());
-        for (int i = 0; i < nodes.size(); i++) {
-            final Node n1 = nodes.get(i);
-            final List<Node> nearbyNodes = nearbyNodes(dataSet, n1);
-            final Command mergeCommand = MergeNodesAction.mergeNodes(nearbyNodes, n1);
-            if (mergeCommand != null) {
-                mergeCommand.executeCommand();
-                nodes.removeAll(nearbyNodes);
+    /**
+     * Add the missing nodes to ways that share part of their geometry
+     *
+     * @param ways  The ways to check
+     * @param index The index of the ways (and the ways connected to them)
+     */
+    static void mergeWays(Collection<Way> ways, WaySegmentIndex index) {
+        for (Way way1 : new ArrayList<>(ways)) {
+            if (way1.isDeleted()) {
+                continue;
             }
-        }
-    }
-
-    private static List<Node> nearbyNodes(DataSet ds, Node nearNode) {
-        final BBox bbox = new BBox();
-        bbox.addPrimitive(nearNode, DEGREE_BUFFER);
-        return ds.searchNodes(bbox).parallelStream().filter(node -> usableNode(nearNode, node))
-                .collect(Collectors.toList());
-    }
-
-    private static boolean usableNode(Node nearNode, Node node) {
-        return basicNodeChecks(nearNode, node) && onlyHasHighwayParents(node)
-                && ((keyCheck(nearNode, node)
-                        && distanceCheck(nearNode, node, MapWithAIPreferenceHelper.getMaxNodeDistance()))
-                        || (!nearNode.getKeys().isEmpty() && nearNode.getKeys().equals(node.getKeys())
-                                && distanceCheck(nearNode, node, MapWithAIPreferenceHelper.getMaxNodeDistance() * 10)));
-    }
-
-    private static boolean distanceCheck(Node nearNode, Node node, Double distance) {
-        return !(nearNode == null || node == null) && nearNode.getCoor().greatCircleDistance(node.getCoor()) < distance;
-    }
-
-    private static boolean keyCheck(Node nearNode, Node node) {
-        return nearNode.getKeys().equals(node.getKeys()) || nearNode.getKeys().isEmpty() || node.getKeys().isEmpty();
-    }
-
-    private static boolean onlyHasHighwayParents(Node node) {
-        return node.getReferrers().parallelStream().allMatch(prim -> prim.hasKey("highway"));
-    }
-
-    private static boolean basicNodeChecks(Node nearNode, Node node) {
-        return node != null && nearNode != null && !node.isDeleted() && !nearNode.isDeleted() && !nearNode.equals(node)
-                && node.isLatLonKnown() && nearNode.isLatLonKnown();
-    }
-
-    private static void mergeWays(DataSet dataSet) {
-        final List<Way> ways = dataSet.getWays().parallelStream().filter(way -> !way.isDeleted())
-                .collect(Collectors.toList());
-        for (int i = 0; i < ways.size(); i++) {
-            final Way way1 = ways.get(i);
-            final BBox bbox = new BBox();
-            bbox.addPrimitive(way1, DEGREE_BUFFER);
-            final List<Way> nearbyWays = dataSet.searchWays(bbox).parallelStream().filter(
-                    way -> way.getNodes().parallelStream().filter(node -> way1.getNodes().contains(node)).count() > 1)
+            // Ways that share a segment (two nodes) with the way
+            final List<Map.Entry<IWaySegment<Node, Way>, List<IWaySegment<Node, Way>>>> partials = index
+                    .getWaysSharingNodes(way1, 2).stream()
+                    .flatMap(way2 -> checkWayDuplications(way1, way2, index).entrySet().stream())
                     .collect(Collectors.toList());
-            way1.getNodePairs(false);
-            nearbyWays.parallelStream().flatMap(way2 -> checkWayDuplications(way1, way2).entrySet().parallelStream())
-                    .forEach(GetDataRunnable::addMissingElement);
+            if (!partials.isEmpty()) {
+                partials.forEach(GetDataRunnable::addMissingElement);
+                index.update(way1);
+            }
         }
     }
 
     protected static void addMissingElement(Map.Entry<IWaySegment<Node, Way>, List<IWaySegment<Node, Way>>> entry) {
         final Way way = entry.getKey().getWay();
-        final Way waySegmentWay;
-        try {
-            waySegmentWay = entry.getKey().toWay();
-        } catch (ReflectiveOperationException e) {
-            throw new JosmRuntimeException(e);
-        }
-        final Node toAdd = entry.getValue().parallelStream()
-                .flatMap(seg -> Arrays.asList(seg.getFirstNode(), seg.getSecondNode()).parallelStream())
-                .filter(node -> !waySegmentWay.containsNode(node)).findAny().orElse(null);
-        if ((toAdd != null) && (convertToMeters(
-                Geometry.getDistance(waySegmentWay, toAdd)) < (MapWithAIPreferenceHelper.getMaxNodeDistance() * 10))) {
+        final Node first = entry.getKey().getFirstNode();
+        final Node second = entry.getKey().getSecondNode();
+        final Node toAdd = entry.getValue().stream()
+                .flatMap(seg -> Stream.of(seg.getFirstNode(), seg.getSecondNode()))
+                .filter(node -> !node.equals(first) && !node.equals(second)).findFirst().orElse(null);
+        if ((toAdd != null) && (convertToMeters(getDistance(first, second, toAdd)) < (MapWithAIPreferenceHelper
+                .getMaxNodeDistance() * 10))) {
             way.addNode(entry.getKey().getUpperIndex(), toAdd);
         }
         for (int i = 0; i < (way.getNodesCount() - 2); i++) {
@@ -451,34 +521,81 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
         }
     }
 
+    /**
+     * Get the distance from a node to a segment
+     *
+     * @param first  The first node of the segment
+     * @param second The second node of the segment
+     * @param node   The node
+     * @return The distance in east/north units
+     */
+    private static double getDistance(Node first, Node second, Node node) {
+        final EastNorth point = node.getEastNorth();
+        return Geometry.closestPointToSegment(first.getEastNorth(), second.getEastNorth(), point).distance(point);
+    }
+
     protected static double convertToMeters(double value) {
         return value * ProjectionRegistry.getProjection().getMetersPerUnit();
     }
 
     protected static void cleanupArtifacts(Way way) {
-        for (int i = 0; i < (way.getNodesCount() - 2); i++) {
-            final Node node0 = way.getNode(i);
-            final Node node1 = way.getNode(i + 1);
-            final Node node2 = way.getNode(i + 2);
-            final double angle = Geometry.getCornerAngle(node0.getEastNorth(), node1.getEastNorth(),
-                    node2.getEastNorth());
-            if (angle < ARTIFACT_ANGLE) {
-                final List<Node> nodes = way.getNodes();
-                nodes.remove(i + 1); // NOSONAR not an issue since I'm adding it back
-                nodes.add(i + 2, node1);
+        cleanupArtifacts(way, null);
+    }
+
+    /**
+     * Clean up artifacts in a way. Sharp corners where the next node doubles
+     * back are fixed by swapping the nodes (the first and last nodes are not
+     * moved), and two node ways that are on top of another way are deleted.
+     *
+     * @param way   The way to clean up
+     * @param index The index of the ways in the dataset, with a grid. May be
+     *              {@code null}, in which case the dataset is searched.
+     */
+    static void cleanupArtifacts(Way way, WaySegmentIndex index) {
+        final WayGeometryKernel kernel = WayGeometryKernel.get();
+        if (!kernel.load(way)) {
+            return;
+        }
+        // The first and last nodes are never swapped, since that would move the end of
+        // the way (or open a closed way)
+        for (int i = 0; i < (kernel.size() - 3); i++) {
+            // Only swap the nodes if that removes the sharp corner
+            if (Math.abs(kernel.getCornerAngle(i, i + 1, i + 2)) < ARTIFACT_ANGLE
+                    && Math.abs(kernel.getCornerAngle(i, i + 2, i + 1)) >= ARTIFACT_ANGLE) {
+                kernel.swap(i + 1, i + 2);
             }
         }
-        if ((way.getNodesCount() == 2) && (way.getDataSet() != null)) {
+        kernel.writeBack(way);
+        if ((kernel.size() == 2) && (way.getDataSet() != null)) {
+            final double maxDistance = MapWithAIPreferenceHelper.getMaxNodeDistance();
+            for (Way tWay : getNearbyWays(way, index)) {
+                if (!way.equals(tWay) && !tWay.isDeleted() && kernel.loadOther(tWay)
+                        && kernel.getDistanceToOther(0) < maxDistance && kernel.getDistanceToOther(1) < maxDistance) {
+                    way.setDeleted(true);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static Collection<Way> getNearbyWays(Way way, WaySegmentIndex index) {
+        if (index == null) {
             final BBox tBBox = new BBox();
             tBBox.addPrimitive(way, DEGREE_BUFFER);
-            if (way.getDataSet().searchWays(tBBox).parallelStream()
-                    .filter(tWay -> !way.equals(tWay) && !tWay.isDeleted())
-                    .anyMatch(tWay -> way.getNodes().parallelStream().filter(
-                            tNode -> Geometry.getDistance(tNode, tWay) < MapWithAIPreferenceHelper.getMaxNodeDistance())
-                            .count() == way.getNodesCount())) {
-                way.setDeleted(true);
+            return way.getDataSet().searchWays(tBBox);
+        }
+        // A way is only a duplicate if it is near every node
+        final double distance = MapWithAIPreferenceHelper.getMaxNodeDistance();
+        Set<Way> nearbyWays = null;
+        for (Node node : way.getNodes()) {
+            final Set<Way> nodeWays = index.getNearbyWays(node.getEastNorth(), distance);
+            if (nearbyWays == null) {
+                nearbyWays = nodeWays;
+            } else {
+                nearbyWays.retainAll(nodeWays);
             }
         }
+        return nearbyWays == null ? Collections.emptySet() : nearbyWays;
     }
 
     /**
@@ -491,37 +608,39 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
      */
     protected static Map<IWaySegment<Node, Way>, List<IWaySegment<Node, Way>>> checkWayDuplications(Way way1,
             Way way2) {
-        final List<IWaySegment<Node, Way>> waySegments1 = way1.getNodePairs(false).stream()
-                .map(pair -> IWaySegment.forNodePair(way1, pair.a, pair.b)).collect(Collectors.toList());
-        final List<IWaySegment<Node, Way>> waySegments2 = way2.getNodePairs(false).stream()
-                .map(pair -> IWaySegment.forNodePair(way2, pair.a, pair.b)).collect(Collectors.toList());
+        return checkWayDuplications(way1, way2, new WaySegmentIndex(Collections.singleton(way2)));
+    }
+
+    /**
+     * Check for nearly duplicate way sections
+     *
+     * @param way1  The way to map duplicate segments to
+     * @param way2  The way that may have duplicate segments
+     * @param index An index with (at least) the segments of {@code way2}
+     * @return A Map&lt;WaySegment to modify from way1, List&lt;WaySegments from
+     *         way2&gt; to make the segment conform to &gt;
+     */
+    private static Map<IWaySegment<Node, Way>, List<IWaySegment<Node, Way>>> checkWayDuplications(Way way1,
+            Way way2, WaySegmentIndex index) {
         final Map<IWaySegment<Node, Way>, List<IWaySegment<Node, Way>>> partials = new TreeMap<>();
-        for (final IWaySegment<Node, Way> segment1 : waySegments1) {
-            final Way waySegment1;
-            try {
-                waySegment1 = segment1.toWay();
-            } catch (ReflectiveOperationException e) {
-                throw new JosmRuntimeException(e);
+        for (int i = 0; i < way1.getNodesCount() - 1; i++) {
+            final IWaySegment<Node, Way> segment1 = new IWaySegment<>(way1, i);
+            final Node first = segment1.getFirstNode();
+            final Node second = segment1.getSecondNode();
+            if (first.equals(second)) {
+                continue;
             }
-            final List<IWaySegment<Node, Way>> replacements = waySegments2.parallelStream()
-                    .filter(seg2 -> waySegment1.isFirstLastNode(seg2.getFirstNode())
-                            || waySegment1.isFirstLastNode(seg2.getSecondNode()))
+            final List<IWaySegment<Node, Way>> replacements = index.getTouchingSegments(segment1, way2).stream()
                     .filter(seg -> {
-                        final Node node2 = waySegment1.isFirstLastNode(seg.getFirstNode()) ? seg.getFirstNode()
+                        final Node node2 = isEnd(segment1, seg.getFirstNode()) ? seg.getFirstNode()
                                 : seg.getSecondNode();
                         final Node node1 = node2.equals(seg.getFirstNode()) ? seg.getSecondNode() : seg.getFirstNode();
-                        final Node node3 = waySegment1.getNode(0).equals(node2) ? waySegment1.getNode(1)
-                                : waySegment1.getNode(0);
+                        final Node node3 = first.equals(node2) ? second : first;
                         return Math.abs(Geometry.getCornerAngle(node1.getEastNorth(), node2.getEastNorth(),
                                 node3.getEastNorth())) < (Math.PI / 4);
                     }).collect(Collectors.toList());
-            if ((replacements.size() != 2) || replacements.parallelStream().anyMatch(seg -> {
-                try {
-                    return waySegment1.getNodes().containsAll(seg.toWay().getNodes());
-                } catch (ReflectiveOperationException e) {
-                    throw new JosmRuntimeException(e);
-                }
-            })) {
+            if ((replacements.size() != 2) || replacements.stream()
+                    .anyMatch(seg -> isEnd(segment1, seg.getFirstNode()) && isEnd(segment1, seg.getSecondNode()))) {
                 continue;
             }
             partials.put(segment1, replacements);
@@ -529,26 +648,60 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
         return partials;
     }
 
+    private static boolean isEnd(IWaySegment<Node, Way> segment, Node node) {
+        return segment.getFirstNode().equals(node) || segment.getSecondNode().equals(node);
+    }
+
     /**
      * Actually get the data
      *
-     * @param bounds  The bounds to get the data from
-     * @param monitor Use to determine if the operation has been cancelled
+     * @param bounds            The bounds to get the data from
+     * @param maximumDimensions The maximum dimensions of a download
+     * @param partitionZoom     The zoom of the partition the bounds belong to.
+     *                          Tiles are never larger than the partition.
+     * @param monitor           Use to determine if the operation has been
+     *                          cancelled
+     * @param serverIdIndex     The index used to drop features that were already
+     *                          downloaded
      * @return A dataset with the data from the bounds
      */
-    private static DataSet getDataReal(Bounds bounds, ProgressMonitor monitor) {
+    private static DataSet getDataReal(Bounds bounds, int maximumDimensions, int partitionZoom,
+            ProgressMonitor monitor, ServerIdIndex serverIdIndex) {
         final DataSet dataSet = new DataSet();
         dataSet.setUploadPolicy(UploadPolicy.DISCOURAGED);
 
-        new ArrayList<>(MapWithAILayerInfo.getInstance().getLayers()).parallelStream().forEach(map -> {
+        final boolean crop = DetectTaskingManagerUtils.hasTaskingManagerLayer();
+        final LatLon center = MapWithAIDownloadScheduler.getViewportCenter();
+        final MapWithAIDownloadScheduler scheduler = MapWithAIDownloadScheduler.getInstance();
+        final List<Future<DataSet>> futures = new ArrayList<>();
+        for (MapWithAIInfo map : new ArrayList<>(MapWithAILayerInfo.getInstance().getLayers())) {
+            final List<MapWithAITile> tiles = MapWithAIPreferenceHelper.isTiledDownload()
+                    ? MapWithAITile.getTiles(Collections.singleton(bounds),
+                            Math.max(partitionZoom, MapWithAIDataUtils.getTileZoom(maximumDimensions, map)))
+                    : Collections.emptyList();
+            if (tiles.isEmpty()) {
+                futures.add(scheduler.submit(
+                        new BoundingBoxMapWithAIDownloader(bounds, map, crop).setServerIdIndex(serverIdIndex),
+                        MapWithAIDownloadScheduler.getPriority(bounds, center), monitor));
+            }
+            for (MapWithAITile tile : tiles) {
+                futures.add(scheduler.submit(
+                        new BoundingBoxMapWithAIDownloader(tile, map, crop).setServerIdIndex(serverIdIndex),
+                        MapWithAIDownloadScheduler.getPriority(tile.getBounds(), center), monitor));
+            }
+        }
+        for (Future<DataSet> future : futures) {
             try {
-                BoundingBoxMapWithAIDownloader downloader = new BoundingBoxMapWithAIDownloader(bounds, map,
-                        DetectTaskingManagerUtils.hasTaskingManagerLayer());
-                dataSet.mergeFrom(downloader.parseOsm(monitor));
-            } catch (OsmTransferException e1) {
-                Logging.debug(e1);
+                dataSet.mergeFrom(MapWithAIDownloadScheduler.await(future, monitor));
+            } catch (ExecutionException | CancellationException e) {
+                Logging.debug(e);
+            } catch (InterruptedException e) {
+                Logging.debug(e);
+                Thread.currentThread().interrupt();
+                MapWithAIDownloadScheduler.cancel(futures);
+                break;
             }
-        });
+        }
         dataSet.setUploadPolicy(UploadPolicy.BLOCKED);
         return dataSet;
     }
@@ -578,19 +731,10 @@ public class GetDataRunnable extends RecursiveTask<DataSet> {
     }
 
     private static DataSet addTag(DataSet dataSet, String key, String value) {
-        dataSet.getNodes().parallelStream().filter(p -> checkIfMapWithAISourceShouldBeAdded(p, key))
-                .filter(node -> node.getReferrers().isEmpty()).forEach(node -> node.put(key, value));
-        dataSet.getWays().parallelStream().filter(p -> checkIfMapWithAISourceShouldBeAdded(p, key))
-                .forEach(way -> way.put(key, value));
-        dataSet.getRelations().parallelStream().filter(p -> checkIfMapWithAISourceShouldBeAdded(p, key))
-                .forEach(rel -> rel.put(key, value));
+        new TagCleanupRules().addSource(key, value).apply(dataSet);
         return dataSet;
     }
 
-    private static boolean checkIfMapWithAISourceShouldBeAdded(OsmPrimitive prim, String key) {
-        return !prim.isDeleted() && !prim.hasTag(key);
-    }
-
     /**
      * Set the info that is being used to download data
      *
@@ -0,0 +1,191 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.preferences.BooleanProperty;
+import org.openstreetmap.josm.data.projection.Projection;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.commands.ConnectedCommand;
+import org.openstreetmap.josm.plugins.mapwithai.commands.DuplicateCommand;
+import org.openstreetmap.josm.tools.Geometry;
+
+/**
+ * Conflate downloaded data with the OSM data locally, for sources that do not
+ * have a conflation server. This adds the same {@code conn} and {@code dupe}
+ * tags that a conflation server would, so that the
+ * {@link org.openstreetmap.josm.plugins.mapwithai.commands.CreateConnectionsCommand}
+ * can use them when the data is added. Building/address matches are already
+ * found locally when the data is added, so they are not tagged here.
+ */
+public final class LocalConflation {
+    /**
+     * Whether or not to conflate data locally when there is no conflation server.
+     * This is off by default, since the tags change what happens when the data is
+     * added to the OSM layer.
+     */
+    static final BooleanProperty ENABLED = new BooleanProperty(MapWithAIPlugin.NAME.concat(".conflation.local"),
+            false);
+    /**
+     * The maximum distance between a way end and an OSM way (east/north units).
+     * This is the same as {@link ConnectedCommand#addNodesToWay}.
+     */
+    static final double MAX_CONNECTION_DISTANCE = 5;
+    private static final String HIGHWAY = "highway";
+
+    private LocalConflation() {
+        // Hide the constructor
+    }
+
+    /**
+     * Check if local conflation is enabled
+     *
+     * @return {@code true} if data should be conflated locally
+     */
+    public static boolean isEnabled() {
+        return ENABLED.get();
+    }
+
+    /**
+     * Conflate downloaded data with OSM data. The OSM data is only read. Since
+     * the tags depend upon the OSM data, this should be run every time the data is
+     * used (e.g., on cached tiles), and the result should not be cached.
+     *
+     * @param externalData The downloaded data (not yet in a layer)
+     * @param osmData      The OSM data to conflate with
+     * @return The number of nodes that were tagged
+     */
+    public static int conflate(DataSet externalData, DataSet osmData) {
+        if (externalData == null || osmData == null || externalData.isEmpty() || osmData.isEmpty()) {
+            return 0;
+        }
+        final Projection projection = ProjectionRegistry.getProjection();
+        final Set<Node> nodes = new LinkedHashSet<>();
+        final Set<Node> ends = new LinkedHashSet<>();
+        for (Way way : externalData.getWays()) {
+            if (isUsable(way) && way.hasKey(HIGHWAY)) {
+                way.getNodes().stream().filter(LocalConflation::isUsable).forEach(nodes::add);
+                if (!way.isClosed()) {
+                    ends.add(way.firstNode());
+                    ends.add(way.lastNode());
+                }
+            }
+        }
+        int tagged = 0;
+        osmData.getReadLock().lock();
+        try {
+            for (Node node : nodes) {
+                if (node.hasKey(ConnectedCommand.KEY) || node.hasKey(DuplicateCommand.KEY)) {
+                    continue;
+                }
+                final EastNorth en = node.getEastNorth(projection);
+                final BBox bbox = getBBox(projection, en);
+                final Node duplicate = getDuplicate(osmData.searchNodes(bbox), node);
+                if (duplicate != null) {
+                    node.put(DuplicateCommand.KEY, getId(duplicate));
+                    tagged++;
+                } else if (ends.contains(node)) {
+                    final String connection = getConnection(osmData.searchWays(bbox), en, projection);
+                    if (connection != null) {
+                        node.put(ConnectedCommand.KEY, connection);
+                        tagged++;
+                    }
+                }
+            }
+        } finally {
+            osmData.getReadLock().unlock();
+        }
+        return tagged;
+    }
+
+    /**
+     * Get the OSM node at the same location as a downloaded node
+     *
+     * @param candidates The OSM nodes near the downloaded node
+     * @param node       The downloaded node
+     * @return The OSM node to merge with, or {@code null}
+     */
+    private static Node getDuplicate(Collection<Node> candidates, Node node) {
+        return candidates.stream().filter(LocalConflation::isReferencable)
+                .filter(osm -> osm.getCoor().equalsEpsilon(node.getCoor()))
+                .filter(osm -> osm.referrers(Way.class).anyMatch(way -> way.hasKey(HIGHWAY))).findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Get the closest OSM highway segment to a downloaded node
+     *
+     * @param candidates The OSM ways near the downloaded node
+     * @param en         The location of the downloaded node
+     * @param projection The projection to use
+     * @return The {@code conn} value, or {@code null} if no segment is close
+     *         enough
+     */
+    private static String getConnection(Collection<Way> candidates, EastNorth en, Projection projection) {
+        double closest = MAX_CONNECTION_DISTANCE;
+        String connection = null;
+        for (Way way : candidates) {
+            if (!isReferencable(way) || !way.hasKey(HIGHWAY)) {
+                continue;
+            }
+            final List<Node> wayNodes = way.getNodes();
+            for (int i = 0; i < wayNodes.size() - 1; i++) {
+                final Node first = wayNodes.get(i);
+                final Node second = wayNodes.get(i + 1);
+                if (!isReferencable(first) || !isReferencable(second)) {
+                    continue;
+                }
+                final EastNorth firstEn = first.getEastNorth(projection);
+                final EastNorth secondEn = second.getEastNorth(projection);
+                final double distance = Geometry.closestPointToSegment(firstEn, secondEn, en).distance(en);
+                if (distance < closest) {
+                    closest = distance;
+                    connection = String.join(",", getId(way), getId(first), getId(second));
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Get the id of a primitive, as used in the conflation tags
+     *
+     * @param primitive The primitive
+     * @return The id (e.g., {@code n1})
+     */
+    static String getId(OsmPrimitive primitive) {
+        return primitive.getType().getAPIName().charAt(0) + Long.toString(primitive.getUniqueId());
+    }
+
+    private static BBox getBBox(Projection projection, EastNorth en) {
+        final LatLon min = projection.eastNorth2latlon(en.add(-MAX_CONNECTION_DISTANCE, -MAX_CONNECTION_DISTANCE));
+        final LatLon max = projection.eastNorth2latlon(en.add(MAX_CONNECTION_DISTANCE, MAX_CONNECTION_DISTANCE));
+        return new BBox(min.lon(), min.lat(), max.lon(), max.lat());
+    }
+
+    private static boolean isUsable(OsmPrimitive primitive) {
+        return !primitive.isDeleted() && !primitive.isIncomplete()
+                && (!(primitive instanceof Node) || ((Node) primitive).isLatLonKnown());
+    }
+
+    /**
+     * Check if a primitive can be referenced by a conflation tag
+     *
+     * @param primitive The OSM primitive
+     * @return {@code true} if the primitive has been uploaded and is usable
+     */
+    private static boolean isReferencable(OsmPrimitive primitive) {
+        return !primitive.isNew() && isUsable(primitive);
+    }
+}
@@ -0,0 +1,223 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+
+/**
+ * Keep track of the areas that have been downloaded from each source. Coverage
+ * is stored as a pyramid of bits over the {@link MapWithAITile} grid, from
+ * {@link #CHUNK_ZOOM} down to {@link #BASE_ZOOM}. A tile is covered when its
+ * bit (or the bit of one of its ancestors) is set, and a parent is marked as
+ * covered as soon as its four children are, so checking a tile does not depend
+ * upon how much has already been downloaded.
+ * <p>
+ * Areas that are not aligned to the tile grid are approximated by the
+ * {@link #BASE_ZOOM} tiles (roughly 150m) whose centers are in the area.
+ */
+public final class MapWithAICoverageIndex {
+    /** The zoom of the smallest tiles that are tracked */
+    static final int BASE_ZOOM = 18;
+    /** The zoom of the tiles that each chunk of bits covers */
+    static final int CHUNK_ZOOM = 10;
+
+    private final Map<String, Map<Long, BitSet>> coverage = new HashMap<>();
+
+    /**
+     * Mark a tile as downloaded
+     *
+     * @param info The source of the data
+     * @param tile The tile that was downloaded
+     */
+    public synchronized void add(MapWithAIInfo info, MapWithAITile tile) {
+        if (tile.getZoom() < CHUNK_ZOOM) {
+            tile.getChildren().forEach(child -> add(info, child));
+        } else if (tile.getZoom() <= BASE_ZOOM) {
+            mark(coverage.computeIfAbsent(MapWithAIDownloadScheduler.getSourceKey(info), key -> new HashMap<>()),
+                    tile);
+        }
+        // Tiles smaller than the base tiles never fully cover a base tile
+    }
+
+    /**
+     * Mark an area as downloaded
+     *
+     * @param info   The source of the data
+     * @param bounds The area that was downloaded
+     */
+    public synchronized void add(MapWithAIInfo info, Bounds bounds) {
+        if (bounds == null || bounds.isOutOfTheWorld()) {
+            return;
+        }
+        final List<MapWithAITile> tiles = getTiles(bounds);
+        if (tiles.isEmpty()) {
+            add(info, getCenterTile(bounds));
+        } else {
+            tiles.forEach(tile -> add(info, tile));
+        }
+    }
+
+    /**
+     * Check if a tile has been downloaded
+     *
+     * @param info The source of the data
+     * @param tile The tile to check
+     * @return {@code true} if the tile has been downloaded
+     */
+    public synchronized boolean isCovered(MapWithAIInfo info, MapWithAITile tile) {
+        final Map<Long, BitSet> chunks = coverage.get(MapWithAIDownloadScheduler.getSourceKey(info));
+        return chunks != null && isCovered(chunks, tile);
+    }
+
+    /**
+     * Check if an area has been downloaded
+     *
+     * @param info   The source of the data
+     * @param bounds The area to check
+     * @return {@code true} if the area has been downloaded
+     */
+    public synchronized boolean isCovered(MapWithAIInfo info, Bounds bounds) {
+        if (bounds == null || bounds.isOutOfTheWorld()) {
+            return true;
+        }
+        final Map<Long, BitSet> chunks = coverage.get(MapWithAIDownloadScheduler.getSourceKey(info));
+        if (chunks == null) {
+            return false;
+        }
+        final List<MapWithAITile> tiles = getTiles(bounds);
+        if (tiles.isEmpty()) {
+            return isCovered(chunks, getCenterTile(bounds));
+        }
+        return tiles.stream().allMatch(tile -> isCovered(chunks, tile));
+    }
+
+    /**
+     * Get the tiles in an area that have not been downloaded
+     *
+     * @param info   The source of the data
+     * @param bounds The areas to get tiles for
+     * @param zoom   The zoom of the tiles
+     * @return The tiles that have not been downloaded
+     */
+    public synchronized List<MapWithAITile> getMissingTiles(MapWithAIInfo info, Collection<Bounds> bounds,
+            int zoom) {
+        return MapWithAITile.getTiles(bounds, zoom).stream().filter(tile -> !isCovered(info, tile))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Forget everything that has been downloaded
+     */
+    public synchronized void clear() {
+        coverage.clear();
+    }
+
+    private static void mark(Map<Long, BitSet> chunks, MapWithAITile tile) {
+        final int shift = tile.getZoom() - CHUNK_ZOOM;
+        final BitSet bits = chunks.computeIfAbsent(getChunkKey(tile), key -> new BitSet());
+        int level = shift;
+        int x = tile.getX() & ((1 << shift) - 1);
+        int y = tile.getY() & ((1 << shift) - 1);
+        bits.set(getIndex(level, x, y));
+        // Mark the parents that are now completely covered
+        while (level > 0) {
+            final int parentX = x >> 1;
+            final int parentY = y >> 1;
+            for (int i = 0; i < 4; i++) {
+                if (!bits.get(getIndex(level, 2 * parentX + (i & 1), 2 * parentY + (i >> 1)))) {
+                    return;
+                }
+            }
+            level--;
+            x = parentX;
+            y = parentY;
+            bits.set(getIndex(level, x, y));
+        }
+    }
+
+    private static boolean isCovered(Map<Long, BitSet> chunks, MapWithAITile tile) {
+        if (tile.getZoom() < CHUNK_ZOOM) {
+            return tile.getChildren().stream().allMatch(child -> isCovered(chunks, child));
+        }
+        final int shift = Math.min(tile.getZoom(), BASE_ZOOM) - CHUNK_ZOOM;
+        final int extra = tile.getZoom() - CHUNK_ZOOM - shift;
+        final BitSet bits = chunks.get(getChunkKey(tile));
+        if (bits == null) {
+            return false;
+        }
+        int x = (tile.getX() >> extra) & ((1 << shift) - 1);
+        int y = (tile.getY() >> extra) & ((1 << shift) - 1);
+        for (int level = shift; level >= 0; level--) {
+            if (bits.get(getIndex(level, x, y))) {
+                return true;
+            }
+            x >>= 1;
+            y >>= 1;
+        }
+        return false;
+    }
+
+    /**
+     * Get the index of a tile in a chunk
+     *
+     * @param level The level in the chunk (0 is the chunk tile itself)
+     * @param x     The x of the tile, relative to the chunk
+     * @param y     The y of the tile, relative to the chunk
+     * @return The index of the bit for the tile
+     */
+    private static int getIndex(int level, int x, int y) {
+        // Levels 0..level-1 take (4^level - 1) / 3 bits
+        return ((1 << (2 * level)) - 1) / 3 + (y << level) + x;
+    }
+
+    private static long getChunkKey(MapWithAITile tile) {
+        final int shift = tile.getZoom() - CHUNK_ZOOM;
+        return ((long) (tile.getX() >> shift) << 32) | (tile.getY() >> shift);
+    }
+
+    /**
+     * Get the tiles that make up an area. Tiles that are completely in the area are
+     * returned at the lowest possible zoom, and the edges are approximated by the
+     * base tiles whose centers are in the area.
+     *
+     * @param bounds The area
+     * @return The tiles in the area
+     */
+    private static List<MapWithAITile> getTiles(Bounds bounds) {
+        final List<MapWithAITile> tiles = new ArrayList<>();
+        MapWithAITile.getTiles(bounds, CHUNK_ZOOM).forEach(tile -> getTiles(bounds, tile, tiles));
+        return tiles;
+    }
+
+    private static void getTiles(Bounds bounds, MapWithAITile tile, List<MapWithAITile> tiles) {
+        final Bounds tileBounds = tile.getBounds();
+        if (bounds.contains(tileBounds.getMin()) && bounds.contains(tileBounds.getMax())) {
+            tiles.add(tile);
+        } else if (tile.getZoom() >= BASE_ZOOM) {
+            if (bounds.contains(tileBounds.getCenter())) {
+                tiles.add(tile);
+            }
+        } else {
+            for (MapWithAITile child : tile.getChildren()) {
+                final Bounds childBounds = child.getBounds();
+                if (childBounds.getMinLat() < bounds.getMaxLat() && childBounds.getMaxLat() > bounds.getMinLat()
+                        && childBounds.getMinLon() < bounds.getMaxLon()
+                        && childBounds.getMaxLon() > bounds.getMinLon()) {
+                    getTiles(bounds, child, tiles);
+                }
+            }
+        }
+    }
+
+    private static MapWithAITile getCenterTile(Bounds bounds) {
+        return MapWithAITile.fromLatLon(bounds.getCenter().lat(), bounds.getCenter().lon(), BASE_ZOOM);
+    }
+}
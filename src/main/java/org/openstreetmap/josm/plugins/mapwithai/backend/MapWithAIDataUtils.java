@@ -4,16 +4,21 @@ package org.openstreetmap.josm.plugins.mapwithai.backend;
 import static org.openstreetmap.josm.gui.help.HelpUtil.ht;
 import static org.openstreetmap.josm.tools.I18n.tr;
 
-import java.awt.geom.Area;
 import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import javax.swing.JOptionPane;
@@ -30,12 +35,15 @@ import org.openstreetmap.josm.gui.ConditionalOptionPaneUtil;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.Notification;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 import org.openstreetmap.josm.gui.progress.swing.PleaseWaitProgressMonitor;
 import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.io.IllegalDataException;
 import org.openstreetmap.josm.io.OsmTransferException;
 import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
 import org.openstreetmap.josm.plugins.mapwithai.commands.MapWithAIAddCommand;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAILayerInfo;
 import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.Utils;
@@ -136,43 +144,62 @@ public final class MapWithAIDataUtils {
      */
     public static DataSet getData(List<Bounds> bounds, int maximumDimensions) {
         final DataSet dataSet = new DataSet();
-        final List<Bounds> realBounds = bounds.stream().filter(b -> !b.isOutOfTheWorld()).distinct()
-                .flatMap(bound -> MapWithAIDataUtils.reduceBoundSize(bound, maximumDimensions).stream())
-                .collect(Collectors.toList());
+        getData(bounds, maximumDimensions, dataSet::mergeFrom, null);
+        return dataSet;
+    }
+
+    /**
+     * Get data from the API servers using a list of bounds, passing each
+     * downloaded tile to a consumer as soon as it is available
+     *
+     * @param bounds            The bounds from which to get data
+     * @param maximumDimensions The maximum dimensions to try to download at any one
+     *                          time
+     * @param consumer          The consumer for the downloaded data, called on the
+     *                          calling thread
+     * @param coverage          The areas that have already been downloaded, and
+     *                          which are updated as downloads finish (may be
+     *                          {@code null})
+     */
+    private static void getData(List<Bounds> bounds, int maximumDimensions, Consumer<DataSet> consumer,
+            MapWithAICoverageIndex coverage) {
+        final boolean tiled = MapWithAIPreferenceHelper.isTiledDownload();
+        final List<MapWithAITile> tiles = tiled ? getTiles(bounds, maximumDimensions) : Collections.emptyList();
+        final List<Bounds> realBounds = tiled ? Collections.emptyList()
+                : bounds.stream().filter(b -> !b.isOutOfTheWorld()).distinct()
+                        .flatMap(bound -> MapWithAIDataUtils.reduceBoundSize(bound, maximumDimensions).stream())
+                        .collect(Collectors.toList());
+        final List<?> requests = tiled ? tiles : realBounds;
         if (!MapWithAIPreferenceHelper.getMapWithAIUrl().isEmpty()) {
-            if ((bounds.size() < TOO_MANY_BBOXES) || confirmBigDownload(realBounds)) {
+            if ((bounds.size() < TOO_MANY_BBOXES) || confirmBigDownload(requests)) {
                 final PleaseWaitProgressMonitor monitor = new PleaseWaitProgressMonitor();
-                monitor.beginTask(tr("Downloading {0} Data", MapWithAIPlugin.NAME), realBounds.size());
                 try {
-                    realBounds.parallelStream()
-                            .forEach(bound -> new ArrayList<>(MapWithAIPreferenceHelper.getMapWithAIUrl())
-                                    .parallelStream().filter(i -> i.getUrl() != null && !i.getUrl().trim().isEmpty())
-                                    .forEach(i -> {
-                                        BoundingBoxMapWithAIDownloader downloader = new BoundingBoxMapWithAIDownloader(
-                                                bound, i, DetectTaskingManagerUtils.hasTaskingManagerLayer());
-                                        try {
-                                            DataSet ds = downloader.parseOsm(monitor.createSubTaskMonitor(1, false));
-                                            synchronized (MapWithAIDataUtils.class) {
-                                                dataSet.mergeFrom(ds);
-                                            }
-                                        } catch (OsmTransferException e) {
-                                            if (e.getCause() instanceof SocketTimeoutException
-                                                    && maximumDimensions > MAXIMUM_SIDE_DIMENSIONS / 10
-                                                    && maximumDimensions / 2f > 0.5) {
-                                                dataSet.mergeFrom(getData(bound, maximumDimensions / 2));
-                                            } else if (e.getCause() instanceof IllegalDataException) {
-                                                Logging.error(e);
-                                                Notification notification = new Notification();
-                                                notification.setContent(tr("MapWithAI servers may be down."));
-                                                GuiHelper.runInEDT(notification::show);
-                                            } else {
-                                                Logging.error(e);
-                                                Notification notification = new Notification();
-                                                notification.setContent(e.getLocalizedMessage());
-                                                GuiHelper.runInEDT(notification::show);
-                                            }
-                                        }
-                                    }));
+                    final LatLon center = MapWithAIDownloadScheduler.getViewportCenter();
+                    final Deque<PendingDownload> pending = new ArrayDeque<>();
+                    // Tiles (and reduced bounds) may have the same features
+                    final ServerIdIndex serverIdIndex = new ServerIdIndex();
+                    for (MapWithAIInfo info : getDownloadableUrls()) {
+                        if (!MapWithAIRetryScheduler.getInstance().isAvailable(info)) {
+                            // The source has been failing, wait for it to recover
+                            Logging.info("{0}: skipping {1}, it has failed too often", MapWithAIPlugin.NAME,
+                                    info.getName());
+                            continue;
+                        }
+                        if (tiled) {
+                            // Each source may use a different tile size
+                            getTiles(bounds, maximumDimensions, info).stream()
+                                    .filter(tile -> coverage == null || !coverage.isCovered(info, tile))
+                                    .forEach(tile -> pending.add(new PendingDownload(tile.getBounds(), tile, info,
+                                            maximumDimensions, center, serverIdIndex)));
+                        } else {
+                            realBounds.stream().filter(bound -> coverage == null || !coverage.isCovered(info, bound))
+                                    .forEach(bound -> pending.add(
+                                            new PendingDownload(bound, null, info, maximumDimensions, center,
+                                                    serverIdIndex)));
+                        }
+                    }
+                    monitor.beginTask(tr("Downloading {0} Data", MapWithAIPlugin.NAME), pending.size());
+                    getSourceData(consumer, pending, center, monitor, coverage);
                 } finally {
                     monitor.finishTask();
                     monitor.close();
@@ -193,10 +220,158 @@ public final class MapWithAIDataUtils {
                         () -> Logging.info("MapWithAI Sources: Initialized sources"));
             }
         }
-        return dataSet;
     }
 
-    private static boolean confirmBigDownload(List<Bounds> realBounds) {
+    private static List<MapWithAIInfo> getDownloadableUrls() {
+        return new ArrayList<>(MapWithAIPreferenceHelper.getMapWithAIUrl()).stream()
+                .filter(i -> i.getUrl() != null && !i.getUrl().trim().isEmpty()).collect(Collectors.toList());
+    }
+
+    /**
+     * Wait for downloads and merge them into a dataset
+     *
+     * @param consumer The consumer for the downloaded data
+     * @param pending  The downloads that have been submitted
+     * @param center   The center of the current view, used for any additional
+     *                 downloads
+     * @param monitor  The monitor to use
+     * @param coverage The coverage to update as downloads finish (may be
+     *                 {@code null})
+     */
+    private static void getSourceData(Consumer<DataSet> consumer, Deque<PendingDownload> pending, LatLon center,
+            ProgressMonitor monitor, MapWithAICoverageIndex coverage) {
+        while (!pending.isEmpty()) {
+            final PendingDownload download = pending.poll();
+            try {
+                consumer.accept(MapWithAIDownloadScheduler.await(download.future, monitor));
+                if (download.downloader.isRetryPending()) {
+                    // The coverage is added by the retry, if it succeeds
+                    Logging.debug("{0}: {1} will be retried", MapWithAIPlugin.NAME, download.bound);
+                } else if (coverage != null && download.tile != null) {
+                    coverage.add(download.info, download.tile);
+                } else if (coverage != null) {
+                    coverage.add(download.info, download.bound);
+                }
+            } catch (InterruptedException e) {
+                Logging.error(e);
+                Thread.currentThread().interrupt();
+                pending.forEach(p -> p.future.cancel(true));
+                return;
+            } catch (CancellationException e) {
+                Logging.trace(e);
+            } catch (ExecutionException e) {
+                handleDownloadException(consumer, pending, download, e.getCause(), center, coverage);
+            }
+            if (!download.retry) {
+                monitor.worked(1);
+            }
+            if (monitor.isCanceled()) {
+                pending.forEach(p -> p.future.cancel(true));
+                return;
+            }
+        }
+    }
+
+    private static void handleDownloadException(Consumer<DataSet> consumer, Deque<PendingDownload> pending,
+            PendingDownload download, Throwable e, LatLon center, MapWithAICoverageIndex coverage) {
+        final Throwable cause = e instanceof OsmTransferException ? e.getCause() : e;
+        if (cause instanceof SocketTimeoutException && download.tile != null
+                && MapWithAITile.getDimensionsForZoom(download.tile.getZoom()) > MAXIMUM_SIDE_DIMENSIONS / 10) {
+            // Try again with the next tile level down
+            download.tile.getChildren()
+                    .forEach(child -> pending.add(new PendingDownload(child.getBounds(), child, download.info,
+                            download.maximumDimensions / 2, center, download.serverIdIndex).setRetry()));
+        } else if (cause instanceof SocketTimeoutException && download.tile == null
+                && download.maximumDimensions > MAXIMUM_SIDE_DIMENSIONS / 10
+                && download.maximumDimensions / 2f > 0.5) {
+            getData(Collections.singletonList(download.bound), download.maximumDimensions / 2, consumer, coverage);
+        } else if (cause instanceof IllegalDataException) {
+            Logging.error(e);
+            Notification notification = new Notification();
+            notification.setContent(tr("MapWithAI servers may be down."));
+            GuiHelper.runInEDT(notification::show);
+        } else {
+            Logging.error(e);
+            Notification notification = new Notification();
+            notification.setContent(e.getLocalizedMessage());
+            GuiHelper.runInEDT(notification::show);
+        }
+    }
+
+    /**
+     * A download that has been submitted to the {@link MapWithAIDownloadScheduler}
+     */
+    private static class PendingDownload {
+        final Bounds bound;
+        final MapWithAITile tile;
+        final MapWithAIInfo info;
+        final int maximumDimensions;
+        final ServerIdIndex serverIdIndex;
+        final BoundingBoxMapWithAIDownloader downloader;
+        final Future<DataSet> future;
+        boolean retry;
+
+        PendingDownload(Bounds bound, MapWithAITile tile, MapWithAIInfo info, int maximumDimensions,
+                LatLon center, ServerIdIndex serverIdIndex) {
+            this.bound = bound;
+            this.tile = tile;
+            this.info = info;
+            this.maximumDimensions = maximumDimensions;
+            this.serverIdIndex = serverIdIndex;
+            final boolean crop = DetectTaskingManagerUtils.hasTaskingManagerLayer();
+            this.downloader = (tile == null ? new BoundingBoxMapWithAIDownloader(bound, info, crop)
+                    : new BoundingBoxMapWithAIDownloader(tile, info, crop)).setServerIdIndex(serverIdIndex);
+            this.future = MapWithAIDownloadScheduler.getInstance().submit(downloader,
+                    MapWithAIDownloadScheduler.getPriority(bound, center), NullProgressMonitor.INSTANCE);
+        }
+
+        PendingDownload setRetry() {
+            this.retry = true;
+            return this;
+        }
+    }
+
+    /**
+     * Get the tiles to download for a set of bounds
+     *
+     * @param bounds            The bounds to get tiles for
+     * @param maximumDimensions The maximum dimensions of a tile
+     * @return The tiles that cover the bounds
+     */
+    public static List<MapWithAITile> getTiles(Collection<Bounds> bounds, int maximumDimensions) {
+        final int zoom = Math.max(MapWithAITile.getZoomForDimensions(maximumDimensions),
+                MapWithAIPreferenceHelper.getTileZoom());
+        return MapWithAITile.getTiles(bounds, zoom);
+    }
+
+    /**
+     * Get the tiles to download from a source for a set of bounds. The tile size
+     * depends upon how the source has performed in the past.
+     *
+     * @param bounds            The bounds to get tiles for
+     * @param maximumDimensions The maximum dimensions of a tile
+     * @param info              The source that will be downloaded from
+     * @return The tiles that cover the bounds
+     * @see MapWithAITileSizeController
+     */
+    public static List<MapWithAITile> getTiles(Collection<Bounds> bounds, int maximumDimensions, MapWithAIInfo info) {
+        return MapWithAITile.getTiles(bounds, getTileZoom(maximumDimensions, info));
+    }
+
+    /**
+     * Get the zoom of the tiles to download from a source
+     *
+     * @param maximumDimensions The maximum dimensions of a tile
+     * @param info              The source that will be downloaded from
+     * @return The zoom of the tiles
+     * @see #getTiles(Collection, int, MapWithAIInfo)
+     */
+    static int getTileZoom(int maximumDimensions, MapWithAIInfo info) {
+        return Math.max(MapWithAITile.getZoomForDimensions(maximumDimensions),
+                MapWithAITileSizeController.getInstance().getZoom(info));
+    }
+
+    private static boolean confirmBigDownload(List<?> realBounds) {
         ConfirmBigDownload confirmation = new ConfirmBigDownload(realBounds);
         GuiHelper.runInEDTAndWait(confirmation);
         return confirmation.confirmed();
@@ -327,28 +502,32 @@ public final class MapWithAIDataUtils {
      * @return true if data was downloaded
      */
     public static boolean getMapWithAIData(MapWithAILayer layer, Collection<Bounds> bounds) {
-        final DataSet mapWithAISet = layer.getDataSet();
-        Area area = mapWithAISet.getDataSourceArea();
-        final List<Bounds> toDownload = area == null ? new ArrayList<>(bounds)
-                : bounds.stream().filter(Objects::nonNull).filter(tBounds -> !area.contains(tBounds.asRect()))
-                        .collect(Collectors.toList());
+        final MapWithAICoverageIndex coverage = layer.getCoverage();
+        final List<MapWithAIInfo> urls = getDownloadableUrls();
+        // Only the tiles (or bounds) that have not been downloaded are fetched, see getData
+        final List<Bounds> toDownload = bounds.stream().filter(Objects::nonNull)
+                .filter(tBounds -> urls.isEmpty()
+                        || urls.stream().filter(MapWithAIRetryScheduler.getInstance()::isAvailable)
+                                .anyMatch(info -> !isCovered(coverage, info, tBounds)))
+                .collect(Collectors.toList());
         if (!toDownload.isEmpty()) {
             getForkJoinPool().execute(() -> {
-                final DataSet newData = getData(toDownload);
-                final Lock lock = layer.getLock();
-                lock.lock();
-                try {
-                    mapWithAISet.mergeFrom(newData);
-                    GetDataRunnable.cleanup(mapWithAISet, null, null);
-                } finally {
-                    lock.unlock();
-                }
-                toDownload.stream().forEach(layer::onPostDownloadFromServer);
+                final MapWithAIMergeQueue mergeQueue = layer.getMergeQueue();
+                getData(toDownload, MAXIMUM_SIDE_DIMENSIONS, mergeQueue::add, coverage);
+                mergeQueue.flush(toDownload);
             });
         }
         return !toDownload.isEmpty();
     }
 
+    private static boolean isCovered(MapWithAICoverageIndex coverage, MapWithAIInfo info, Bounds bounds) {
+        if (MapWithAIPreferenceHelper.isTiledDownload()) {
+            return getTiles(Collections.singleton(bounds), MAXIMUM_SIDE_DIMENSIONS, info).stream()
+                    .allMatch(tile -> coverage.isCovered(info, tile));
+        }
+        return coverage.isCovered(info, bounds);
+    }
+
     /**
      * Get the width of a bounds
      *
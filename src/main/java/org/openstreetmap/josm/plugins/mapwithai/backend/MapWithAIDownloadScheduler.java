@@ -0,0 +1,525 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Schedule MapWithAI downloads on a bounded pool of threads. Downloads are
+ * started in priority order (closest to the center of the view first), while
+ * limiting the number of concurrent downloads from any one host or source.
+ * Requests for a source and tile that is already queued or downloading are
+ * attached to the existing download instead of starting a new one. Only the
+ * download is shared; each request gets its own data (the last request gets the
+ * downloaded data, and the others get copies), and the steps that depend upon
+ * the request (removing duplicates and conflation, see
+ * {@link BoundingBoxMapWithAIDownloader#process(DataSet)}) are done for each
+ * request. Those steps are not run on the download threads, so they do not use
+ * the download limits.
+ */
+public final class MapWithAIDownloadScheduler {
+    /** The maximum number of concurrent downloads */
+    private static final IntegerProperty MAXIMUM_THREADS = new IntegerProperty(
+            MapWithAIPlugin.NAME.concat(".download.threads"), 4);
+    /** The maximum number of concurrent downloads from a single host */
+    private static final IntegerProperty MAXIMUM_PER_HOST = new IntegerProperty(
+            MapWithAIPlugin.NAME.concat(".download.perhost"), 2);
+    /** The maximum number of concurrent downloads from a single source */
+    private static final IntegerProperty MAXIMUM_PER_SOURCE = new IntegerProperty(
+            MapWithAIPlugin.NAME.concat(".download.persource"), 2);
+    /** How often we check a progress monitor for cancellation while waiting */
+    private static final long CANCEL_CHECK_MILLISECONDS = 250;
+
+    private static MapWithAIDownloadScheduler instance;
+
+    private final ExecutorService executor;
+    private final int maximumThreads;
+    private final int maximumPerHost;
+    private final int maximumPerSource;
+    private final NavigableSet<DownloadFuture> queue = new TreeSet<>();
+    private final Map<String, Integer> runningHosts = new HashMap<>();
+    private final Map<String, Integer> runningSources = new HashMap<>();
+    private final Map<String, DownloadFuture> inFlight = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private int running;
+    private boolean shutdown;
+
+    private MapWithAIDownloadScheduler(int maximumThreads, int maximumPerHost, int maximumPerSource) {
+        this.maximumThreads = Math.max(1, maximumThreads);
+        this.maximumPerHost = Math.max(1, maximumPerHost);
+        this.maximumPerSource = Math.max(1, maximumPerSource);
+        this.executor = Executors.newFixedThreadPool(this.maximumThreads,
+                Utils.newThreadFactory(MapWithAIPlugin.NAME.concat("-download-%d"), Thread.NORM_PRIORITY));
+    }
+
+    /**
+     * Get the download scheduler
+     *
+     * @return The scheduler to use for MapWithAI downloads
+     */
+    public static synchronized MapWithAIDownloadScheduler getInstance() {
+        if (instance == null) {
+            instance = new MapWithAIDownloadScheduler(MAXIMUM_THREADS.get(), MAXIMUM_PER_HOST.get(),
+                    MAXIMUM_PER_SOURCE.get());
+        }
+        return instance;
+    }
+
+    /**
+     * Shut down the scheduler, cancelling all queued and running downloads. A new
+     * scheduler will be created on the next call to {@link #getInstance()}.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Submit a download. If the same source and area is already being downloaded,
+     * the returned future is attached to that download instead.
+     *
+     * @param downloader The downloader to run
+     * @param priority   The priority of the download (lower values are started
+     *                   first, see {@link #getPriority(Bounds, LatLon)})
+     * @param monitor    The monitor to pass to the downloader
+     * @return A future for the downloaded data. Cancelling the future removes it
+     *         from the queue or cancels the running download, once no one else is
+     *         waiting for the download. The returned data is not shared with other
+     *         callers.
+     */
+    public Future<DataSet> submit(BoundingBoxMapWithAIDownloader downloader, double priority,
+            ProgressMonitor monitor) {
+        final String key = downloader.getDownloadKey();
+        final DownloadFuture future;
+        synchronized (this) {
+            final DownloadFuture existing = inFlight.get(key);
+            if (existing != null && !existing.isDone()) {
+                existing.holders++;
+                if (!existing.started && priority < existing.priority) {
+                    // Reorder the queued download
+                    queue.remove(existing);
+                    existing.priority = priority;
+                    queue.add(existing);
+                }
+                return new DownloadHandle(existing, downloader);
+            }
+            future = new DownloadFuture(key, downloader, priority, sequence.getAndIncrement(),
+                    monitor == null ? NullProgressMonitor.INSTANCE : monitor);
+            if (shutdown) {
+                future.cancel(false);
+                return new DownloadHandle(future, downloader);
+            }
+            inFlight.put(key, future);
+            queue.add(future);
+        }
+        dispatch();
+        return new DownloadHandle(future, downloader);
+    }
+
+    /**
+     * Submit a download, without waiting for it
+     *
+     * @param downloader The downloader to run
+     * @param priority   The priority of the download (lower values are started
+     *                   first)
+     * @return A future that is completed when the download finishes, see
+     *         {@link #submit(BoundingBoxMapWithAIDownloader, double, ProgressMonitor)}.
+     *         The data is processed for the caller in the background, after the
+     *         download has released its download slot.
+     */
+    public CompletableFuture<DataSet> submitAsync(BoundingBoxMapWithAIDownloader downloader, double priority) {
+        final DownloadHandle handle = (DownloadHandle) submit(downloader, priority, null);
+        final CompletableFuture<DataSet> completable = new CompletableFuture<>();
+        completable.whenComplete((dataSet, throwable) -> {
+            if (completable.isCancelled()) {
+                handle.cancel(true);
+            }
+        });
+        final Runnable listener = () -> {
+            try {
+                completable.complete(handle.get());
+            } catch (ExecutionException e) {
+                completable.completeExceptionally(e.getCause());
+            } catch (CancellationException e) {
+                completable.cancel(false);
+            } catch (InterruptedException e) {
+                // The download is done, so we shouldn't be interrupted
+                Thread.currentThread().interrupt();
+                completable.completeExceptionally(e);
+            }
+        };
+        synchronized (this) {
+            if (!handle.download.isDone()) {
+                handle.download.listeners.add(listener);
+                return completable;
+            }
+        }
+        listener.run();
+        return completable;
+    }
+
+    /**
+     * Cancel a collection of downloads
+     *
+     * @param futures The downloads to cancel
+     */
+    public static void cancel(Collection<? extends Future<?>> futures) {
+        futures.forEach(future -> future.cancel(true));
+    }
+
+    /**
+     * Get the number of downloads that have not been started yet
+     *
+     * @return The number of queued downloads
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of downloads that are currently running
+     *
+     * @return The number of running downloads
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /**
+     * Wait for a download, cancelling it if the monitor is cancelled
+     *
+     * @param <T>     The type returned by the future
+     * @param future  The future to wait for
+     * @param monitor The monitor to check for cancellation
+     * @return The result of the future
+     * @throws ExecutionException    See {@link Future#get()}
+     * @throws InterruptedException  See {@link Future#get()}
+     * @throws CancellationException If the future or the monitor was cancelled
+     */
+    public static <T> T await(Future<T> future, ProgressMonitor monitor)
+            throws ExecutionException, InterruptedException {
+        while (true) {
+            if (monitor != null && monitor.isCanceled()) {
+                future.cancel(true);
+            }
+            try {
+                return future.get(CANCEL_CHECK_MILLISECONDS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Check the monitor again
+            }
+        }
+    }
+
+    /**
+     * Get the priority for a download
+     *
+     * @param bounds The bounds of the download
+     * @param center The center of the view, may be {@code null}
+     * @return The priority of the download (lower is more important)
+     */
+    public static double getPriority(Bounds bounds, LatLon center) {
+        return center == null || bounds == null ? 0 : bounds.getCenter().distanceSq(center);
+    }
+
+    /**
+     * Get the center of the current view
+     *
+     * @return The center of the map view, or {@code null} if there is no map view
+     */
+    public static LatLon getViewportCenter() {
+        if (MainApplication.isDisplayingMapView()) {
+            return MainApplication.getMap().mapView.getRealBounds().getCenter();
+        }
+        return null;
+    }
+
+    private synchronized void shutdownNow() {
+        shutdown = true;
+        final Collection<DownloadFuture> queued = new ArrayList<>(queue);
+        queue.clear();
+        queued.forEach(future -> future.cancel(false));
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start as many queued downloads as the limits allow
+     */
+    private synchronized void dispatch() {
+        final Iterator<DownloadFuture> iterator = queue.iterator();
+        while (running < maximumThreads && iterator.hasNext()) {
+            final DownloadFuture future = iterator.next();
+            if (future.isDone()) {
+                iterator.remove();
+            } else if (runningHosts.getOrDefault(future.host, 0) < maximumPerHost
+                    && runningSources.getOrDefault(future.source, 0) < maximumPerSource) {
+                iterator.remove();
+                running++;
+                runningHosts.merge(future.host, 1, Integer::sum);
+                runningSources.merge(future.source, 1, Integer::sum);
+                future.started = true;
+                executor.execute(() -> {
+                    try {
+                        future.run();
+                    } finally {
+                        finished(future);
+                    }
+                });
+            }
+        }
+    }
+
+    private void finished(DownloadFuture future) {
+        synchronized (this) {
+            running--;
+            runningHosts.computeIfPresent(future.host, (key, count) -> count > 1 ? count - 1 : null);
+            runningSources.computeIfPresent(future.source, (key, count) -> count > 1 ? count - 1 : null);
+        }
+        dispatch();
+    }
+
+    private synchronized void remove(DownloadFuture future) {
+        queue.remove(future);
+    }
+
+    private void done(DownloadFuture future) {
+        final List<Runnable> listeners;
+        synchronized (this) {
+            inFlight.remove(future.key, future);
+            listeners = new ArrayList<>(future.listeners);
+            future.listeners.clear();
+        }
+        // This is called by the download thread before it releases its slot, and the
+        // listeners process the data for each caller (e.g., conflation)
+        listeners.forEach(MapWithAIDataUtils.getForkJoinPool()::execute);
+    }
+
+    private static String getHost(MapWithAIInfo info) {
+        try {
+            return new URL(info.getUrlExpanded()).getHost();
+        } catch (MalformedURLException e) {
+            return String.valueOf(info.getUrl());
+        }
+    }
+
+    /**
+     * Get a key identifying a source
+     *
+     * @param info The source
+     * @return The id of the source, or another identifier if it has no id
+     */
+    static String getSourceKey(MapWithAIInfo info) {
+        if (info.getId() != null) {
+            return info.getId();
+        }
+        return info.getName() != null ? info.getName() : String.valueOf(info.getUrl());
+    }
+
+    /**
+     * A download that is waiting in the queue or running
+     */
+    private final class DownloadFuture extends FutureTask<DataSet> implements Comparable<DownloadFuture> {
+        private final String key;
+        private final BoundingBoxMapWithAIDownloader downloader;
+        private double priority;
+        private final long order;
+        private final String host;
+        private final String source;
+        private volatile boolean started;
+        /** The number of callers waiting on this download, guarded by the scheduler */
+        private int holders = 1;
+        /** Run when the download is done, guarded by the scheduler */
+        private final List<Runnable> listeners = new ArrayList<>(0);
+        /** The number of callers that have taken their data, guarded by this download */
+        private int claimed;
+
+        DownloadFuture(String key, BoundingBoxMapWithAIDownloader downloader, double priority, long order,
+                ProgressMonitor monitor) {
+            super(() -> downloader.fetch(monitor));
+            this.key = key;
+            this.downloader = downloader;
+            this.priority = priority;
+            this.order = order;
+            this.host = getHost(downloader.getInfo());
+            this.source = getSourceKey(downloader.getInfo());
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                if (started) {
+                    downloader.cancel();
+                } else {
+                    remove(this);
+                }
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            MapWithAIDownloadScheduler.this.done(this);
+        }
+
+        /**
+         * Get the data for one of the callers. {@link DataSet#mergeFrom} moves the
+         * data out of a dataset, so callers cannot share it. The last caller gets
+         * the downloaded data, once all of the other callers have their copies.
+         *
+         * @param shared The downloaded data
+         * @return The data for the caller
+         */
+        synchronized DataSet claim(DataSet shared) {
+            if (shared == null) {
+                return null;
+            }
+            final int waiting;
+            synchronized (MapWithAIDownloadScheduler.this) {
+                waiting = holders;
+            }
+            return ++claimed < waiting ? new DataSet(shared) : shared;
+        }
+
+        @Override
+        public int compareTo(DownloadFuture o) {
+            final int compare = Double.compare(priority, o.priority);
+            return compare != 0 ? compare : Long.compare(order, o.order);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(order);
+        }
+    }
+
+    /**
+     * A reference to a (possibly shared) download. The download is only cancelled
+     * when all of the references to it are cancelled.
+     */
+    private final class DownloadHandle implements Future<DataSet> {
+        private final DownloadFuture download;
+        /** The downloader of the caller, used for the steps that depend upon the caller */
+        private final BoundingBoxMapWithAIDownloader downloader;
+        private volatile boolean cancelled;
+        /** The data for the caller, guarded by this handle */
+        private CompletableFuture<DataSet> result;
+
+        DownloadHandle(DownloadFuture download, BoundingBoxMapWithAIDownloader downloader) {
+            this.download = download;
+            this.downloader = downloader;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (MapWithAIDownloadScheduler.this) {
+                if (cancelled || download.isDone()) {
+                    return false;
+                }
+                cancelled = true;
+                if (--download.holders > 0) {
+                    return true;
+                }
+            }
+            download.cancel(mayInterruptIfRunning);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled || download.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return cancelled || download.isDone();
+        }
+
+        @Override
+        public DataSet get() throws InterruptedException, ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            return process(download.get(), false).get();
+        }
+
+        @Override
+        public DataSet get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            final DataSet shared = download.get(timeout, unit);
+            // The processing (e.g., conflation) also has to finish in time
+            return process(shared, true).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Start processing the data for the caller, if it has not been started
+         *
+         * @param shared     The data from the download, which may be shared
+         * @param background {@code true} to process the data in the background,
+         *                   {@code false} to process it on the calling thread
+         * @return The data for the caller
+         */
+        private CompletableFuture<DataSet> process(DataSet shared, boolean background) {
+            final CompletableFuture<DataSet> future;
+            synchronized (this) {
+                if (result != null) {
+                    return result;
+                }
+                result = new CompletableFuture<>();
+                future = result;
+            }
+            final Runnable runnable = () -> {
+                try {
+                    future.complete(downloader.process(download.claim(shared)));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            };
+            if (background) {
+                MapWithAIDataUtils.getForkJoinPool().execute(runnable);
+            } else {
+                runnable.run();
+            }
+            return future;
+        }
+    }
+}
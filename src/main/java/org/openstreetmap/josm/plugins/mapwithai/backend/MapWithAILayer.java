@@ -33,6 +33,7 @@ import javax.swing.SwingConstants;
 
 import org.openstreetmap.josm.actions.ExpertToggleAction;
 import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.DownloadPolicy;
 import org.openstreetmap.josm.data.osm.Node;
@@ -72,6 +73,8 @@ public class MapWithAILayer extends OsmDataLayer implements ActiveLayerChangeLis
     private Boolean switchLayers;
     private boolean continuousDownload = true;
     private final Lock lock;
+    private final MapWithAIMergeQueue mergeQueue;
+    private final MapWithAICoverageIndex coverage = new MapWithAICoverageIndex();
     private final HashSet<MapWithAIInfo> downloadedInfo = new HashSet<>();
 
     /**
@@ -86,6 +89,7 @@ public class MapWithAILayer extends OsmDataLayer implements ActiveLayerChangeLis
         data.setUploadPolicy(UploadPolicy.BLOCKED);
         data.setDownloadPolicy(DownloadPolicy.BLOCKED);
         lock = new MapLock();
+        mergeQueue = new MapWithAIMergeQueue(this);
         MainApplication.getLayerManager().addActiveLayerChangeListener(this);
         new ContinuousDownloadAction(this); // Initialize data source listeners
     }
@@ -168,6 +172,24 @@ public class MapWithAILayer extends OsmDataLayer implements ActiveLayerChangeLis
         return lock;
     }
 
+    /**
+     * Get the queue used to merge downloaded data into this layer
+     *
+     * @return The merge queue for this layer
+     */
+    public MapWithAIMergeQueue getMergeQueue() {
+        return mergeQueue;
+    }
+
+    /**
+     * Get the areas that have been downloaded into this layer, by source
+     *
+     * @return The coverage index for this layer
+     */
+    public MapWithAICoverageIndex getCoverage() {
+        return coverage;
+    }
+
     private class MapLock extends ReentrantLock {
         private static final long serialVersionUID = 5441350396443132682L;
         private boolean dataSetLocked;
@@ -231,11 +253,24 @@ public class MapWithAILayer extends OsmDataLayer implements ActiveLayerChangeLis
     /**
      * Call after download from server
      *
-     * @param bounds The newly added bounds
+     * @param bounds The newly added bounds. This is only cleaned up if no data
+     *               has been merged with the {@link #getMergeQueue()}.
      */
     public void onPostDownloadFromServer(Bounds bounds) {
         super.onPostDownloadFromServer();
-        GetDataRunnable.cleanup(getDataSet(), bounds, null);
+        final List<BBox> regions = mergeQueue.takeDirtyRegions();
+        if (regions.isEmpty() && bounds != null) {
+            regions.add(bounds.toBBox());
+        }
+        GetDataRunnable.cleanupRegions(getDataSet(), regions, null);
+    }
+
+    /**
+     * Clean up the data that has been merged into this layer since the last
+     * cleanup
+     */
+    public void cleanup() {
+        GetDataRunnable.cleanupRegions(getDataSet(), mergeQueue.takeDirtyRegions(), null);
     }
 
     @Override
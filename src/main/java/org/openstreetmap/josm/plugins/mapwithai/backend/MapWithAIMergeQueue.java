@@ -0,0 +1,217 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import javax.swing.SwingUtilities;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Collect downloaded data and merge it into a {@link MapWithAILayer} in
+ * batches. Each batch is merged with a single acquisition of the layer lock and
+ * a single dataset update, so listeners see one event batch instead of one per
+ * downloaded tile.
+ * <p>
+ * A batch is first merged into a dataset that is not in a layer, and the
+ * borders between the datasets are cleaned up there (e.g., duplicates across
+ * tiles are merged) on the calling thread.
+ * Only the merge of the cleaned up data into the layer is done in the EDT.
+ * <p>
+ * The areas of the merged data are remembered, so that only the new data needs
+ * to be cleaned up (see {@link #takeDirtyRegions()}).
+ */
+public final class MapWithAIMergeQueue {
+    private final MapWithAILayer layer;
+    private final Queue<DataSet> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /** The lock for {@link #inFlight} */
+    private final Object inFlightLock = new Object();
+    /** The number of batches that are being stitched or merged */
+    private int inFlight;
+    private final List<BBox> dirtyRegions = new ArrayList<>();
+
+    /**
+     * Create a new merge queue
+     *
+     * @param layer The layer to merge data into
+     */
+    MapWithAIMergeQueue(MapWithAILayer layer) {
+        this.layer = layer;
+    }
+
+    /**
+     * Add data to the queue. The data will be merged into the layer
+     * asynchronously, together with any other data that has been added in the
+     * meantime.
+     *
+     * @param dataSet The data to merge into the layer
+     */
+    public void add(DataSet dataSet) {
+        if (dataSet == null) {
+            return;
+        }
+        queue.add(dataSet);
+        if (scheduled.compareAndSet(false, true)) {
+            MapWithAIDataUtils.getForkJoinPool().execute(this::flush);
+        }
+    }
+
+    /**
+     * Get the number of datasets waiting to be merged
+     *
+     * @return The number of queued datasets
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Merge all queued data into the layer. Unless this is called in the EDT, this
+     * also waits for batches that are being merged by other threads.
+     * <p>
+     * No lock is held while waiting for the EDT, since the EDT may call this, or
+     * get the layer lock (see {@link MapWithAILayer#getLock()}).
+     *
+     * @return The number of datasets that were merged
+     */
+    public int flush() {
+        scheduled.set(false);
+        final DataSet target = layer.getDataSet();
+        final Lock lock = layer.getLock();
+        final List<DataSet> batch = new ArrayList<>();
+        lock.lock();
+        try {
+            // Drain after getting the lock, so that anything added while waiting is
+            // part of this batch
+            for (DataSet dataSet = queue.poll(); dataSet != null; dataSet = queue.poll()) {
+                batch.add(dataSet);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!batch.isEmpty()) {
+            synchronized (inFlightLock) {
+                inFlight++;
+            }
+            try {
+                // The datasets are emptied when they are stitched together
+                final List<BBox> regions = getRegions(batch);
+                final DataSet staging = getCleanedBatch(batch);
+                GuiHelper.runInEDTAndWait(() -> {
+                    lock.lock();
+                    target.beginUpdate();
+                    try {
+                        target.mergeFrom(staging);
+                    } finally {
+                        target.endUpdate();
+                        lock.unlock();
+                    }
+                });
+                synchronized (dirtyRegions) {
+                    dirtyRegions.addAll(regions);
+                }
+            } finally {
+                synchronized (inFlightLock) {
+                    inFlight--;
+                    inFlightLock.notifyAll();
+                }
+            }
+        }
+        if (!SwingUtilities.isEventDispatchThread()) {
+            awaitInFlight();
+        }
+        return batch.size();
+    }
+
+    /**
+     * Wait for the batches that other threads are merging. This must not be
+     * called in the EDT, since the batches are merged in the EDT.
+     */
+    private void awaitInFlight() {
+        synchronized (inFlightLock) {
+            while (inFlight > 0) {
+                try {
+                    inFlightLock.wait();
+                } catch (InterruptedException e) {
+                    Logging.trace(e);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge a batch into a new dataset, and clean up the borders between the
+     * datasets. Each dataset was cleaned up when it was downloaded (including its
+     * tags), so only the geometry at the borders is cleaned up.
+     *
+     * @param batch The datasets to merge
+     * @return The cleaned up dataset, which is not in a layer
+     */
+    private static DataSet getCleanedBatch(List<DataSet> batch) {
+        return PartitionStitcher.stitch(batch, null, new TagCleanupRules());
+    }
+
+    private static List<BBox> getRegions(List<DataSet> batch) {
+        final List<BBox> regions = new ArrayList<>(batch.size());
+        for (DataSet dataSet : batch) {
+            final BBox bbox = new BBox();
+            dataSet.getNodes().stream().filter(Node::isLatLonKnown).forEach(node -> bbox.add(node.getCoor()));
+            if (bbox.isValid()) {
+                regions.add(bbox);
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Get (and forget) the areas of the data that has been merged since this
+     * was last called
+     *
+     * @return The areas with new data
+     */
+    public List<BBox> takeDirtyRegions() {
+        synchronized (dirtyRegions) {
+            final List<BBox> regions = new ArrayList<>(dirtyRegions);
+            dirtyRegions.clear();
+            return regions;
+        }
+    }
+
+    /**
+     * Merge all queued data into the layer, and then perform the post-download
+     * steps (e.g., cleanup) once for all of the downloaded bounds
+     *
+     * @param downloaded The bounds that were downloaded
+     */
+    public void flush(Collection<Bounds> downloaded) {
+        flush();
+        Bounds union = null;
+        for (Bounds bounds : downloaded) {
+            if (bounds == null) {
+                continue;
+            }
+            if (union == null) {
+                union = new Bounds(bounds);
+            } else {
+                union.extend(bounds);
+            }
+        }
+        if (union != null) {
+            layer.onPostDownloadFromServer(union);
+        }
+    }
+}
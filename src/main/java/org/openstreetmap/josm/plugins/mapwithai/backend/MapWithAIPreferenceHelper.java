@@ -19,6 +19,10 @@ public final class MapWithAIPreferenceHelper {
     private static final String AUTOSWITCHLAYERS = MapWithAIPlugin.NAME.concat(".autoswitchlayers");
     private static final String MERGEBUILDINGADDRESSES = MapWithAIPlugin.NAME.concat(".mergebuildingaddresses");
     private static final String MAXIMUMSELECTION = MapWithAIPlugin.NAME.concat(".maximumselection");
+    private static final String TILEDDOWNLOAD = MapWithAIPlugin.NAME.concat(".tileddownload");
+    private static final String TILEZOOM = MapWithAIPlugin.NAME.concat(".tilezoom");
+    /** RapiD uses tiles that are about 1km on a side, so we do the same */
+    private static final int DEFAULT_TILE_ZOOM = 15;
 
     private MapWithAIPreferenceHelper() {
         // Hide the constructor
@@ -172,6 +176,38 @@ public final class MapWithAIPreferenceHelper {
         return Config.getPref().getDouble(MapWithAIPlugin.NAME.concat(".duplicatenodedistance"), 0.6);
     }
 
+    /**
+     * Check if downloads should be snapped to the tile grid (and cached)
+     *
+     * @return {@code true} if downloads should be made in tiles
+     */
+    public static boolean isTiledDownload() {
+        return Config.getPref().getBoolean(TILEDDOWNLOAD, true);
+    }
+
+    /**
+     * Set whether or not downloads are snapped to the tile grid (and cached)
+     *
+     * @param tiled {@code true} if downloads should be made in tiles
+     */
+    public static void setTiledDownload(boolean tiled) {
+        if (tiled) {
+            Config.getPref().put(TILEDDOWNLOAD, null);
+        } else {
+            Config.getPref().putBoolean(TILEDDOWNLOAD, tiled);
+        }
+    }
+
+    /**
+     * Get the preferred zoom for download tiles
+     *
+     * @return The zoom level to use for download tiles
+     */
+    public static int getTileZoom() {
+        return Math.max(MapWithAITile.MIN_ZOOM,
+                Math.min(MapWithAITile.MAX_ZOOM, Config.getPref().getInt(TILEZOOM, DEFAULT_TILE_ZOOM)));
+    }
+
     /**
      * Get the tags to replace
      *
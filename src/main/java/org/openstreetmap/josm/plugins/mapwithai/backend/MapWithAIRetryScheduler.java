@@ -0,0 +1,210 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Retry failed MapWithAI downloads in the background. Retries are delayed with
+ * an exponential backoff (with jitter) per source, and a source that keeps
+ * failing is not used until its backoff has passed (a circuit breaker). Nothing
+ * waits on a thread while a retry is pending; the retry is handed to the
+ * {@link MapWithAIDownloadScheduler} when it is due, and the data is merged
+ * into the MapWithAI layer when it arrives.
+ */
+public final class MapWithAIRetryScheduler {
+    /** The maximum number of times a download is retried */
+    private static final IntegerProperty MAXIMUM_ATTEMPTS = new IntegerProperty(
+            MapWithAIPlugin.NAME.concat(".retry.attempts"), 3);
+    /** The initial delay before retrying a download (seconds) */
+    private static final IntegerProperty INITIAL_DELAY = new IntegerProperty(
+            MapWithAIPlugin.NAME.concat(".retry.delay"), 10);
+    /** The maximum delay before retrying a download (seconds) */
+    private static final IntegerProperty MAXIMUM_DELAY = new IntegerProperty(
+            MapWithAIPlugin.NAME.concat(".retry.maxdelay"), 300);
+    /** The number of consecutive failures before a source is not used */
+    private static final IntegerProperty FAILURE_THRESHOLD = new IntegerProperty(
+            MapWithAIPlugin.NAME.concat(".retry.threshold"), 3);
+
+    private static MapWithAIRetryScheduler instance;
+
+    private final ScheduledExecutorService executor;
+    private final Map<String, SourceHealth> health = new HashMap<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+
+    private MapWithAIRetryScheduler() {
+        final ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(1,
+                Utils.newThreadFactory(MapWithAIPlugin.NAME.concat("-retry-%d"), Thread.NORM_PRIORITY));
+        scheduledExecutor.setRemoveOnCancelPolicy(true);
+        this.executor = scheduledExecutor;
+    }
+
+    /**
+     * Get the retry scheduler
+     *
+     * @return The scheduler to use for retrying MapWithAI downloads
+     */
+    public static synchronized MapWithAIRetryScheduler getInstance() {
+        if (instance == null) {
+            instance = new MapWithAIRetryScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Shut down the scheduler, dropping all pending retries and source health.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Check if a source should be used
+     *
+     * @param info The source
+     * @return {@code false} if the source has failed too often, and is waiting
+     *         for its backoff to pass
+     */
+    public synchronized boolean isAvailable(MapWithAIInfo info) {
+        final SourceHealth sourceHealth = health.get(MapWithAIDownloadScheduler.getSourceKey(info));
+        return sourceHealth == null || !sourceHealth.open || System.nanoTime() - sourceHealth.openUntil >= 0;
+    }
+
+    /**
+     * Record a successful download
+     *
+     * @param downloader The downloader that succeeded
+     */
+    public synchronized void recordSuccess(BoundingBoxMapWithAIDownloader downloader) {
+        health.remove(MapWithAIDownloadScheduler.getSourceKey(downloader.getInfo()));
+        attempts.remove(downloader.getDownloadKey());
+    }
+
+    /**
+     * Record a failed download from a source
+     *
+     * @param info The source
+     */
+    public synchronized void recordFailure(MapWithAIInfo info) {
+        final SourceHealth sourceHealth = health.computeIfAbsent(MapWithAIDownloadScheduler.getSourceKey(info),
+                key -> new SourceHealth());
+        sourceHealth.failures++;
+        sourceHealth.lastFailure = System.nanoTime();
+        if (sourceHealth.failures >= FAILURE_THRESHOLD.get()) {
+            sourceHealth.open = true;
+            sourceHealth.openUntil = sourceHealth.lastFailure + getDelay(sourceHealth.failures);
+        }
+    }
+
+    /**
+     * Check if a source has failed recently
+     *
+     * @param info     The source
+     * @param duration The duration to consider as recent
+     * @param unit     The unit of the duration
+     * @return {@code true} if the last download from the source failed in the
+     *         specified duration
+     */
+    public synchronized boolean hasFailedRecently(MapWithAIInfo info, long duration, TimeUnit unit) {
+        final SourceHealth sourceHealth = health.get(MapWithAIDownloadScheduler.getSourceKey(info));
+        return sourceHealth != null && System.nanoTime() - sourceHealth.lastFailure < unit.toNanos(duration);
+    }
+
+    /**
+     * Retry a failed download later. The data is merged into the MapWithAI layer
+     * when it is downloaded.
+     *
+     * @param downloader The downloader that failed
+     * @return {@code true} if the download will be retried, {@code false} if it
+     *         has been retried too many times
+     */
+    public synchronized boolean retry(BoundingBoxMapWithAIDownloader downloader) {
+        final String key = downloader.getDownloadKey();
+        final int attempt = attempts.getOrDefault(key, 0) + 1;
+        if (attempt > MAXIMUM_ATTEMPTS.get() || executor.isShutdown()) {
+            attempts.remove(key);
+            return false;
+        }
+        attempts.put(key, attempt);
+        final SourceHealth sourceHealth = health.get(MapWithAIDownloadScheduler.getSourceKey(downloader.getInfo()));
+        long delay = getDelay(attempt);
+        if (sourceHealth != null && sourceHealth.open) {
+            delay = Math.max(delay, sourceHealth.openUntil - System.nanoTime());
+        }
+        Logging.info("{0}: retrying {1} in {2} seconds", MapWithAIPlugin.NAME, key,
+                TimeUnit.NANOSECONDS.toSeconds(delay));
+        executor.schedule(() -> run(downloader.copy(), key), delay, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    private void run(BoundingBoxMapWithAIDownloader downloader, String key) {
+        final double priority = MapWithAIDownloadScheduler.getPriority(downloader.getDownloadArea(),
+                MapWithAIDownloadScheduler.getViewportCenter());
+        MapWithAIDownloadScheduler.getInstance().submitAsync(downloader, priority).whenComplete((dataSet, e) -> {
+            if (e != null) {
+                Logging.error(e);
+                synchronized (this) {
+                    attempts.remove(key);
+                }
+            } else if (!downloader.isRetryPending()) {
+                // A retry that fails again schedules another retry, and returns no data
+                merge(downloader, dataSet);
+            }
+        });
+    }
+
+    private static void merge(BoundingBoxMapWithAIDownloader downloader, DataSet dataSet) {
+        final MapWithAILayer layer = MapWithAIDataUtils.getLayer(false);
+        if (layer == null) {
+            return;
+        }
+        if (!dataSet.allPrimitives().isEmpty()) {
+            layer.getMergeQueue().add(dataSet);
+        }
+        // The original download did not mark the area as downloaded, since it was retried
+        if (downloader.getTile() != null) {
+            layer.getCoverage().add(downloader.getInfo(), downloader.getTile());
+        } else {
+            layer.getCoverage().add(downloader.getInfo(), downloader.getDownloadArea());
+        }
+    }
+
+    /**
+     * Get the delay before the next attempt
+     *
+     * @param attempt The attempt (starting at 1)
+     * @return The delay in nanoseconds, with jitter
+     */
+    static long getDelay(int attempt) {
+        final long initial = Math.max(1, INITIAL_DELAY.get());
+        final long maximum = Math.max(initial, MAXIMUM_DELAY.get());
+        final long delay = TimeUnit.SECONDS
+                .toNanos(Math.min(maximum, initial * (1L << Math.min(20, Math.max(0, attempt - 1)))));
+        // Use between half and all of the delay, so that retries for different tiles are spread out
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * The health of a source
+     */
+    private static class SourceHealth {
+        int failures;
+        boolean open;
+        long lastFailure;
+        long openUntil;
+    }
+}
@@ -0,0 +1,268 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.openstreetmap.josm.data.Bounds;
+
+/**
+ * A tile in the standard slippy map tile grid. MapWithAI downloads are snapped
+ * to this grid so that the same area always maps to the same requests.
+ */
+public final class MapWithAITile implements Comparable<MapWithAITile> {
+    /** The maximum zoom we will ever use for downloads */
+    public static final int MAX_ZOOM = 20;
+    /** The minimum zoom we will ever use for downloads */
+    public static final int MIN_ZOOM = 1;
+    /** The maximum latitude of the web mercator grid */
+    private static final double MAX_LAT = 85.05112877980659;
+    /** The circumference of the earth at the equator (in meters) */
+    private static final double EARTH_CIRCUMFERENCE = 40_075_016.686;
+    /** Avoid including neighbouring tiles when a bounds lies exactly on a tile edge */
+    private static final double EDGE_EPSILON = 1e-6;
+
+    private final int zoom;
+    private final int x;
+    private final int y;
+
+    /**
+     * Create a new tile
+     *
+     * @param zoom The zoom of the tile
+     * @param x    The x index of the tile
+     * @param y    The y index of the tile
+     */
+    public MapWithAITile(int zoom, int x, int y) {
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            throw new IllegalArgumentException("Zoom out of range: " + zoom);
+        }
+        final int max = 1 << zoom;
+        if (x < 0 || x >= max || y < 0 || y >= max) {
+            throw new IllegalArgumentException("Tile out of range: " + zoom + '/' + x + '/' + y);
+        }
+        this.zoom = zoom;
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Get the zoom of the tile
+     *
+     * @return The zoom
+     */
+    public int getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Get the x index of the tile
+     *
+     * @return The x index
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Get the y index of the tile
+     *
+     * @return The y index
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Get the bounds of the tile
+     *
+     * @return The bounds of this tile
+     */
+    public Bounds getBounds() {
+        return new Bounds(yToLat(y + 1, zoom), xToLon(x, zoom), yToLat(y, zoom), xToLon(x + 1, zoom));
+    }
+
+    /**
+     * Get the quadkey for this tile
+     *
+     * @return The quadkey (see the Bing maps tile system)
+     */
+    public String getQuadKey() {
+        final StringBuilder quadKey = new StringBuilder(zoom);
+        for (int i = zoom; i > 0; i--) {
+            int digit = 0;
+            final int mask = 1 << (i - 1);
+            if ((x & mask) != 0) {
+                digit++;
+            }
+            if ((y & mask) != 0) {
+                digit += 2;
+            }
+            quadKey.append(digit);
+        }
+        return quadKey.toString();
+    }
+
+    /**
+     * Get the parent of this tile
+     *
+     * @return The parent tile, or {@code this} if we are at zoom 0
+     */
+    public MapWithAITile getParent() {
+        return zoom == 0 ? this : new MapWithAITile(zoom - 1, x >> 1, y >> 1);
+    }
+
+    /**
+     * Get the children of this tile
+     *
+     * @return The four children of this tile, or this tile if at
+     *         {@link #MAX_ZOOM}
+     */
+    public List<MapWithAITile> getChildren() {
+        final List<MapWithAITile> children = new ArrayList<>(4);
+        if (zoom == MAX_ZOOM) {
+            children.add(this);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                children.add(new MapWithAITile(zoom + 1, 2 * x + (i & 1), 2 * y + (i >> 1)));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Get the tile that contains a point
+     *
+     * @param lat  The latitude
+     * @param lon  The longitude
+     * @param zoom The zoom level
+     * @return The tile containing the point
+     */
+    public static MapWithAITile fromLatLon(double lat, double lon, int zoom) {
+        final int max = (1 << zoom) - 1;
+        return new MapWithAITile(zoom, clamp((int) Math.floor(lonToX(lon, zoom)), max),
+                clamp((int) Math.floor(latToY(lat, zoom)), max));
+    }
+
+    /**
+     * Get the tiles that cover a bounds
+     *
+     * @param bounds The bounds to cover
+     * @param zoom   The zoom level of the tiles
+     * @return The tiles covering the bounds, ordered by row then column
+     */
+    public static List<MapWithAITile> getTiles(Bounds bounds, int zoom) {
+        final int max = (1 << zoom) - 1;
+        final int minX = clamp((int) Math.floor(lonToX(bounds.getMinLon(), zoom) + EDGE_EPSILON), max);
+        final int maxX = clamp((int) Math.floor(lonToX(bounds.getMaxLon(), zoom) - EDGE_EPSILON), max);
+        final int minY = clamp((int) Math.floor(latToY(bounds.getMaxLat(), zoom) + EDGE_EPSILON), max);
+        final int maxY = clamp((int) Math.floor(latToY(bounds.getMinLat(), zoom) - EDGE_EPSILON), max);
+        final List<MapWithAITile> tiles = new ArrayList<>();
+        for (int tileY = minY; tileY <= Math.max(minY, maxY); tileY++) {
+            for (int tileX = minX; tileX <= Math.max(minX, maxX); tileX++) {
+                tiles.add(new MapWithAITile(zoom, tileX, tileY));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Get the tiles that cover a collection of bounds
+     *
+     * @param bounds The bounds to cover
+     * @param zoom   The zoom level of the tiles
+     * @return The distinct tiles covering the bounds
+     */
+    public static List<MapWithAITile> getTiles(Collection<Bounds> bounds, int zoom) {
+        final Set<MapWithAITile> tiles = new LinkedHashSet<>();
+        bounds.stream().filter(Objects::nonNull).filter(b -> !b.isOutOfTheWorld())
+                .forEach(b -> tiles.addAll(getTiles(b, zoom)));
+        return new ArrayList<>(tiles);
+    }
+
+    /**
+     * Get the lowest zoom where the tile sides are no more than the specified
+     * dimensions. This is calculated at the equator, so that the grid does not
+     * change with latitude.
+     *
+     * @param maximumDimensions The maximum side dimensions of a tile (in meters)
+     * @return The zoom to use, between {@link #MIN_ZOOM} and {@link #MAX_ZOOM}
+     */
+    public static int getZoomForDimensions(double maximumDimensions) {
+        if (maximumDimensions <= 0) {
+            return MAX_ZOOM;
+        }
+        final int zoom = (int) Math.ceil(Math.log(EARTH_CIRCUMFERENCE / maximumDimensions) / Math.log(2));
+        return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+    }
+
+    /**
+     * Get the side dimension of a tile at a zoom level at the equator
+     *
+     * @param zoom The zoom level
+     * @return The width of a tile at the equator, in meters
+     */
+    public static double getDimensionsForZoom(int zoom) {
+        return EARTH_CIRCUMFERENCE / (1 << zoom);
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    private static double lonToX(double lon, int zoom) {
+        return (lon + 180) / 360 * (1 << zoom);
+    }
+
+    private static double latToY(double lat, int zoom) {
+        final double latRad = Math.toRadians(Math.max(-MAX_LAT, Math.min(MAX_LAT, lat)));
+        return (1 - Math.log(Math.tan(latRad) + 1 / Math.cos(latRad)) / Math.PI) / 2 * (1 << zoom);
+    }
+
+    private static double xToLon(int x, int zoom) {
+        return x / (double) (1 << zoom) * 360 - 180;
+    }
+
+    private static double yToLat(int y, int zoom) {
+        final double n = Math.PI - 2 * Math.PI * y / (1 << zoom);
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+
+    @Override
+    public int compareTo(MapWithAITile o) {
+        int compare = Integer.compare(zoom, o.zoom);
+        if (compare == 0) {
+            compare = Integer.compare(y, o.y);
+        }
+        if (compare == 0) {
+            compare = Integer.compare(x, o.x);
+        }
+        return compare;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof MapWithAITile)) {
+            return false;
+        }
+        final MapWithAITile other = (MapWithAITile) obj;
+        return zoom == other.zoom && x == other.x && y == other.y;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(zoom, x, y);
+    }
+
+    @Override
+    public String toString() {
+        return zoom + "/" + x + '/' + y;
+    }
+}
@@ -0,0 +1,125 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openstreetmap.josm.data.cache.JCSCacheManager;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.preferences.LongProperty;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.IllegalDataException;
+import org.openstreetmap.josm.io.OsmReader;
+import org.openstreetmap.josm.io.OsmWriter;
+import org.openstreetmap.josm.io.OsmWriterFactory;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.JosmRuntimeException;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+import org.apache.commons.jcs3.access.CacheAccess;
+import org.apache.commons.jcs3.engine.behavior.IElementAttributes;
+
+/**
+ * An on-disk cache of parsed (and cleaned up) tile responses. Tiles are keyed
+ * by the source id, the expanded source url, any crop area, and the tile.
+ * Tiles are cached before they are conflated, since the conflation depends upon
+ * the OSM data that is loaded when the tile is used.
+ */
+public final class MapWithAITileCache {
+    /** The maximum age of a cached tile (seconds) */
+    private static final LongProperty MAX_AGE = new LongProperty(MapWithAIPlugin.NAME.concat(".tilecache.maxage"),
+            TimeUnit.DAYS.toSeconds(7));
+    /** The cache storing gzipped OSM XML for each tile */
+    private static final CacheAccess<String, byte[]> TILE_CACHE = JCSCacheManager.getCache("mapwithai:tiles", 10,
+            50_000, new File(Config.getDirs().getCacheDirectory(true), "mapwithai").getPath());
+
+    private MapWithAITileCache() {
+        // Hide the constructor
+    }
+
+    /**
+     * Get a cached tile
+     *
+     * @param info     The source of the data
+     * @param tile     The tile to get
+     * @param cropBBox The crop bbox sent to the server, may be {@code null}
+     * @return The cached data, or {@code null} if the tile is missing or expired
+     */
+    public static DataSet get(MapWithAIInfo info, MapWithAITile tile, String cropBBox) {
+        final byte[] data = TILE_CACHE.get(getKey(info, tile, cropBBox));
+        if (data != null) {
+            try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(data))) {
+                return OsmReader.parseDataSet(inputStream, NullProgressMonitor.INSTANCE);
+            } catch (IOException | IllegalDataException e) {
+                Logging.error(e);
+                TILE_CACHE.remove(getKey(info, tile, cropBBox));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store a tile in the cache
+     *
+     * @param info     The source of the data
+     * @param tile     The tile that was downloaded
+     * @param cropBBox The crop bbox sent to the server, may be {@code null}
+     * @param dataSet  The parsed data for the tile
+     */
+    public static void put(MapWithAIInfo info, MapWithAITile tile, String cropBBox, DataSet dataSet) {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (PrintWriter printWriter = new PrintWriter(
+                new OutputStreamWriter(new GZIPOutputStream(outputStream), StandardCharsets.UTF_8));
+                OsmWriter writer = OsmWriterFactory.createOsmWriter(printWriter, false, "0.6")) {
+            writer.write(dataSet);
+        } catch (IOException e) {
+            Logging.error(e);
+            return;
+        }
+        final IElementAttributes elementAttributes = TILE_CACHE.getDefaultElementAttributes();
+        elementAttributes.setIsEternal(false);
+        elementAttributes.setMaxLife(MAX_AGE.get());
+        TILE_CACHE.put(getKey(info, tile, cropBBox), outputStream.toByteArray(), elementAttributes);
+    }
+
+    /**
+     * Clear the tile cache
+     */
+    public static void clear() {
+        TILE_CACHE.clear();
+    }
+
+    /**
+     * Get the key for a tile
+     *
+     * @param info     The source of the data
+     * @param tile     The tile
+     * @param cropBBox The crop bbox sent to the server, may be {@code null}
+     * @return The key to use in the cache
+     */
+    static String getKey(MapWithAIInfo info, MapWithAITile tile, String cropBBox) {
+        final String key = String.join("|", String.valueOf(info.getId()), info.getUrlExpanded(),
+                String.valueOf(cropBBox), tile.getQuadKey());
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Utils.toHexString(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required to be present in every Java implementation
+            throw new JosmRuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Choose the tile size for each source based off of how quickly it responds,
+ * how much data it returns, and how often it fails. The estimates are stored in
+ * the preferences, so they are kept between sessions.
+ */
+public final class MapWithAITileSizeController {
+    /** The preference key used to store the source statistics */
+    private static final String STATISTICS = MapWithAIPlugin.NAME.concat(".tilestatistics");
+    /** The weight of a new sample in the moving averages */
+    private static final double ALPHA = 0.3;
+    /** Sources that respond faster than this (milliseconds) may get larger tiles */
+    private static final double FAST_RESPONSE = 5_000;
+    /** Sources that respond slower than this (milliseconds) get smaller tiles */
+    private static final double SLOW_RESPONSE = 20_000;
+    /** Tiles with more primitives than this are split */
+    private static final double LARGE_TILE = 20_000;
+    /** The number of fast responses in a row before we use larger tiles */
+    private static final int STABLE_SAMPLES = 3;
+    /** The smallest zoom we will use (largest tiles, ~10km at the equator) */
+    private static final int MIN_ZOOM = 12;
+    /** The largest zoom we will use (smallest tiles, ~150m at the equator) */
+    private static final int MAX_ZOOM = 18;
+    /** The number of samples between saves, if the tile size has not changed */
+    private static final int SAVE_INTERVAL = 10;
+
+    private static final String SOURCE = "source";
+    private static final String ZOOM = "zoom";
+    private static final String LATENCY = "latency";
+    private static final String PRIMITIVES = "primitives";
+    private static final String FAILURES = "failures";
+
+    private static MapWithAITileSizeController instance;
+
+    private final Map<String, SourceStatistics> statistics = new TreeMap<>();
+    private int unsavedSamples;
+
+    private MapWithAITileSizeController() {
+        for (Map<String, String> map : Config.getPref().getListOfMaps(STATISTICS, Collections.emptyList())) {
+            try {
+                final SourceStatistics stats = new SourceStatistics(Integer.parseInt(map.get(ZOOM)));
+                stats.latency = Double.parseDouble(map.get(LATENCY));
+                stats.primitives = Double.parseDouble(map.get(PRIMITIVES));
+                stats.failures = Integer.parseInt(map.get(FAILURES));
+                statistics.put(map.get(SOURCE), stats);
+            } catch (NullPointerException | NumberFormatException e) {
+                Logging.trace(e);
+            }
+        }
+    }
+
+    /**
+     * Get the controller
+     *
+     * @return The tile size controller
+     */
+    public static synchronized MapWithAITileSizeController getInstance() {
+        if (instance == null) {
+            instance = new MapWithAITileSizeController();
+        }
+        return instance;
+    }
+
+    /**
+     * Drop the current controller, so that the next call to
+     * {@link #getInstance()} reloads the statistics from the preferences
+     */
+    static synchronized void resetInstance() {
+        instance = null;
+    }
+
+    /**
+     * Get the zoom to use for tiles from a source
+     *
+     * @param info The source
+     * @return The zoom to use
+     */
+    public synchronized int getZoom(MapWithAIInfo info) {
+        final SourceStatistics stats = statistics.get(MapWithAIDownloadScheduler.getSourceKey(info));
+        return stats == null ? getDefaultZoom() : stats.zoom;
+    }
+
+    /**
+     * Record a successful download
+     *
+     * @param info         The source of the download
+     * @param zoom         The zoom of the tile that was downloaded
+     * @param milliseconds The time the download took
+     * @param primitives   The number of primitives in the download
+     */
+    public synchronized void recordSuccess(MapWithAIInfo info, int zoom, long milliseconds, int primitives) {
+        final SourceStatistics stats = getStatistics(info);
+        // Normalize the size to the current tile size (each zoom level has 1/4 the
+        // area)
+        final double scaledPrimitives = primitives * Math.pow(4, zoom - stats.zoom);
+        stats.latency = stats.latency < 0 ? milliseconds : ALPHA * milliseconds + (1 - ALPHA) * stats.latency;
+        stats.primitives = stats.primitives < 0 ? scaledPrimitives
+                : ALPHA * scaledPrimitives + (1 - ALPHA) * stats.primitives;
+        stats.failures = 0;
+        if (stats.latency > SLOW_RESPONSE || stats.primitives > LARGE_TILE) {
+            changeZoom(stats, 1);
+        } else if (stats.latency < FAST_RESPONSE && stats.primitives < LARGE_TILE / 4) {
+            stats.fastResponses++;
+            if (stats.fastResponses >= STABLE_SAMPLES) {
+                changeZoom(stats, -1);
+            }
+        } else {
+            stats.fastResponses = 0;
+        }
+        sampleRecorded();
+    }
+
+    /**
+     * Record a failed download (e.g., a timeout)
+     *
+     * @param info The source of the download
+     */
+    public synchronized void recordFailure(MapWithAIInfo info) {
+        final SourceStatistics stats = getStatistics(info);
+        stats.failures++;
+        changeZoom(stats, 1);
+        sampleRecorded();
+    }
+
+    /**
+     * Store the current statistics in the preferences
+     */
+    public synchronized void save() {
+        final List<Map<String, String>> list = new ArrayList<>(statistics.size());
+        for (Map.Entry<String, SourceStatistics> entry : statistics.entrySet()) {
+            final Map<String, String> map = new TreeMap<>();
+            map.put(SOURCE, entry.getKey());
+            map.put(ZOOM, Integer.toString(entry.getValue().zoom));
+            map.put(LATENCY, Double.toString(entry.getValue().latency));
+            map.put(PRIMITIVES, Double.toString(entry.getValue().primitives));
+            map.put(FAILURES, Integer.toString(entry.getValue().failures));
+            list.add(map);
+        }
+        Config.getPref().putListOfMaps(STATISTICS, list);
+        unsavedSamples = 0;
+    }
+
+    private SourceStatistics getStatistics(MapWithAIInfo info) {
+        return statistics.computeIfAbsent(MapWithAIDownloadScheduler.getSourceKey(info),
+                key -> new SourceStatistics(getDefaultZoom()));
+    }
+
+    private void changeZoom(SourceStatistics stats, int change) {
+        final int newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, stats.zoom + change));
+        stats.fastResponses = 0;
+        if (newZoom != stats.zoom) {
+            if (stats.primitives >= 0) {
+                stats.primitives /= Math.pow(4, newZoom - stats.zoom);
+            }
+            // The response time does not scale with the tile area, so start over
+            stats.latency = -1;
+            stats.zoom = newZoom;
+            // Save immediately, so that we don't forget about the change
+            unsavedSamples = SAVE_INTERVAL;
+        }
+    }
+
+    private void sampleRecorded() {
+        if (++unsavedSamples >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    private static int getDefaultZoom() {
+        return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, MapWithAIPreferenceHelper.getTileZoom()));
+    }
+
+    /**
+     * The statistics for a single source
+     */
+    private static class SourceStatistics {
+        int zoom;
+        /** The moving average of the response time (milliseconds), -1 if unknown */
+        double latency = -1;
+        /** The moving average of the primitives in a tile at {@link #zoom}, -1 if unknown */
+        double primitives = -1;
+        /** The number of failures since the last success */
+        int failures;
+        /** The number of fast responses in a row */
+        int fastResponses;
+
+        SourceStatistics(int zoom) {
+            this.zoom = zoom;
+        }
+    }
+}
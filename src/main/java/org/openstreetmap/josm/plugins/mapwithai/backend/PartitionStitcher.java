@@ -0,0 +1,104 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+
+/**
+ * Merge datasets that have been cleaned up separately (e.g., one per tile, in
+ * parallel), and clean up the primitives at the borders between them. Only the
+ * edges of a partition that are near another partition are cleaned up again,
+ * so the cost depends upon the length of the borders, not the amount of data.
+ */
+public final class PartitionStitcher {
+    /** How close (degrees) an edge must be to another partition to be cleaned up */
+    private static final double EDGE_BUFFER = 0.001;
+
+    private PartitionStitcher() {
+        // Hide the constructor
+    }
+
+    /**
+     * Merge cleaned up partitions, and clean up the borders between them
+     *
+     * @param partitions The partitions, each of which has been cleaned up
+     * @param info       The source of the data. May be {@code null}.
+     * @param tagRules   The tag cleanup rules to apply at the borders
+     * @return A new dataset with all of the partitions
+     */
+    public static DataSet stitch(List<DataSet> partitions, MapWithAIInfo info, TagCleanupRules tagRules) {
+        final DataSet dataSet = new DataSet();
+        final List<BBox> bboxes = new ArrayList<>(partitions.size());
+        for (DataSet partition : partitions) {
+            bboxes.add(getBBox(partition));
+            dataSet.mergeFrom(partition);
+        }
+        final Collection<BBox> borders = getBorders(bboxes);
+        if (!borders.isEmpty()) {
+            GetDataRunnable.cleanupRegions(dataSet, borders, info, tagRules);
+        }
+        return dataSet;
+    }
+
+    /**
+     * Get the edges of the partitions that are near another partition
+     *
+     * @param bboxes The areas of the partitions
+     * @return The edges (as bboxes with no width or height)
+     */
+    static Collection<BBox> getBorders(List<BBox> bboxes) {
+        final List<BBox> borders = new ArrayList<>();
+        for (int i = 0; i < bboxes.size(); i++) {
+            final BBox bbox = bboxes.get(i);
+            if (!bbox.isValid()) {
+                continue;
+            }
+            final double left = bbox.getTopLeftLon();
+            final double right = bbox.getBottomRightLon();
+            final double bottom = bbox.getBottomRightLat();
+            final double top = bbox.getTopLeftLat();
+            for (BBox edge : Arrays.asList(new BBox(left, bottom, left, top), new BBox(right, bottom, right, top),
+                    new BBox(left, bottom, right, bottom), new BBox(left, top, right, top))) {
+                final BBox buffered = new BBox(edge.getTopLeftLon() - EDGE_BUFFER,
+                        edge.getBottomRightLat() - EDGE_BUFFER, edge.getBottomRightLon() + EDGE_BUFFER,
+                        edge.getTopLeftLat() + EDGE_BUFFER);
+                for (int j = 0; j < bboxes.size(); j++) {
+                    if (i != j && bboxes.get(j).isValid() && buffered.intersects(bboxes.get(j))) {
+                        borders.add(edge);
+                        break;
+                    }
+                }
+            }
+        }
+        return borders;
+    }
+
+    /**
+     * Get the area of a partition
+     *
+     * @param partition The partition
+     * @return The area of the data sources of the partition, or (if there are no
+     *         data sources) the area of its nodes
+     */
+    private static BBox getBBox(DataSet partition) {
+        final BBox bbox = new BBox();
+        final Collection<Bounds> bounds = partition.getDataSourceBounds();
+        if (bounds.isEmpty()) {
+            partition.getNodes().stream().filter(Node::isLatLonKnown).forEach(node -> bbox.add(node.getCoor()));
+        } else {
+            bounds.forEach(bound -> {
+                bbox.add(bound.getMin());
+                bbox.add(bound.getMax());
+            });
+        }
+        return bbox;
+    }
+}
@@ -0,0 +1,265 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.openstreetmap.josm.command.AddPrimitivesCommand;
+import org.openstreetmap.josm.command.ChangeNodesCommand;
+import org.openstreetmap.josm.command.ChangePropertyCommand;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.DeleteCommand;
+import org.openstreetmap.josm.command.MoveCommand;
+import org.openstreetmap.josm.command.SequenceCommand;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.NodeData;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.PrimitiveData;
+import org.openstreetmap.josm.data.osm.PrimitiveId;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationData;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.RelationMemberData;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.WayData;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Clean up regions of a dataset that may be shown in a layer. The primitives
+ * in (and around) the regions are copied into a dataset that is not in a
+ * layer, and the copy is cleaned up on the calling thread. Only the changes are
+ * applied to the dataset, in the EDT, with a single dataset update.
+ * <p>
+ * If any of the copied primitives is changed while the copy is cleaned up (or
+ * the changes cannot be applied without affecting primitives that were not
+ * copied), the copy is discarded and the regions are cleaned up in the EDT.
+ */
+final class RegionCleanup {
+    /** The buffer around the regions for the copy (degrees), so that the cleanup can see nearby data */
+    private static final double DEGREE_BUFFER = 0.001;
+
+    private final DataSet dataSet;
+    /** The copied primitives, as they were when they were copied */
+    private final Map<PrimitiveId, PrimitiveData> originals = new LinkedHashMap<>();
+    /** The copy that is cleaned up */
+    private final DataSet copy = new DataSet();
+    private Bounds bounds;
+
+    private RegionCleanup(DataSet dataSet) {
+        this.dataSet = dataSet;
+    }
+
+    /**
+     * Clean up regions of a dataset
+     *
+     * @param dataSet  The dataset to clean up
+     * @param regions  The regions to clean up
+     * @param info     The information used to download the data. May be
+     *                 {@code null}.
+     * @param tagRules The tag cleanup rules to use
+     */
+    static void cleanupRegions(DataSet dataSet, Collection<BBox> regions, MapWithAIInfo info,
+            TagCleanupRules tagRules) {
+        final RegionCleanup cleanup = new RegionCleanup(dataSet);
+        cleanup.copy(regions);
+        CleanupPipeline.run(new CleanupContext(cleanup.copy, cleanup.bounds, regions, info, tagRules));
+        GuiHelper.runInEDTAndWait(() -> {
+            if (!cleanup.apply()) {
+                Logging.debug("{0}: The data changed during the cleanup, cleaning up in the EDT", MapWithAIPlugin.NAME);
+                GetDataRunnable.cleanupRegions(dataSet, regions, info, tagRules);
+            }
+        });
+    }
+
+    /**
+     * Copy the primitives in (a buffer around) the regions, the ways connected
+     * to them, and the relations in the regions that only have nodes and ways
+     * as members
+     *
+     * @param regions The regions to copy
+     */
+    private void copy(Collection<BBox> regions) {
+        final List<BBox> buffered = regions.stream().filter(BBox::isValid)
+                .map(bbox -> new BBox(bbox.getTopLeftLon() - DEGREE_BUFFER, bbox.getBottomRightLat() - DEGREE_BUFFER,
+                        bbox.getBottomRightLon() + DEGREE_BUFFER, bbox.getTopLeftLat() + DEGREE_BUFFER))
+                .collect(Collectors.toList());
+        final List<PrimitiveData> data = new ArrayList<>();
+        dataSet.getReadLock().lock();
+        try {
+            bounds = GetDataRunnable.getCleanupBounds(dataSet, null);
+            final CleanupContext context = new CleanupContext(dataSet, bounds, buffered, null, null);
+            final Set<Node> nodes = new LinkedHashSet<>();
+            final Set<Way> ways = new LinkedHashSet<>();
+            final Set<Relation> relations = new LinkedHashSet<>();
+            context.getNodes().stream().filter(node -> !node.isDeleted() && node.isLatLonKnown()).forEach(nodes::add);
+            context.getConnectedWays().stream().filter(way -> !way.isDeleted() && !way.hasIncompleteNodes())
+                    .forEach(ways::add);
+            for (OsmPrimitive primitive : context.getPrimitives()) {
+                if (primitive instanceof Relation && isCopyable((Relation) primitive)) {
+                    relations.add((Relation) primitive);
+                    for (RelationMember member : ((Relation) primitive).getMembers()) {
+                        if (member.isNode()) {
+                            nodes.add(member.getNode());
+                        } else {
+                            ways.add(member.getWay());
+                        }
+                    }
+                }
+            }
+            ways.forEach(way -> nodes.addAll(way.getNodes()));
+            nodes.forEach(node -> data.add(node.save()));
+            ways.forEach(way -> data.add(way.save()));
+            relations.forEach(relation -> data.add(relation.save()));
+        } finally {
+            dataSet.getReadLock().unlock();
+        }
+        data.forEach(primitive -> originals.put(primitive.getPrimitiveId(), primitive));
+        if (!data.isEmpty()) {
+            new AddPrimitivesCommand(data, copy).executeCommand();
+        }
+    }
+
+    private static boolean isCopyable(Relation relation) {
+        return !relation.isDeleted() && !relation.hasIncompleteMembers() && relation.getMembers().stream()
+                .allMatch(member -> !member.getMember().isDeleted() && (member.isNode()
+                        ? member.getNode().isLatLonKnown()
+                        : member.isWay() && !member.getWay().hasIncompleteNodes()));
+    }
+
+    /**
+     * Apply the changes in the copy to the dataset. This must be run in the
+     * EDT.
+     *
+     * @return {@code true} if the changes were applied, {@code false} if the
+     *         dataset changed while the copy was cleaned up
+     */
+    private boolean apply() {
+        final List<OsmPrimitive> deleted = new ArrayList<>();
+        for (PrimitiveData original : originals.values()) {
+            final OsmPrimitive primitive = dataSet.getPrimitiveById(original);
+            if (primitive == null || !isUnchanged(primitive, original)) {
+                return false;
+            }
+            final OsmPrimitive cleaned = copy.getPrimitiveById(original);
+            if (cleaned == null || cleaned.isDeleted()) {
+                deleted.add(primitive);
+            } else if (cleaned instanceof Relation
+                    && !isSameMembers(((Relation) cleaned).getMembers(), ((RelationData) original).getMembers())) {
+                // The cleanup stages do not change relation members
+                return false;
+            }
+        }
+        // Primitives that were not copied may not refer to the deleted primitives
+        if (deleted.stream().flatMap(primitive -> primitive.getReferrers().stream())
+                .anyMatch(referrer -> !referrer.isDeleted() && !originals.containsKey(referrer.getPrimitiveId()))) {
+            return false;
+        }
+        final List<PrimitiveData> added = copy.allNonDeletedPrimitives().stream()
+                .filter(primitive -> !originals.containsKey(primitive.getPrimitiveId())).map(OsmPrimitive::save)
+                .collect(Collectors.toList());
+        dataSet.beginUpdate();
+        try {
+            if (!added.isEmpty()) {
+                // The new primitives keep their ids, so the changes below can refer to them
+                new AddPrimitivesCommand(added, dataSet).executeCommand();
+            }
+            final List<Command> commands = new ArrayList<>();
+            for (PrimitiveData original : originals.values()) {
+                final OsmPrimitive cleaned = copy.getPrimitiveById(original);
+                if (cleaned != null && !cleaned.isDeleted()) {
+                    addChanges(commands, dataSet.getPrimitiveById(original), cleaned);
+                }
+            }
+            if (!deleted.isEmpty()) {
+                commands.add(new DeleteCommand(dataSet, deleted));
+            }
+            if (!commands.isEmpty()) {
+                new SequenceCommand(tr("Clean up {0} data", MapWithAIPlugin.NAME), commands).executeCommand();
+            }
+        } finally {
+            dataSet.endUpdate();
+        }
+        return true;
+    }
+
+    /**
+     * Get the commands to change a primitive to match its cleaned up copy
+     *
+     * @param commands  The list to add the commands to
+     * @param primitive The primitive in the dataset
+     * @param cleaned   The cleaned up copy
+     */
+    private void addChanges(List<Command> commands, OsmPrimitive primitive, OsmPrimitive cleaned) {
+        final Map<String, String> tags = new HashMap<>();
+        primitive.keySet().stream().filter(key -> !cleaned.hasKey(key)).forEach(key -> tags.put(key, null));
+        cleaned.getKeys().forEach((key, value) -> {
+            if (!value.equals(primitive.get(key))) {
+                tags.put(key, value);
+            }
+        });
+        if (!tags.isEmpty()) {
+            commands.add(new ChangePropertyCommand(dataSet, Collections.singleton(primitive), tags));
+        }
+        if (primitive instanceof Node && !Objects.equals(((Node) primitive).getCoor(), ((Node) cleaned).getCoor())) {
+            commands.add(new MoveCommand((Node) primitive, ((Node) cleaned).getCoor()));
+        } else if (primitive instanceof Way) {
+            final List<Node> nodes = ((Way) cleaned).getNodes().stream()
+                    .map(node -> (Node) dataSet.getPrimitiveById(node)).collect(Collectors.toList());
+            if (!nodes.equals(((Way) primitive).getNodes())) {
+                commands.add(new ChangeNodesCommand(dataSet, (Way) primitive, nodes));
+            }
+        }
+    }
+
+    /**
+     * Check if a primitive is the same as it was when it was copied
+     *
+     * @param primitive The primitive
+     * @param original  The primitive when it was copied
+     * @return {@code true} if the primitive has not been changed
+     */
+    private static boolean isUnchanged(OsmPrimitive primitive, PrimitiveData original) {
+        if (primitive.isDeleted() || !primitive.getKeys().equals(original.getKeys())) {
+            return false;
+        }
+        if (primitive instanceof Node) {
+            return Objects.equals(((Node) primitive).getCoor(), ((NodeData) original).getCoor());
+        } else if (primitive instanceof Way) {
+            return ((Way) primitive).getNodes().stream().map(Node::getUniqueId).collect(Collectors.toList())
+                    .equals(((WayData) original).getNodeIds());
+        }
+        return isSameMembers(((Relation) primitive).getMembers(), ((RelationData) original).getMembers());
+    }
+
+    private static boolean isSameMembers(List<RelationMember> members, List<RelationMemberData> original) {
+        if (members.size() != original.size()) {
+            return false;
+        }
+        for (int i = 0; i < members.size(); i++) {
+            final RelationMember member = members.get(i);
+            final RelationMemberData data = original.get(i);
+            if (!member.getRole().equals(data.getRole()) || member.getType() != data.getMemberType()
+                    || member.getUniqueId() != data.getMemberId()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
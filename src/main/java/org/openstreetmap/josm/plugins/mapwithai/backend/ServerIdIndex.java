@@ -0,0 +1,158 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openstreetmap.josm.command.DeleteCommand;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.TagMap;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+
+/**
+ * An index of the server ids of the primitives that have been downloaded, so
+ * that a feature that is returned for several (overlapping) tiles is only kept
+ * once. Each tile is checked as it arrives: the ways and nodes whose server id
+ * has already been seen, with the same geometry and tags, are dropped.
+ * <p>
+ * An index should be used for a single download (e.g., all of the tiles for a
+ * bounds), and may be used from several threads.
+ */
+public final class ServerIdIndex {
+    /** The precision of coordinates on the OSM server */
+    private static final double PRECISION = 1e7;
+    /**
+     * The key used to keep the server ids until the duplicates are removed. The
+     * server id tag is removed by the cleanup, and is replaced when data is read
+     * from a cache.
+     */
+    static final String KEY = "mapwithai:server_id";
+
+    /** The fingerprints of the primitives that have been kept, by source and server id */
+    private final Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+
+    /**
+     * Get the server ids of the primitives in a dataset. This should be called
+     * before the server ids are removed (see
+     * {@link GetDataRunnable#getDefaultTagCleanupRules()}).
+     *
+     * @param dataSet The downloaded dataset
+     * @return The server ids of the ways and nodes, with their types
+     */
+    public static Map<OsmPrimitive, String> getServerIds(DataSet dataSet) {
+        final Map<OsmPrimitive, String> ids = new HashMap<>();
+        for (OsmPrimitive primitive : dataSet.allPrimitives()) {
+            final String id = primitive.get(GetDataRunnable.SERVER_ID_KEY);
+            if (id != null && (primitive instanceof Way || primitive instanceof Node)) {
+                ids.put(primitive, primitive.getType().getAPIName() + '/' + id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Keep the server ids on the primitives, so that they are still available
+     * after the data is cleaned up, copied, or cached
+     *
+     * @param serverIds The server ids from {@link #getServerIds(DataSet)}
+     */
+    public static void keepServerIds(Map<OsmPrimitive, String> serverIds) {
+        serverIds.forEach((primitive, id) -> {
+            if (!primitive.isDeleted()) {
+                primitive.put(KEY, id);
+            }
+        });
+    }
+
+    /**
+     * Get (and remove) the server ids that were kept with
+     * {@link #keepServerIds(Map)}
+     *
+     * @param dataSet The dataset with the kept server ids
+     * @return The server ids of the ways and nodes, with their types
+     */
+    public static Map<OsmPrimitive, String> takeServerIds(DataSet dataSet) {
+        final Map<OsmPrimitive, String> ids = new HashMap<>();
+        for (OsmPrimitive primitive : dataSet.allPrimitives()) {
+            final String id = primitive.get(KEY);
+            if (id != null) {
+                ids.put(primitive, id);
+                primitive.remove(KEY);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Remove the primitives that have already been seen in another dataset
+     *
+     * @param dataSet   The dataset that was just downloaded
+     * @param info      The source of the dataset. May be {@code null}.
+     * @param serverIds The server ids of the primitives in the dataset, from
+     *                  {@link #getServerIds(DataSet)}
+     * @return The number of primitives that were removed
+     */
+    public int removeDuplicates(DataSet dataSet, MapWithAIInfo info, Map<OsmPrimitive, String> serverIds) {
+        // Ids are only unique for a source
+        final String source = info == null ? "" : MapWithAIDownloadScheduler.getSourceKey(info) + '|';
+        final Set<OsmPrimitive> duplicates = new LinkedHashSet<>();
+        serverIds.forEach((primitive, id) -> {
+            if (primitive instanceof Way && isDuplicate(dataSet, primitive, source + id)) {
+                duplicates.add(primitive);
+            }
+        });
+        serverIds.forEach((primitive, id) -> {
+            // Nodes that are still used by a way in this dataset are kept
+            if (primitive instanceof Node
+                    && primitive.getReferrers().stream().allMatch(r -> r.isDeleted() || duplicates.contains(r))
+                    && isDuplicate(dataSet, primitive, source + id)) {
+                duplicates.add(primitive);
+            }
+        });
+        if (!duplicates.isEmpty()) {
+            new DeleteCommand(dataSet, duplicates).executeCommand();
+        }
+        return duplicates.size();
+    }
+
+    /**
+     * Check if a primitive has already been seen. If it has not, it is added to
+     * the index.
+     *
+     * @param dataSet   The dataset the primitive should be in
+     * @param primitive The primitive
+     * @param key       The source and server id of the primitive
+     * @return {@code true} if a primitive with the same id, geometry and tags has
+     *         already been seen
+     */
+    private boolean isDuplicate(DataSet dataSet, OsmPrimitive primitive, String key) {
+        if (primitive.getDataSet() != dataSet || primitive.isDeleted()) {
+            return false;
+        }
+        final Long fingerprint = primitive instanceof Way ? WayFingerprintIndex.getFingerprint((Way) primitive)
+                : getFingerprint((Node) primitive);
+        if (fingerprint == null) {
+            return false;
+        }
+        final Long previous = fingerprints.putIfAbsent(key, fingerprint);
+        // Features with the same id but different data (e.g., they were cleaned up differently) are both kept
+        return fingerprint.equals(previous);
+    }
+
+    private static Long getFingerprint(Node node) {
+        if (!node.isLatLonKnown()) {
+            return null;
+        }
+        final TagMap tags = node.getKeys();
+        tags.remove(GetDataRunnable.MAPWITHAI_SOURCE_TAG_KEY);
+        final long lat = Math.round(node.lat() * PRECISION);
+        final long lon = Math.round(node.lon() * PRECISION);
+        return tags.hashCode() * 0x9E37_79B9_7F4A_7C15L + ((lat << 32) | (lon & 0xffff_ffffL));
+    }
+}
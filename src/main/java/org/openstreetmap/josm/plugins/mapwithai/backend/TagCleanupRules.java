@@ -0,0 +1,215 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.openstreetmap.josm.command.DeleteCommand;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Tag;
+import org.openstreetmap.josm.data.osm.TagMap;
+
+/**
+ * A table of tag cleanup rules that is applied to a dataset in a single pass.
+ * For each primitive, the rules are applied in this order:
+ * <ol>
+ * <li>Keys are renamed</li>
+ * <li>The source tag is added</li>
+ * <li>Tags are replaced</li>
+ * <li>Keys are removed</li>
+ * <li>Tags with empty values are removed</li>
+ * </ol>
+ * The tags of a primitive are only set once, and only if they changed.
+ */
+public class TagCleanupRules {
+    private final List<String[]> renames = new ArrayList<>();
+    private final List<Tag[]> replacements = new ArrayList<>();
+    private final Set<String> removeKeys = new HashSet<>();
+    private final Set<String> removeNodeKeys = new HashSet<>();
+    private String sourceKey;
+    private String sourceValue;
+    private boolean removeEmptyValues;
+    private boolean deleteEmptyNodes;
+
+    /**
+     * Rename keys, keeping their values
+     *
+     * @param replaceKeys The keys to rename (old key, new key)
+     * @return This object, for easy chaining
+     */
+    public TagCleanupRules renameKeys(Map<String, String> replaceKeys) {
+        replaceKeys.forEach((key, newKey) -> {
+            if (!Objects.equals(key, newKey)) {
+                renames.add(new String[] { key, newKey });
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Add a source tag to primitives that do not have one. Nodes that are part of
+     * a way or relation are not tagged.
+     *
+     * @param key   The source key
+     * @param value The source value
+     * @return This object, for easy chaining
+     */
+    public TagCleanupRules addSource(String key, String value) {
+        this.sourceKey = key;
+        this.sourceValue = value;
+        return this;
+    }
+
+    /**
+     * Replace tags
+     *
+     * @param replaceTags The tags to replace (original tag, replacement tag)
+     * @return This object, for easy chaining
+     */
+    public TagCleanupRules replaceTags(Map<Tag, Tag> replaceTags) {
+        replaceTags.forEach((original, replacement) -> replacements.add(new Tag[] { original, replacement }));
+        return this;
+    }
+
+    /**
+     * Remove keys from all primitives
+     *
+     * @param keys The keys to remove
+     * @return This object, for easy chaining
+     */
+    public TagCleanupRules removeKeys(String... keys) {
+        removeKeys.addAll(Arrays.asList(keys));
+        return this;
+    }
+
+    /**
+     * Remove keys from nodes
+     *
+     * @param keys The keys to remove
+     * @return This object, for easy chaining
+     */
+    public TagCleanupRules removeNodeKeys(String... keys) {
+        removeNodeKeys.addAll(Arrays.asList(keys));
+        return this;
+    }
+
+    /**
+     * Remove tags whose value is empty
+     *
+     * @return This object, for easy chaining
+     */
+    public TagCleanupRules removeEmptyValues() {
+        this.removeEmptyValues = true;
+        return this;
+    }
+
+    /**
+     * Delete nodes that have no tags and are not part of a way or relation, after
+     * the other rules have been applied
+     *
+     * @return This object, for easy chaining
+     */
+    public TagCleanupRules deleteEmptyNodes() {
+        this.deleteEmptyNodes = true;
+        return this;
+    }
+
+    /**
+     * Apply the rules to a dataset
+     *
+     * @param dataSet The dataset to clean up
+     */
+    public void apply(DataSet dataSet) {
+        apply(dataSet, dataSet.allNonDeletedPrimitives());
+    }
+
+    /**
+     * Apply the rules to some of the primitives in a dataset
+     *
+     * @param dataSet    The dataset with the primitives
+     * @param primitives The primitives to clean up
+     */
+    public void apply(DataSet dataSet, Collection<? extends OsmPrimitive> primitives) {
+        final List<Node> emptyNodes = new ArrayList<>();
+        dataSet.beginUpdate();
+        try {
+            for (OsmPrimitive primitive : primitives) {
+                if (primitive.isDeleted()) {
+                    continue;
+                }
+                final TagMap tags = primitive.getKeys();
+                if (apply(primitive, tags)) {
+                    primitive.setKeys(tags);
+                }
+                if (deleteEmptyNodes && primitive instanceof Node && tags.isEmpty()
+                        && primitive.getReferrers().isEmpty()) {
+                    emptyNodes.add((Node) primitive);
+                }
+            }
+        } finally {
+            dataSet.endUpdate();
+        }
+        if (!emptyNodes.isEmpty()) {
+            new DeleteCommand(emptyNodes).executeCommand();
+        }
+    }
+
+    /**
+     * Apply the rules to the tags of a primitive
+     *
+     * @param primitive The primitive the tags are from
+     * @param tags      The tags to modify
+     * @return {@code true} if the tags were modified
+     */
+    boolean apply(OsmPrimitive primitive, Map<String, String> tags) {
+        boolean modified = false;
+        for (String[] rename : renames) {
+            final String value = tags.remove(rename[0]);
+            if (value != null) {
+                tags.put(rename[1], value);
+                modified = true;
+            }
+        }
+        if (sourceKey != null && sourceValue != null && !tags.containsKey(sourceKey)
+                && (!(primitive instanceof Node) || primitive.getReferrers().isEmpty())) {
+            tags.put(sourceKey, sourceValue);
+            modified = true;
+        }
+        for (Tag[] replacement : replacements) {
+            if (replacement[0].getValue().equals(tags.get(replacement[0].getKey()))) {
+                modified |= !replacement[1].getValue().equals(tags.put(replacement[1].getKey(),
+                        replacement[1].getValue()));
+            }
+        }
+        modified |= remove(tags, removeKeys);
+        if (primitive instanceof Node) {
+            modified |= remove(tags, removeNodeKeys);
+        }
+        if (removeEmptyValues) {
+            final List<String> emptyKeys = new ArrayList<>(0);
+            tags.forEach((key, value) -> {
+                if (value == null || value.trim().isEmpty()) {
+                    emptyKeys.add(key);
+                }
+            });
+            modified |= remove(tags, emptyKeys);
+        }
+        return modified;
+    }
+
+    private static boolean remove(Map<String, String> tags, Collection<String> keys) {
+        boolean modified = false;
+        for (String key : keys) {
+            modified |= tags.remove(key) != null;
+        }
+        return modified;
+    }
+}
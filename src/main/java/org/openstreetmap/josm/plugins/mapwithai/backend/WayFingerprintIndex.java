@@ -0,0 +1,255 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.TagMap;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesAddedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesRemovedEvent;
+import org.openstreetmap.josm.data.osm.event.RelationMembersChangedEvent;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
+
+/**
+ * An index of the ways in a dataset by their geometry and tags, so that
+ * finding ways that have already been added (e.g., to an OSM layer) is a hash
+ * lookup. Ways are indexed by their tags (without the
+ * {@link GetDataRunnable#MAPWITHAI_SOURCE_TAG_KEY} tag) and the coordinates of
+ * their first node, rounded to the precision of the OSM server. Since
+ * coordinates that are within the precision of each other may round
+ * differently, the neighbouring cells of each node of a way are looked up as
+ * well. The candidates should still be checked with
+ * {@link org.openstreetmap.josm.data.coor.LatLon#equalsEpsilon}, since they
+ * only share a node and the keys may collide.
+ * <p>
+ * The index is kept up to date with a {@link DataSetListener}, and there is
+ * (at most) one index for each dataset.
+ */
+public final class WayFingerprintIndex implements DataSetListener {
+    /** The precision of coordinates on the OSM server */
+    private static final double PRECISION = 1e7;
+
+    /**
+     * The index is only referenced by the listeners of the dataset, so that it is
+     * collected with the dataset
+     */
+    private static final Map<DataSet, WeakReference<WayFingerprintIndex>> INDEXES = new WeakHashMap<>();
+
+    private final Map<Long, List<Way>> ways = new HashMap<>();
+    private final Map<Way, Long> keys = new HashMap<>();
+    private final DataSet dataSet;
+    /** {@code true} if the index needs to be rebuilt */
+    private boolean dirty = true;
+
+    private WayFingerprintIndex(DataSet dataSet) {
+        this.dataSet = dataSet;
+    }
+
+    /**
+     * Get the index for a dataset
+     *
+     * @param dataSet The dataset to get the index for
+     * @return The index, which will be kept up to date with the dataset
+     */
+    public static WayFingerprintIndex getIndex(DataSet dataSet) {
+        synchronized (INDEXES) {
+            final WeakReference<WayFingerprintIndex> reference = INDEXES.get(dataSet);
+            WayFingerprintIndex index = reference == null ? null : reference.get();
+            if (index == null) {
+                index = new WayFingerprintIndex(dataSet);
+                dataSet.addDataSetListener(index);
+                INDEXES.put(dataSet, new WeakReference<>(index));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Get the ways that may be duplicates of a way
+     *
+     * @param way The way to look for (it does not have to be in the indexed
+     *            dataset)
+     * @return The indexed ways with the same tags whose first node is (nearly)
+     *         at one of the nodes of the way. These may be duplicates.
+     */
+    public synchronized List<Way> getCandidates(Way way) {
+        if (dirty) {
+            rebuild();
+        }
+        if (way.isIncomplete() || way.getNodesCount() == 0) {
+            return Collections.emptyList();
+        }
+        final int tags = getTagsHash(way);
+        final Set<Way> candidates = new LinkedHashSet<>();
+        final Set<Long> seen = new HashSet<>();
+        for (Node node : way.getNodes()) {
+            if (!node.isLatLonKnown()) {
+                return Collections.emptyList();
+            }
+            final long lat = Math.round(node.lat() * PRECISION);
+            final long lon = Math.round(node.lon() * PRECISION);
+            for (int dLat = -1; dLat <= 1; dLat++) {
+                for (int dLon = -1; dLon <= 1; dLon++) {
+                    final long key = getKey(tags, lat + dLat, lon + dLon);
+                    if (seen.add(key)) {
+                        candidates.addAll(ways.getOrDefault(key, Collections.emptyList()));
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(candidates);
+    }
+
+    private void rebuild() {
+        ways.clear();
+        keys.clear();
+        dataSet.getWays().forEach(this::add);
+        dirty = false;
+    }
+
+    private void add(Way way) {
+        if (way.isIncomplete() || way.getNodesCount() == 0 || !way.firstNode().isLatLonKnown()) {
+            return;
+        }
+        final Node first = way.firstNode();
+        final long key = getKey(getTagsHash(way), Math.round(first.lat() * PRECISION),
+                Math.round(first.lon() * PRECISION));
+        keys.put(way, key);
+        ways.computeIfAbsent(key, k -> new ArrayList<>(1)).add(way);
+    }
+
+    private void remove(Way way) {
+        final Long key = keys.remove(way);
+        if (key != null) {
+            final List<Way> keyWays = ways.get(key);
+            keyWays.remove(way);
+            if (keyWays.isEmpty()) {
+                ways.remove(key);
+            }
+        }
+    }
+
+    private static int getTagsHash(Way way) {
+        final TagMap tags = way.getKeys();
+        tags.remove(GetDataRunnable.MAPWITHAI_SOURCE_TAG_KEY);
+        return tags.hashCode();
+    }
+
+    private static long getKey(int tags, long lat, long lon) {
+        return (tags * 0x9E37_79B9_7F4A_7C15L + lat) * 0x9E37_79B9_7F4A_7C15L + lon;
+    }
+
+    private synchronized void update(Collection<? extends OsmPrimitive> primitives, boolean keep) {
+        if (dirty) {
+            // The index will be rebuilt when it is next used
+            return;
+        }
+        for (OsmPrimitive primitive : primitives) {
+            if (primitive instanceof Way) {
+                remove((Way) primitive);
+                if (keep) {
+                    add((Way) primitive);
+                }
+            } else if (primitive instanceof Node) {
+                for (OsmPrimitive referrer : primitive.getReferrers()) {
+                    if (referrer instanceof Way) {
+                        remove((Way) referrer);
+                        add((Way) referrer);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the fingerprint of a way, which is made from its distinct node
+     * coordinates (rounded to the precision of the OSM server) and its tags
+     *
+     * @param way The way
+     * @return The fingerprint, or {@code null} if the way cannot be fingerprinted
+     *         (e.g., it is incomplete)
+     */
+    static Long getFingerprint(Way way) {
+        if (way.isIncomplete() || way.getNodesCount() == 0) {
+            return null;
+        }
+        final long[] coordinates = new long[way.getNodesCount()];
+        int count = 0;
+        for (Node node : way.getNodes()) {
+            if (!node.isLatLonKnown()) {
+                return null;
+            }
+            final long lat = Math.round(node.lat() * PRECISION);
+            final long lon = Math.round(node.lon() * PRECISION);
+            coordinates[count++] = (lat << 32) | (lon & 0xffff_ffffL);
+        }
+        Arrays.sort(coordinates);
+        long fingerprint = getTagsHash(way);
+        for (int i = 0; i < count; i++) {
+            // Closed ways (and other ways that revisit a node) have the same points as an open way
+            if (i == 0 || coordinates[i] != coordinates[i - 1]) {
+                fingerprint = fingerprint * 0x9E37_79B9_7F4A_7C15L + coordinates[i];
+            }
+        }
+        return fingerprint;
+    }
+
+    @Override
+    public void primitivesAdded(PrimitivesAddedEvent event) {
+        update(event.getPrimitives(), true);
+    }
+
+    @Override
+    public void primitivesRemoved(PrimitivesRemovedEvent event) {
+        update(event.getPrimitives(), false);
+    }
+
+    @Override
+    public void tagsChanged(TagsChangedEvent event) {
+        update(event.getPrimitives(), true);
+    }
+
+    @Override
+    public void nodeMoved(NodeMovedEvent event) {
+        update(event.getPrimitives(), true);
+    }
+
+    @Override
+    public void wayNodesChanged(WayNodesChangedEvent event) {
+        update(event.getPrimitives(), true);
+    }
+
+    @Override
+    public void relationMembersChanged(RelationMembersChangedEvent event) {
+        // Relations are not indexed
+    }
+
+    @Override
+    public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+        // Deleted ways are filtered out by the callers
+    }
+
+    @Override
+    public synchronized void dataChanged(DataChangedEvent event) {
+        dirty = true;
+    }
+}
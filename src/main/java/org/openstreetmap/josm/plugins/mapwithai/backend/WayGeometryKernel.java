@@ -0,0 +1,211 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.Arrays;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+/**
+ * The projected coordinates of a way, in {@code double} arrays, for the inner
+ * loops of the cleanup. The arrays are reused between ways (there is one
+ * kernel per thread, see {@link #get()}), and the angles and distances are
+ * computed without creating any objects.
+ * <p>
+ * Changes to the order of the nodes are made to the arrays, and are written
+ * back to the way with {@link #writeBack(Way)}.
+ */
+final class WayGeometryKernel {
+    private static final ThreadLocal<WayGeometryKernel> KERNELS = ThreadLocal.withInitial(WayGeometryKernel::new);
+    private static final int INITIAL_SIZE = 16;
+
+    private double[] east = new double[INITIAL_SIZE];
+    private double[] north = new double[INITIAL_SIZE];
+    private Node[] nodes = new Node[INITIAL_SIZE];
+    private int size;
+    private boolean modified;
+
+    /** The coordinates of another way, for distances between ways */
+    private double[] otherEast = new double[INITIAL_SIZE];
+    private double[] otherNorth = new double[INITIAL_SIZE];
+    private int otherSize;
+
+    private WayGeometryKernel() {
+        // Use get()
+    }
+
+    /**
+     * Get the kernel for the current thread
+     *
+     * @return The kernel. It must not be shared with other threads.
+     */
+    static WayGeometryKernel get() {
+        return KERNELS.get();
+    }
+
+    /**
+     * Load the coordinates of a way
+     *
+     * @param way The way to load
+     * @return {@code false} if a node of the way does not have coordinates
+     */
+    boolean load(Way way) {
+        size = way.getNodesCount();
+        modified = false;
+        if (east.length < size) {
+            final int length = Math.max(size, east.length * 2);
+            east = new double[length];
+            north = new double[length];
+            nodes = new Node[length];
+        }
+        for (int i = 0; i < size; i++) {
+            final Node node = way.getNode(i);
+            final EastNorth eastNorth = node.getEastNorth();
+            if (eastNorth == null) {
+                size = 0;
+                return false;
+            }
+            nodes[i] = node;
+            east[i] = eastNorth.east();
+            north[i] = eastNorth.north();
+        }
+        return true;
+    }
+
+    /**
+     * Load the coordinates of another way, for {@link #getDistanceToOther(int)}
+     *
+     * @param way The way to load
+     * @return {@code false} if the way is incomplete, or a node of the way does
+     *         not have coordinates
+     */
+    boolean loadOther(Way way) {
+        otherSize = 0;
+        if (way.isIncomplete()) {
+            return false;
+        }
+        final int count = way.getNodesCount();
+        if (otherEast.length < count) {
+            final int length = Math.max(count, otherEast.length * 2);
+            otherEast = new double[length];
+            otherNorth = new double[length];
+        }
+        for (int i = 0; i < count; i++) {
+            final EastNorth eastNorth = way.getNode(i).getEastNorth();
+            if (eastNorth == null) {
+                return false;
+            }
+            otherEast[i] = eastNorth.east();
+            otherNorth[i] = eastNorth.north();
+        }
+        otherSize = count;
+        return true;
+    }
+
+    /**
+     * Get the number of loaded nodes
+     *
+     * @return The number of nodes
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the angle at a node, as {@link org.openstreetmap.josm.tools.Geometry#getCornerAngle}
+     * would compute it
+     *
+     * @param previous The index of the previous node
+     * @param corner   The index of the corner node
+     * @param next     The index of the next node
+     * @return The signed angle, in radians, in (-&pi;, &pi;]
+     */
+    double getCornerAngle(int previous, int corner, int next) {
+        double angle = Math.atan2(north[previous] - north[corner], east[previous] - east[corner])
+                - Math.atan2(north[next] - north[corner], east[next] - east[corner]);
+        if (angle <= -Math.PI) {
+            angle += 2 * Math.PI;
+        }
+        if (angle > Math.PI) {
+            angle -= 2 * Math.PI;
+        }
+        return angle;
+    }
+
+    /**
+     * Swap two nodes. The change is only made to the way in
+     * {@link #writeBack(Way)}.
+     *
+     * @param i The index of the first node
+     * @param j The index of the second node
+     */
+    void swap(int i, int j) {
+        final double tEast = east[i];
+        east[i] = east[j];
+        east[j] = tEast;
+        final double tNorth = north[i];
+        north[i] = north[j];
+        north[j] = tNorth;
+        final Node tNode = nodes[i];
+        nodes[i] = nodes[j];
+        nodes[j] = tNode;
+        modified = true;
+    }
+
+    /**
+     * Write changes back to the way that was loaded. The nodes are forgotten
+     * afterwards (so that the kernel does not keep them alive), but the
+     * coordinates can still be used.
+     *
+     * @param way The way that was loaded
+     * @return {@code true} if the way was changed
+     */
+    boolean writeBack(Way way) {
+        final boolean changed = modified;
+        if (changed) {
+            way.setNodes(Arrays.asList(Arrays.copyOf(nodes, size)));
+            modified = false;
+        }
+        Arrays.fill(nodes, 0, size, null);
+        return changed;
+    }
+
+    /**
+     * Get the distance from a loaded node to the other way
+     *
+     * @param i The index of the node
+     * @return The distance in east/north units, or {@link Double#MAX_VALUE} if
+     *         the other way does not have a segment
+     */
+    double getDistanceToOther(int i) {
+        double smallest = Double.MAX_VALUE;
+        for (int j = 0; j < otherSize - 1; j++) {
+            smallest = Math.min(smallest, getSegmentDistanceSq(east[i], north[i], otherEast[j], otherNorth[j],
+                    otherEast[j + 1], otherNorth[j + 1]));
+        }
+        return smallest == Double.MAX_VALUE ? smallest : Math.sqrt(smallest);
+    }
+
+    /**
+     * Get the squared distance from a point to a segment
+     *
+     * @param x  The east coordinate of the point
+     * @param y  The north coordinate of the point
+     * @param ax The east coordinate of the start of the segment
+     * @param ay The north coordinate of the start of the segment
+     * @param bx The east coordinate of the end of the segment
+     * @param by The north coordinate of the end of the segment
+     * @return The squared distance
+     */
+    static double getSegmentDistanceSq(double x, double y, double ax, double ay, double bx, double by) {
+        final double dx = bx - ax;
+        final double dy = by - ay;
+        final double length = dx * dx + dy * dy;
+        double t = length == 0 ? 0 : ((x - ax) * dx + (y - ay) * dy) / length;
+        t = Math.max(0, Math.min(1, t));
+        final double px = ax + t * dx - x;
+        final double py = ay + t * dy - y;
+        return px * px + py * py;
+    }
+}
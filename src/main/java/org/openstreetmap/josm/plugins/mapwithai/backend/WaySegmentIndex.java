@@ -0,0 +1,253 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.IWaySegment;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+/**
+ * An index of the segments of a set of ways, for the cleanup of downloaded
+ * data. It keeps a node &rarr; ways adjacency map, the segments that each node
+ * is an end of, and (optionally) a grid of the segments in east/north space,
+ * so that finding the ways that share nodes or are near a point are local
+ * lookups instead of searches over all of the ways.
+ * <p>
+ * The index is not updated when a way changes; call {@link #update(Way)} after
+ * modifying an indexed way. Lookups may be made from several threads as long
+ * as the index is not being updated.
+ */
+public final class WaySegmentIndex {
+    private final Map<Node, List<Way>> nodeWays = new HashMap<>();
+    private final Map<Node, List<IWaySegment<Node, Way>>> nodeSegments = new HashMap<>();
+    private final Map<Way, IndexedWay> indexedWays = new HashMap<>();
+    private final Map<Long, List<Way>> grid;
+    private final double cellSize;
+
+    /**
+     * Create a new index without a grid
+     *
+     * @param ways The ways to index
+     */
+    public WaySegmentIndex(Collection<Way> ways) {
+        this(ways, 0);
+    }
+
+    /**
+     * Create a new index
+     *
+     * @param ways     The ways to index
+     * @param cellSize The size of the grid cells, in east/north units. If this is
+     *                 not positive, no grid is kept and
+     *                 {@link #getNearbyWays(EastNorth, double)} is not available.
+     */
+    public WaySegmentIndex(Collection<Way> ways, double cellSize) {
+        this.cellSize = cellSize;
+        this.grid = cellSize > 0 ? new HashMap<>() : null;
+        ways.forEach(this::add);
+    }
+
+    /**
+     * Update the index for a way that has changed
+     *
+     * @param way The way to update
+     */
+    public void update(Way way) {
+        remove(way);
+        add(way);
+    }
+
+    /**
+     * Remove a way from the index
+     *
+     * @param way The way to remove
+     */
+    public void remove(Way way) {
+        final IndexedWay indexed = indexedWays.remove(way);
+        if (indexed == null) {
+            return;
+        }
+        for (Node node : indexed.nodes) {
+            final List<Way> ways = nodeWays.get(node);
+            ways.remove(way);
+            if (ways.isEmpty()) {
+                nodeWays.remove(node);
+                nodeSegments.remove(node);
+            } else {
+                nodeSegments.get(node).removeIf(segment -> segment.getWay() == way);
+            }
+        }
+        for (long cell : indexed.cells) {
+            final List<Way> cellWays = grid.get(cell);
+            cellWays.remove(way);
+            if (cellWays.isEmpty()) {
+                grid.remove(cell);
+            }
+        }
+    }
+
+    private void add(Way way) {
+        if (way.isDeleted() || way.isIncomplete()) {
+            return;
+        }
+        final Set<Long> cells = grid != null ? new LinkedHashSet<>() : null;
+        final Set<Node> nodes = new HashSet<>(way.getNodes());
+        for (Node node : nodes) {
+            nodeWays.computeIfAbsent(node, key -> new ArrayList<>(2)).add(way);
+            nodeSegments.computeIfAbsent(node, key -> new ArrayList<>(2));
+        }
+        for (int i = 0; i < way.getNodesCount() - 1; i++) {
+            final IWaySegment<Node, Way> segment = new IWaySegment<>(way, i);
+            nodeSegments.get(segment.getFirstNode()).add(segment);
+            nodeSegments.get(segment.getSecondNode()).add(segment);
+            if (cells != null) {
+                addCells(segment.getFirstNode().getEastNorth(), segment.getSecondNode().getEastNorth(), cells);
+            }
+        }
+        if (cells != null) {
+            cells.forEach(cell -> grid.computeIfAbsent(cell, key -> new ArrayList<>(1)).add(way));
+        }
+        final long[] wayCells = cells == null ? new long[0] : cells.stream().mapToLong(Long::longValue).toArray();
+        indexedWays.put(way, new IndexedWay(nodes, wayCells));
+    }
+
+    /**
+     * Add the cells a segment goes through. The segment is sampled every cell,
+     * so a lookup needs to check half a cell further than it otherwise would.
+     *
+     * @param first  The start of the segment
+     * @param second The end of the segment
+     * @param cells  The collection to add the cells to
+     */
+    private void addCells(EastNorth first, EastNorth second, Set<Long> cells) {
+        if (first == null || second == null) {
+            return;
+        }
+        final int steps = (int) Math.ceil(first.distance(second) / cellSize);
+        for (int step = 0; step <= steps; step++) {
+            final EastNorth point = steps == 0 ? first : first.interpolate(second, (double) step / steps);
+            cells.add(getCell(getCoordinate(point.east()), getCoordinate(point.north())));
+        }
+    }
+
+    /**
+     * Get the ways that a node is part of
+     *
+     * @param node The node
+     * @return The indexed ways with the node
+     */
+    public List<Way> getWays(Node node) {
+        return Collections.unmodifiableList(nodeWays.getOrDefault(node, Collections.emptyList()));
+    }
+
+    /**
+     * Get the segments that a node is an end of
+     *
+     * @param node The node
+     * @return The indexed segments that start or end at the node
+     */
+    public List<IWaySegment<Node, Way>> getSegments(Node node) {
+        return Collections.unmodifiableList(nodeSegments.getOrDefault(node, Collections.emptyList()));
+    }
+
+    /**
+     * Get the segments of a way that touch a segment
+     *
+     * @param segment The segment
+     * @param way     The way to get segments from
+     * @return The segments of the way that share a node with the segment, in the
+     *         order that they are in the way
+     */
+    public List<IWaySegment<Node, Way>> getTouchingSegments(IWaySegment<Node, Way> segment, Way way) {
+        final Map<Integer, IWaySegment<Node, Way>> touching = new TreeMap<>();
+        for (Node node : Arrays.asList(segment.getFirstNode(), segment.getSecondNode())) {
+            for (IWaySegment<Node, Way> other : getSegments(node)) {
+                if (other.getWay() == way) {
+                    touching.putIfAbsent(other.getLowerIndex(), other);
+                }
+            }
+        }
+        return new ArrayList<>(touching.values());
+    }
+
+    /**
+     * Get the ways that share nodes with a way
+     *
+     * @param way     The way
+     * @param minimum The minimum number of (distinct) shared nodes
+     * @return The ways that share at least {@code minimum} nodes with the way.
+     *         This includes the way itself, if it is indexed.
+     */
+    public Set<Way> getWaysSharingNodes(Way way, int minimum) {
+        final Map<Way, Integer> shared = new HashMap<>();
+        for (Node node : new HashSet<>(way.getNodes())) {
+            for (Way other : getWays(node)) {
+                shared.merge(other, 1, Integer::sum);
+            }
+        }
+        return shared.entrySet().stream().filter(entry -> entry.getValue() >= minimum).map(Map.Entry::getKey)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Get the ways that may be near a point
+     *
+     * @param point    The point
+     * @param distance The distance from the point, in east/north units
+     * @return The ways with segments that may be within the distance of the
+     *         point. The ways should be checked with an exact distance.
+     */
+    public Set<Way> getNearbyWays(EastNorth point, double distance) {
+        if (grid == null) {
+            throw new IllegalStateException("The index was created without a grid");
+        }
+        final Set<Way> ways = new HashSet<>();
+        final int x = getCoordinate(point.east());
+        final int y = getCoordinate(point.north());
+        // The segments are sampled every cell, so look half a cell further
+        final int radius = (int) Math.ceil(distance / cellSize + 0.5);
+        for (int dx = -radius; dx <= radius; dx++) {
+            for (int dy = -radius; dy <= radius; dy++) {
+                final List<Way> cellWays = grid.get(getCell(x + dx, y + dy));
+                if (cellWays != null) {
+                    ways.addAll(cellWays);
+                }
+            }
+        }
+        return ways;
+    }
+
+    private int getCoordinate(double value) {
+        return (int) Math.floor(value / cellSize);
+    }
+
+    private static long getCell(int x, int y) {
+        return ((long) x << 32) | (y & 0xffff_ffffL);
+    }
+
+    /**
+     * The nodes and grid cells that a way was indexed with
+     */
+    private static final class IndexedWay {
+        final Set<Node> nodes;
+        final long[] cells;
+
+        IndexedWay(Set<Node> nodes, long[] cells) {
+            this.nodes = nodes;
+            this.cells = cells;
+        }
+    }
+}
@@ -7,10 +7,12 @@ import java.awt.GraphicsEnvironment;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.stream.Collectors;
 
@@ -26,6 +28,7 @@ import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
 import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 import org.openstreetmap.josm.gui.progress.swing.PleaseWaitProgressMonitor;
+import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.Pair;
 
 /**
@@ -127,38 +130,87 @@ public abstract class AbstractConflationCommand extends Command {
         if (!missingPrimitives.isEmpty()) {
             final Map<PrimitiveId, Integer> ids = missingPrimitives.entrySet().stream().collect(Collectors
                     .toMap(entry -> new SimplePrimitiveId(entry.getValue().a, entry.getValue().b), Map.Entry::getKey));
-            final List<PrimitiveId> toFetch = new ArrayList<>(ids.keySet());
-            final Optional<OsmDataLayer> optionalLayer = MainApplication.getLayerManager()
-                    .getLayersOfType(OsmDataLayer.class).parallelStream()
-                    .filter(layer -> layer.getDataSet().equals(dataSet)).findFirst();
-
-            OsmDataLayer layer;
-            final String generatedLayerName = "EvKlVarShAiAllsM generated layer";
-            if (optionalLayer.isPresent()) {
-                layer = optionalLayer.get();
-            } else {
-                layer = new OsmDataLayer(dataSet, generatedLayerName, null);
-            }
-
-            final ProgressMonitor monitor;
-            if (GraphicsEnvironment.isHeadless()) {
-                monitor = NullProgressMonitor.INSTANCE;
-            } else {
-                monitor = new PleaseWaitProgressMonitor(tr("Downloading additional OsmPrimitives"));
-            }
-            final DownloadPrimitivesTask downloadPrimitivesTask = new DownloadPrimitivesTask(layer, toFetch, true,
-                    monitor);
-            downloadPrimitivesTask.run();
+            downloadPrimitives(dataSet, new ArrayList<>(ids.keySet()));
             for (final Map.Entry<PrimitiveId, Integer> entry : ids.entrySet()) {
                 final int index = entry.getValue().intValue();
                 final OsmPrimitive primitive = dataSet.getPrimitiveById(entry.getKey());
                 primitiveConnections[index] = primitive;
             }
+        }
+    }
 
-            if (generatedLayerName.equals(layer.getName())) {
-                layer.destroy();
+    /**
+     * Download all of the primitives referenced by conflation keys at once, so
+     * that {@link #getPrimitives} does not have to download them one node at a
+     * time.
+     *
+     * @param dataSet    The dataset that the referenced primitives should be in
+     * @param primitives The primitives that may have conflation keys
+     * @param keys       The keys whose values are primitive ids (e.g.,
+     *                   {@link ConnectedCommand#KEY})
+     * @return The number of primitives that were requested
+     */
+    public static int prefetchPrimitives(DataSet dataSet, Collection<? extends OsmPrimitive> primitives,
+            String... keys) {
+        Objects.requireNonNull(dataSet, tr("DataSet cannot be null"));
+        final Set<PrimitiveId> toFetch = new LinkedHashSet<>();
+        for (OsmPrimitive primitive : primitives) {
+            for (String key : keys) {
+                final String ids = primitive.get(key);
+                if (ids == null) {
+                    continue;
+                }
+                for (String member : ids.split(",", -1)) {
+                    try {
+                        final PrimitiveId primitiveId = SimplePrimitiveId.fromString(member);
+                        if (!primitiveId.isNew() && dataSet.getPrimitiveById(primitiveId) == null) {
+                            toFetch.add(primitiveId);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // The tag will be reported when the command runs
+                        Logging.trace(e);
+                    }
+                }
             }
         }
+        if (!toFetch.isEmpty()) {
+            downloadPrimitives(dataSet, new ArrayList<>(toFetch));
+        }
+        return toFetch.size();
+    }
+
+    /**
+     * Download primitives into a dataset with a single request
+     *
+     * @param dataSet The dataset to download the primitives into
+     * @param toFetch The primitives to download
+     */
+    private static void downloadPrimitives(DataSet dataSet, List<PrimitiveId> toFetch) {
+        final Optional<OsmDataLayer> optionalLayer = MainApplication.getLayerManager()
+                .getLayersOfType(OsmDataLayer.class).parallelStream()
+                .filter(layer -> layer.getDataSet().equals(dataSet)).findFirst();
+
+        OsmDataLayer layer;
+        final String generatedLayerName = "EvKlVarShAiAllsM generated layer";
+        if (optionalLayer.isPresent()) {
+            layer = optionalLayer.get();
+        } else {
+            layer = new OsmDataLayer(dataSet, generatedLayerName, null);
+        }
+
+        final ProgressMonitor monitor;
+        if (GraphicsEnvironment.isHeadless()) {
+            monitor = NullProgressMonitor.INSTANCE;
+        } else {
+            monitor = new PleaseWaitProgressMonitor(tr("Downloading additional OsmPrimitives"));
+        }
+        final DownloadPrimitivesTask downloadPrimitivesTask = new DownloadPrimitivesTask(layer, toFetch, true,
+                monitor);
+        downloadPrimitivesTask.run();
+
+        if (generatedLayerName.equals(layer.getName())) {
+            layer.destroy();
+        }
     }
 
     /**
@@ -0,0 +1,297 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.commands;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.plugins.mapwithai.commands.cleanup.MissingConnectionTags;
+import org.openstreetmap.josm.plugins.mapwithai.commands.cleanup.OverNodedWays;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * The registry of conflation commands. Each command is instantiated once when
+ * it is registered, to get its key, interested types, and conflicts, so that
+ * callers do not have to create every command just to get its key.
+ */
+public final class ConflationCommandRegistry {
+    /** The registered commands, in the order they are run */
+    private static final Map<Class<? extends AbstractConflationCommand>, Descriptor> COMMANDS = new LinkedHashMap<>();
+    /** The lookups for the current commands. This is replaced whenever a command is (un)registered. */
+    private static volatile Lookup lookup = new Lookup(Collections.emptyList());
+
+    static {
+        register(MissingConnectionTags.class);
+        register(ConnectedCommand.class);
+        register(DuplicateCommand.class);
+        register(MergeAddressBuildings.class);
+        register(MergeBuildingAddress.class);
+        register(OverNodedWays.class);
+        register(AlreadyConflatedCommand.class);
+    }
+
+    private ConflationCommandRegistry() {
+        // Hide the constructor
+    }
+
+    /**
+     * Register a conflation command. The command must have a constructor that
+     * takes a {@link DataSet}.
+     *
+     * @param command The command to run when copying data from the MapWithAI
+     *                layer
+     * @return {@code true} if the command was registered
+     */
+    public static synchronized boolean register(Class<? extends AbstractConflationCommand> command) {
+        if (COMMANDS.containsKey(command)) {
+            return false;
+        }
+        final AbstractConflationCommand instance = newInstance(command, new DataSet());
+        if (instance == null) {
+            return false;
+        }
+        COMMANDS.put(command, new Descriptor(command, instance));
+        lookup = new Lookup(COMMANDS.values());
+        return true;
+    }
+
+    /**
+     * Remove a conflation command
+     *
+     * @param command The command class to remove
+     * @return {@code true} if the command was registered
+     */
+    public static synchronized boolean unregister(Class<? extends AbstractConflationCommand> command) {
+        if (COMMANDS.remove(command) != null) {
+            lookup = new Lookup(COMMANDS.values());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the registered commands
+     *
+     * @return The command descriptors, in the order the commands should be run
+     */
+    public static List<Descriptor> getDescriptors() {
+        return lookup.descriptors;
+    }
+
+    /**
+     * Get the command classes
+     *
+     * @return The registered command classes, in the order they should be run
+     */
+    public static Set<Class<? extends AbstractConflationCommand>> getCommandClasses() {
+        return lookup.classes;
+    }
+
+    /**
+     * Get the keys used by the conflation commands
+     *
+     * @return All of the conflation keys
+     */
+    public static Set<String> getKeys() {
+        return lookup.keys;
+    }
+
+    /**
+     * Get the keys that should not be uploaded to OpenStreetMap
+     *
+     * @return The keys where {@link AbstractConflationCommand#keyShouldNotExistInOSM}
+     *         is {@code true}
+     */
+    public static Set<String> getKeysThatShouldNotExistInOSM() {
+        return lookup.osmForbiddenKeys;
+    }
+
+    /**
+     * Get the commands that use a key
+     *
+     * @param key The key
+     * @return The commands that use the key (may be empty)
+     */
+    public static List<Descriptor> getDescriptors(String key) {
+        return lookup.byKey.getOrDefault(key, Collections.emptyList());
+    }
+
+    /**
+     * Check if a primitive has a key used by any conflation command
+     *
+     * @param primitive The primitive to check
+     * @return {@code true} if the primitive has a conflation key
+     */
+    public static boolean hasConflationKey(OsmPrimitive primitive) {
+        return primitive.hasKey(lookup.keyArray);
+    }
+
+    /**
+     * Sort primitives into the commands that are interested in them. Keys are not
+     * checked, since earlier commands may add keys for later commands.
+     *
+     * @param primitives The primitives to sort
+     * @return The primitives for each command (commands without primitives are
+     *         not included)
+     */
+    public static Map<Descriptor, Collection<OsmPrimitive>> sort(Collection<? extends OsmPrimitive> primitives) {
+        final Lookup current = lookup;
+        final Map<Descriptor, Collection<OsmPrimitive>> sorted = new LinkedHashMap<>();
+        for (OsmPrimitive primitive : primitives) {
+            for (Descriptor descriptor : current.byType.getOrDefault(primitive.getType(), Collections.emptyList())) {
+                sorted.computeIfAbsent(descriptor, d -> new TreeSet<>()).add(primitive);
+            }
+        }
+        return sorted;
+    }
+
+    private static AbstractConflationCommand newInstance(Class<? extends AbstractConflationCommand> command,
+            DataSet dataSet) {
+        try {
+            return command.getConstructor(DataSet.class).newInstance(dataSet);
+        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException
+                | InvocationTargetException | NoSuchMethodException | SecurityException e) {
+            Logging.error(e);
+        }
+        return null;
+    }
+
+    /**
+     * The information about a conflation command that does not depend upon the
+     * data
+     */
+    public static final class Descriptor {
+        private final Class<? extends AbstractConflationCommand> commandClass;
+        private final String key;
+        private final Collection<Class<? extends OsmPrimitive>> interestedTypes;
+        private final Collection<Class<? extends AbstractConflationCommand>> conflictedCommands;
+        private final boolean keyShouldNotExistInOSM;
+        private final boolean allowUndo;
+
+        Descriptor(Class<? extends AbstractConflationCommand> commandClass, AbstractConflationCommand instance) {
+            this.commandClass = commandClass;
+            this.key = instance.getKey();
+            this.interestedTypes = Collections.unmodifiableList(new ArrayList<>(instance.getInterestedTypes()));
+            this.conflictedCommands = Collections.unmodifiableList(new ArrayList<>(instance.conflictedCommands()));
+            this.keyShouldNotExistInOSM = instance.keyShouldNotExistInOSM();
+            this.allowUndo = instance.allowUndo();
+        }
+
+        /**
+         * Create a new command for a dataset
+         *
+         * @param dataSet The dataset the command will affect
+         * @return The command, or {@code null} if it could not be created
+         */
+        public AbstractConflationCommand newInstance(DataSet dataSet) {
+            return ConflationCommandRegistry.newInstance(commandClass, dataSet);
+        }
+
+        /**
+         * Get the command class
+         *
+         * @return The class of the command
+         */
+        public Class<? extends AbstractConflationCommand> getCommandClass() {
+            return commandClass;
+        }
+
+        /**
+         * Get the key of the command
+         *
+         * @return See {@link AbstractConflationCommand#getKey}
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Get the primitive types the command works on
+         *
+         * @return See {@link AbstractConflationCommand#getInterestedTypes}
+         */
+        public Collection<Class<? extends OsmPrimitive>> getInterestedTypes() {
+            return interestedTypes;
+        }
+
+        /**
+         * Get the commands that conflict with the command
+         *
+         * @return See {@link AbstractConflationCommand#conflictedCommands}
+         */
+        public Collection<Class<? extends AbstractConflationCommand>> getConflictedCommands() {
+            return conflictedCommands;
+        }
+
+        /**
+         * Check if the key should be removed before upload
+         *
+         * @return See {@link AbstractConflationCommand#keyShouldNotExistInOSM}
+         */
+        public boolean keyShouldNotExistInOSM() {
+            return keyShouldNotExistInOSM;
+        }
+
+        /**
+         * Check if the command can be undone separately
+         *
+         * @return See {@link AbstractConflationCommand#allowUndo}
+         */
+        public boolean allowUndo() {
+            return allowUndo;
+        }
+    }
+
+    /**
+     * Precomputed lookups for a set of descriptors
+     */
+    private static final class Lookup {
+        final List<Descriptor> descriptors;
+        final Set<Class<? extends AbstractConflationCommand>> classes;
+        final Set<String> keys;
+        final String[] keyArray;
+        final Set<String> osmForbiddenKeys;
+        final Map<String, List<Descriptor>> byKey;
+        final Map<OsmPrimitiveType, List<Descriptor>> byType;
+
+        Lookup(Collection<Descriptor> descriptors) {
+            this.descriptors = Collections.unmodifiableList(new ArrayList<>(descriptors));
+            final Set<Class<? extends AbstractConflationCommand>> tClasses = new LinkedHashSet<>();
+            final Set<String> tKeys = new LinkedHashSet<>();
+            final Set<String> tOsmForbiddenKeys = new LinkedHashSet<>();
+            final Map<String, List<Descriptor>> tByKey = new LinkedHashMap<>();
+            final Map<OsmPrimitiveType, List<Descriptor>> tByType = new EnumMap<>(OsmPrimitiveType.class);
+            for (Descriptor descriptor : descriptors) {
+                tClasses.add(descriptor.getCommandClass());
+                tKeys.add(descriptor.getKey());
+                if (descriptor.keyShouldNotExistInOSM()) {
+                    tOsmForbiddenKeys.add(descriptor.getKey());
+                }
+                tByKey.computeIfAbsent(descriptor.getKey(), k -> new ArrayList<>()).add(descriptor);
+                for (OsmPrimitiveType type : OsmPrimitiveType.dataValues()) {
+                    if (descriptor.getInterestedTypes().stream()
+                            .anyMatch(clazz -> clazz.isAssignableFrom(type.getOsmClass()))) {
+                        tByType.computeIfAbsent(type, t -> new ArrayList<>()).add(descriptor);
+                    }
+                }
+            }
+            this.classes = Collections.unmodifiableSet(tClasses);
+            this.keys = Collections.unmodifiableSet(tKeys);
+            this.keyArray = tKeys.toArray(new String[0]);
+            this.osmForbiddenKeys = Collections.unmodifiableSet(tOsmForbiddenKeys);
+            this.byKey = Collections.unmodifiableMap(tByKey);
+            this.byType = Collections.unmodifiableMap(tByType);
+        }
+    }
+}
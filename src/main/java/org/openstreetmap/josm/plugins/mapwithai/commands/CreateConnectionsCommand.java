@@ -3,16 +3,14 @@ package org.openstreetmap.josm.plugins.mapwithai.commands;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 import org.openstreetmap.josm.command.Command;
@@ -23,25 +21,11 @@ import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.PrimitiveData;
 import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
-import org.openstreetmap.josm.plugins.mapwithai.commands.cleanup.MissingConnectionTags;
-import org.openstreetmap.josm.plugins.mapwithai.commands.cleanup.OverNodedWays;
-import org.openstreetmap.josm.tools.Logging;
-import org.openstreetmap.josm.tools.Utils;
 
 public class CreateConnectionsCommand extends Command {
     private final Collection<PrimitiveData> primitives;
     private Command command;
     private Command undoCommands;
-    private static final LinkedHashSet<Class<? extends AbstractConflationCommand>> CONFLATION_COMMANDS = new LinkedHashSet<>();
-    static {
-        CONFLATION_COMMANDS.add(MissingConnectionTags.class);
-        CONFLATION_COMMANDS.add(ConnectedCommand.class);
-        CONFLATION_COMMANDS.add(DuplicateCommand.class);
-        CONFLATION_COMMANDS.add(MergeAddressBuildings.class);
-        CONFLATION_COMMANDS.add(MergeBuildingAddress.class);
-        CONFLATION_COMMANDS.add(OverNodedWays.class);
-        CONFLATION_COMMANDS.add(AlreadyConflatedCommand.class);
-    }
 
     public CreateConnectionsCommand(DataSet data, Collection<PrimitiveData> primitives) {
         super(data);
@@ -85,36 +69,35 @@ public class CreateConnectionsCommand extends Command {
     public static List<Command> createConnections(DataSet dataSet, Collection<PrimitiveData> collection) {
         final List<Command> permanent = new ArrayList<>();
         final List<Command> undoable = new ArrayList<>();
-        List<Class<? extends AbstractConflationCommand>> runCommands = new ArrayList<>();
-        for (final Class<? extends AbstractConflationCommand> abstractCommandClass : getConflationCommands()) {
-            final AbstractConflationCommand abstractCommand;
-            try {
-                abstractCommand = abstractCommandClass.getConstructor(DataSet.class).newInstance(dataSet);
-            } catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-                    | InvocationTargetException | NoSuchMethodException | SecurityException e) {
-                Logging.debug(e);
+        final List<Class<? extends AbstractConflationCommand>> runCommands = new ArrayList<>();
+        final Collection<OsmPrimitive> realPrimitives = collection.stream().map(dataSet::getPrimitiveById)
+                .filter(Objects::nonNull).collect(Collectors.toList());
+        // Download everything the commands reference at once, instead of once per node
+        AbstractConflationCommand.prefetchPrimitives(dataSet, realPrimitives, ConnectedCommand.KEY,
+                DuplicateCommand.KEY);
+        final Map<ConflationCommandRegistry.Descriptor, Collection<OsmPrimitive>> sorted = ConflationCommandRegistry
+                .sort(realPrimitives);
+        for (final ConflationCommandRegistry.Descriptor descriptor : ConflationCommandRegistry.getDescriptors()) {
+            // If there are conflicting commands, don't add it.
+            if (runCommands.stream().anyMatch(descriptor.getConflictedCommands()::contains)) {
                 continue;
             }
-            // If there are conflicting commands, don't add it.
-            if (runCommands.parallelStream().anyMatch(c -> abstractCommand.conflictedCommands().contains(c))) {
+            final AbstractConflationCommand abstractCommand = descriptor.newInstance(dataSet);
+            if (abstractCommand == null) {
                 continue;
             }
-            final Collection<OsmPrimitive> realPrimitives = collection.stream().map(dataSet::getPrimitiveById)
-                    .filter(Objects::nonNull).collect(Collectors.toList());
-            final Collection<OsmPrimitive> tPrimitives = new TreeSet<>();
-            abstractCommand.getInterestedTypes()
-                    .forEach(clazz -> tPrimitives.addAll(Utils.filteredCollection(realPrimitives, clazz)));
-
-            final Command actualCommand = abstractCommand.getCommand(
-                    tPrimitives.stream().filter(prim -> prim.hasKey(abstractCommand.getKey()) && !prim.isDeleted())
+            // Earlier commands may add keys, so the keys are checked when the command is created
+            final Command actualCommand = abstractCommand
+                    .getCommand(sorted.getOrDefault(descriptor, Collections.emptyList()).stream()
+                            .filter(prim -> prim.hasKey(descriptor.getKey()) && !prim.isDeleted())
                             .collect(Collectors.toList()));
             if (Objects.nonNull(actualCommand)) {
-                if (abstractCommand.allowUndo()) {
+                if (descriptor.allowUndo()) {
                     undoable.add(actualCommand);
                 } else {
                     permanent.add(actualCommand);
                 }
-                runCommands.add(abstractCommand.getClass());
+                runCommands.add(descriptor.getCommandClass());
             }
         }
 
@@ -145,9 +128,10 @@ public class CreateConnectionsCommand extends Command {
      * Add third-party commands that are run when conflating data.
      *
      * @param command A command to run when copying data from the MapWithAI layer
+     * @see ConflationCommandRegistry#register
      */
     public static void addConflationCommand(Class<? extends AbstractConflationCommand> command) {
-        CONFLATION_COMMANDS.add(command);
+        ConflationCommandRegistry.register(command);
     }
 
     /**
@@ -156,7 +140,7 @@ public class CreateConnectionsCommand extends Command {
      * @return A set of commands to run when copying data from the MapWithAI layer
      */
     public static Set<Class<? extends AbstractConflationCommand>> getConflationCommands() {
-        return Collections.unmodifiableSet(CONFLATION_COMMANDS);
+        return ConflationCommandRegistry.getCommandClasses();
     }
 
     /**
@@ -167,6 +151,6 @@ public class CreateConnectionsCommand extends Command {
      * @see List#remove
      */
     public static boolean removeConflationCommand(Class<? extends AbstractConflationCommand> command) {
-        return CONFLATION_COMMANDS.remove(command);
+        return ConflationCommandRegistry.unregister(command);
     }
 }
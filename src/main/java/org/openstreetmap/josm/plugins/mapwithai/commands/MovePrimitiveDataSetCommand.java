@@ -4,7 +4,6 @@ package org.openstreetmap.josm.plugins.mapwithai.commands;
 import static org.openstreetmap.josm.tools.I18n.tr;
 import static org.openstreetmap.josm.tools.I18n.trn;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
@@ -118,15 +117,8 @@ public class MovePrimitiveDataSetCommand extends Command {
         Set<OsmPrimitive> fullSelection = new HashSet<>();
         MapWithAIDataUtils.addPrimitivesToCollection(fullSelection, selection);
         if (!fullSelection.isEmpty()) {
-            CreateConnectionsCommand.getConflationCommands().forEach(clazz -> {
-                try {
-                    removeKeyCommand.add(new ChangePropertyCommand(fullSelection,
-                            clazz.getConstructor(DataSet.class).newInstance(from).getKey(), null));
-                } catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-                        | InvocationTargetException | NoSuchMethodException | SecurityException e) {
-                    Logging.error(e);
-                }
-            });
+            ConflationCommandRegistry.getKeys()
+                    .forEach(key -> removeKeyCommand.add(new ChangePropertyCommand(fullSelection, key, null)));
         }
         Command delete;
         if (!removeKeyCommand.isEmpty()) {
@@ -3,14 +3,18 @@ package org.openstreetmap.josm.plugins.mapwithai.commands.cleanup;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -39,10 +43,9 @@ import org.openstreetmap.josm.gui.layer.Layer;
 import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
 import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.plugins.mapwithai.commands.AbstractConflationCommand;
-import org.openstreetmap.josm.plugins.mapwithai.commands.CreateConnectionsCommand;
+import org.openstreetmap.josm.plugins.mapwithai.commands.ConflationCommandRegistry;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.Geometry;
-import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.Utils;
 
 /**
@@ -137,65 +140,92 @@ public class MissingConnectionTags extends AbstractConflationCommand {
     }
 
     /**
-     * Find nodes that may be missing a dupe tag
+     * Find nodes that may be missing a dupe tag. All of the nodes are checked in a
+     * single duplicate node test.
      *
      * @param possiblyAffectedPrimitives The primitives that may be affected
      * @return The issues
      */
     protected static Collection<TestError> findDuplicateNodes(Collection<OsmPrimitive> possiblyAffectedPrimitives) {
         Collection<TestError> issues = new ArrayList<>();
-        DuplicateNode duplicateNodeTest = new DuplicateNode();
+        Set<Node> affectedNodes = new LinkedHashSet<>();
+        Set<Node> toVisit = new LinkedHashSet<>();
         for (Way way : Utils.filteredCollection(possiblyAffectedPrimitives, Way.class)) {
-            for (Node node : way.getNodes()) {
-                duplicateNodeTest.startTest(NullProgressMonitor.INSTANCE);
-                BBox searchBBox = node.getBBox();
-                searchBBox.addPrimitive(node, 0.001);
-                way.getDataSet().searchNodes(searchBBox).stream().filter(MissingConnectionTags::noConflationKey)
-                        .forEach(duplicateNodeTest::visit);
-                duplicateNodeTest.endTest();
-                List<OsmPrimitive> dupeNodes = duplicateNodeTest.getErrors().stream()
-                        .filter(e -> e.getPrimitives().contains(node)).flatMap(e -> e.getPrimitives().stream())
-                        .distinct()
-                        .filter(p -> !p.isDeleted() && !p.equals(node) && noConflationKey(p) && p.getOsmId() > 0)
-                        .collect(Collectors.toList());
-                if (duplicateNodeTest.getErrors().isEmpty() || dupeNodes.isEmpty()) {
-                    continue;
+            affectedNodes.addAll(way.getNodes());
+            BBox searchBBox = new BBox(way);
+            searchBBox.addPrimitive(way, 0.001);
+            way.getDataSet().searchNodes(searchBBox).stream().filter(MissingConnectionTags::noConflationKey)
+                    .forEach(toVisit::add);
+        }
+        DuplicateNode duplicateNodeTest = new DuplicateNode();
+        duplicateNodeTest.startTest(NullProgressMonitor.INSTANCE);
+        toVisit.forEach(duplicateNodeTest::visit);
+        duplicateNodeTest.endTest();
+        Map<Node, List<TestError>> errorsByNode = new HashMap<>();
+        for (TestError error : duplicateNodeTest.getErrors()) {
+            for (OsmPrimitive primitive : error.getPrimitives()) {
+                if (primitive instanceof Node && affectedNodes.contains(primitive)) {
+                    errorsByNode.computeIfAbsent((Node) primitive, n -> new ArrayList<>()).add(error);
                 }
-                List<String> dupes = duplicateNodeTest.getErrors().stream()
-                        .filter(e -> e.getPrimitives().contains(node)).flatMap(e -> e.getPrimitives().stream())
-                        .distinct().filter(p -> !p.isDeleted() && !p.equals(node)).map(OsmPrimitive::getPrimitiveId)
-                        .map(Object::toString).collect(Collectors.toList());
-
-                TestError initial = duplicateNodeTest.getErrors().get(0);
-                List<OsmPrimitive> prims = new ArrayList<>(dupeNodes);
-                prims.add(node);
-                issues.add(TestError.builder(initial.getTester(), initial.getSeverity(), initial.getCode())
-                        .message(initial.getMessage()).primitives(prims)
-                        .fix(() -> new ChangePropertyCommand(node, "dupe", String.join(",", dupes))).build());
-                duplicateNodeTest.clear();
             }
         }
+        for (Node node : affectedNodes) {
+            List<TestError> errors = errorsByNode.get(node);
+            if (errors == null) {
+                continue;
+            }
+            List<OsmPrimitive> dupeNodes = errors.stream().flatMap(e -> e.getPrimitives().stream()).distinct()
+                    .filter(p -> !p.isDeleted() && !p.equals(node) && noConflationKey(p) && p.getOsmId() > 0)
+                    .collect(Collectors.toList());
+            if (dupeNodes.isEmpty()) {
+                continue;
+            }
+            List<String> dupes = errors.stream().flatMap(e -> e.getPrimitives().stream()).distinct()
+                    .filter(p -> !p.isDeleted() && !p.equals(node)).map(OsmPrimitive::getPrimitiveId)
+                    .map(Object::toString).collect(Collectors.toList());
+
+            TestError initial = errors.get(0);
+            List<OsmPrimitive> prims = new ArrayList<>(dupeNodes);
+            prims.add(node);
+            issues.add(TestError.builder(initial.getTester(), initial.getSeverity(), initial.getCode())
+                    .message(initial.getMessage()).primitives(prims)
+                    .fix(() -> new ChangePropertyCommand(node, "dupe", String.join(",", dupes))).build());
+        }
         return issues;
     }
 
     /**
-     * Find nodes that may be missing a conn tag
+     * Find nodes that may be missing a conn tag. All of the ways are checked in a
+     * single crossing ways test, and the crossings are then matched to the
+     * affected ways they are near.
      *
      * @param possiblyAffectedPrimitives The primitives that may be affected
      * @return The issues found
      */
     protected Collection<TestError> findCrossingWaysAtNodes(Collection<OsmPrimitive> possiblyAffectedPrimitives) {
         Collection<TestError> issues = new ArrayList<>();
-        CrossingWays.Ways crossingWays = new CrossingWays.Ways();
+        Map<Way, Set<Way>> nearbyWays = new LinkedHashMap<>();
+        Set<Way> toVisit = new LinkedHashSet<>();
         for (Way way : Utils.filteredCollection(possiblyAffectedPrimitives, Way.class)) {
+            Set<Way> nearby = way.getDataSet().searchWays(way.getBBox()).stream().filter(w -> w.hasKey(HIGHWAY))
+                    .collect(Collectors.toSet());
+            nearbyWays.put(way, nearby);
+            toVisit.addAll(nearby);
+        }
+        CrossingWays.Ways crossingWays = new CrossingWays.Ways();
+        crossingWays.startTest(NullProgressMonitor.INSTANCE);
+        toVisit.forEach(crossingWays::visit);
+        crossingWays.endTest();
+        List<TestError> errors = crossingWays.getErrors().stream().filter(error -> error.getPrimitives().stream()
+                .filter(Way.class::isInstance).map(Way.class::cast).anyMatch(w -> w.hasKey(HIGHWAY)))
+                .collect(Collectors.toList());
+        for (Map.Entry<Way, Set<Way>> entry : nearbyWays.entrySet()) {
+            Way way = entry.getKey();
             Collection<OsmPrimitive> seenFix = new HashSet<>();
-            crossingWays.startTest(NullProgressMonitor.INSTANCE);
-            way.getDataSet().searchWays(way.getBBox()).stream().filter(w -> w.hasKey(HIGHWAY))
-                    .forEach(crossingWays::visit);
-            crossingWays.endTest();
-            for (TestError error : crossingWays.getErrors()) {
-                if (seenFix.containsAll(error.getPrimitives()) || error.getPrimitives().stream()
-                        .filter(Way.class::isInstance).map(Way.class::cast).noneMatch(w -> w.hasKey(HIGHWAY))) {
+            for (TestError error : errors) {
+                // Only use crossings that would be found when looking at the way by itself
+                if (!entry.getValue().containsAll(error.getPrimitives())
+                        || seenFix.containsAll(error.getPrimitives())) {
                     continue;
                 }
                 TestError.Builder fixError = TestError.builder(error.getTester(), error.getSeverity(), error.getCode())
@@ -204,7 +234,6 @@ public class MissingConnectionTags extends AbstractConflationCommand {
                 seenFix.addAll(error.getPrimitives());
                 issues.add(fixError.build());
             }
-            crossingWays.clear();
         }
         return issues;
     }
@@ -298,16 +327,7 @@ public class MissingConnectionTags extends AbstractConflationCommand {
     }
 
     private static boolean noConflationKey(OsmPrimitive prim) {
-        return CreateConnectionsCommand.getConflationCommands().stream().map(c -> {
-            try {
-                return c.getConstructor(DataSet.class)
-                        .newInstance(prim.getDataSet() == null ? new DataSet() : prim.getDataSet());
-            } catch (InstantiationException | IllegalAccessException | IllegalArgumentException
-                    | InvocationTargetException | NoSuchMethodException | SecurityException e) {
-                Logging.error(e);
-            }
-            return null;
-        }).filter(Objects::nonNull).noneMatch(c -> prim.hasKey(c.getKey()));
+        return !ConflationCommandRegistry.hasConflationKey(prim);
     }
 
     @Override
@@ -0,0 +1,187 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.DataSource;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.plugins.mapwithai.commands.ConnectedCommand;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAICategory;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIConflationCategory;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+
+/**
+ * Test class for {@link BoundingBoxMapWithAIDownloader}
+ */
+class BoundingBoxMapWithAIDownloaderTest {
+    @RegisterExtension
+    MapWithAITestRules rule = (MapWithAITestRules) new MapWithAITestRules().wiremock().projection().main();
+
+    private static final String TILE = "<?xml version='1.0' encoding='UTF-8'?><osm version='0.6'>"
+            + "<bounds minlat='39.0' minlon='-108.01' maxlat='39.01' maxlon='-108.0'/>"
+            + "<node id='-1' lat='39.0005' lon='-108.0005'><tag k='amenity' v='bench'/></node></osm>";
+
+    private static final String ROAD = "<?xml version='1.0' encoding='UTF-8'?><osm version='0.6'>"
+            + "<bounds minlat='39.0' minlon='-108.01' maxlat='39.01' maxlon='-108.0'/>"
+            + "<node id='-1' lat='39.0005' lon='-108.0005'/><node id='-2' lat='39.0009' lon='-108.0005'/>"
+            + "<way id='-3'><nd ref='-1'/><nd ref='-2'/><tag k='highway' v='residential'/></way></osm>";
+
+    private MapWithAIInfo info;
+
+    @BeforeEach
+    void setUp() {
+        MapWithAITileCache.clear();
+        ConflationResultCache.clear();
+        MapWithAIDownloadScheduler.shutdown();
+        // The rules turn tiled downloads off, since the recorded responses are for bboxes
+        MapWithAIPreferenceHelper.setTiledDownload(true);
+        info = new MapWithAIInfo("Test", rule.getWireMock().baseUrl() + "/tiles?bbox={bbox}", "test");
+        rule.getWireMock().stubFor(get(urlPathEqualTo("/tiles")).willReturn(
+                aResponse().withFixedDelay(500).withHeader("Content-Type", "text/xml").withBody(TILE)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        MapWithAIDownloadScheduler.shutdown();
+        MapWithAITileCache.clear();
+        LocalConflation.ENABLED.remove();
+    }
+
+    private MapWithAITile getTile() {
+        final List<MapWithAITile> tiles = MapWithAIDataUtils.getTiles(
+                Collections.singleton(new Bounds(39, -108.001, 39.001, -108)),
+                MapWithAIDataUtils.MAXIMUM_SIDE_DIMENSIONS, info);
+        assertFalse(tiles.isEmpty(), "The area should be tiled");
+        return tiles.get(0);
+    }
+
+    @Test
+    void testTiledDownload() throws Exception {
+        final MapWithAITile tile = getTile();
+        final MapWithAIDownloadScheduler scheduler = MapWithAIDownloadScheduler.getInstance();
+        final Future<DataSet> first = scheduler.submit(new BoundingBoxMapWithAIDownloader(tile, info, false), 0,
+                null);
+        final Future<DataSet> second = scheduler.submit(new BoundingBoxMapWithAIDownloader(tile, info, false), 0,
+                null);
+        assertEquals(1, first.get(10, TimeUnit.SECONDS).getNodes().size());
+        assertEquals(1, second.get(10, TimeUnit.SECONDS).getNodes().size());
+        assertNotSame(first.get(), second.get(), "Each caller should get its own data");
+        rule.getWireMock().verify(1, getRequestedFor(urlPathEqualTo("/tiles")));
+
+        assertNotNull(MapWithAITileCache.get(info, tile, null), "The tile should be cached");
+        final DataSet cached = new BoundingBoxMapWithAIDownloader(tile, info, false)
+                .parseOsm(NullProgressMonitor.INSTANCE);
+        assertEquals(1, cached.getNodes().size());
+        rule.getWireMock().verify(1, getRequestedFor(urlPathEqualTo("/tiles")));
+    }
+
+    @Test
+    void testLocalConflationOfCachedTile() throws Exception {
+        LocalConflation.ENABLED.put(true);
+        rule.getWireMock().stubFor(get(urlPathEqualTo("/tiles"))
+                .willReturn(aResponse().withHeader("Content-Type", "text/xml").withBody(ROAD)));
+        final MapWithAITile tile = getTile();
+        final DataSet downloaded = new BoundingBoxMapWithAIDownloader(tile, info, false)
+                .parseOsm(NullProgressMonitor.INSTANCE);
+        assertTrue(downloaded.getNodes().stream().noneMatch(node -> node.hasKey(ConnectedCommand.KEY)),
+                "There is no OSM data to connect to");
+
+        // An uploaded OSM road that the downloaded road ends on
+        final Node first = new Node(1, 1);
+        first.setCoor(new LatLon(39.0005, -108.0006));
+        final Node second = new Node(2, 1);
+        second.setCoor(new LatLon(39.0005, -108.0004));
+        final Way way = new Way(1, 1);
+        way.setNodes(Arrays.asList(first, second));
+        way.put("highway", "residential");
+        final DataSet osm = new DataSet(first, second);
+        osm.addPrimitive(way);
+        osm.addDataSource(new DataSource(tile.getBounds(), "OSM"));
+        MainApplication.getLayerManager().addLayer(new OsmDataLayer(osm, "OSM", null));
+
+        final DataSet cached = new BoundingBoxMapWithAIDownloader(tile, info, false)
+                .parseOsm(NullProgressMonitor.INSTANCE);
+        rule.getWireMock().verify(1, getRequestedFor(urlPathEqualTo("/tiles")));
+        assertEquals(1, cached.getNodes().stream().filter(node -> node.hasTag(ConnectedCommand.KEY, "w1,n1,n2"))
+                .count(), "The cached tile should be conflated with the current OSM data");
+    }
+
+    /**
+     * Download a tile twice with the same index. The second time, the tile is
+     * read from the cache, and all of the features have already been seen.
+     *
+     * @param tile The tile to download
+     * @throws Exception If the download failed
+     */
+    private void assertDuplicatesRemoved(MapWithAITile tile) throws Exception {
+        final ServerIdIndex index = new ServerIdIndex();
+        final DataSet first = new BoundingBoxMapWithAIDownloader(tile, info, false).setServerIdIndex(index)
+                .parseOsm(NullProgressMonitor.INSTANCE);
+        assertEquals(1, first.allNonDeletedPrimitives().size());
+        final DataSet second = new BoundingBoxMapWithAIDownloader(tile, info, false).setServerIdIndex(index)
+                .parseOsm(NullProgressMonitor.INSTANCE);
+        rule.getWireMock().verify(1, getRequestedFor(urlPathEqualTo("/tiles")));
+        assertTrue(second.allNonDeletedPrimitives().isEmpty(), "The cached tile should be deduplicated");
+        assertTrue(first.allPrimitives().stream().noneMatch(p -> p.hasKey(ServerIdIndex.KEY)),
+                "The server ids should not be kept in the returned data");
+    }
+
+    @Test
+    void testDuplicatesInCachedTile() throws Exception {
+        assertDuplicatesRemoved(getTile());
+    }
+
+    @Test
+    void testDuplicatesInConflatedTile() throws Exception {
+        info.setCategory(MapWithAICategory.PREVIEW);
+        MapWithAIConflationCategory.addConflationUrlFor(MapWithAICategory.PREVIEW,
+                rule.getWireMock().baseUrl() + "/conflate");
+        // The conflation server returns the feature, so the server id is not in the conflated data
+        rule.getWireMock().stubFor(post(urlEqualTo("/conflate")).willReturn(aResponse()
+                .withHeader("Content-Type", "text/xml").withBody("<?xml version='1.0' encoding='UTF-8'?>"
+                        + "<osm version='0.6'><node id='-1' lat='39.0005' lon='-108.0005'>"
+                        + "<tag k='amenity' v='bench'/><tag k='dupe' v='n1'/></node></osm>")));
+        assertDuplicatesRemoved(getTile());
+        rule.getWireMock().verify(1, postRequestedFor(urlEqualTo("/conflate")));
+    }
+
+    @Test
+    void testRetryPending() {
+        final BoundingBoxMapWithAIDownloader downloader = new BoundingBoxMapWithAIDownloader(getTile(), info, false);
+        assertFalse(downloader.isRetryPending());
+        // The download is retried in the background
+        assertTrue(downloader.process(null).allPrimitives().isEmpty());
+        assertTrue(downloader.isRetryPending(), "The area should not be considered to be downloaded");
+        downloader.process(new DataSet());
+        assertFalse(downloader.isRetryPending());
+    }
+}
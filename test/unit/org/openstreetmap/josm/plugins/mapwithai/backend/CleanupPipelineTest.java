@@ -0,0 +1,134 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAICategory;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link CleanupPipeline}
+ */
+class CleanupPipelineTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences().projection();
+
+    @BeforeEach
+    @AfterEach
+    void reset() {
+        CleanupPipeline.reset();
+    }
+
+    private static DataSet getDataSet() {
+        final DataSet ds = new DataSet();
+        final Way way = TestUtils.newWay("highway=residential", new Node(new LatLon(39, -108)),
+                new Node(new LatLon(39.001, -108)));
+        way.getNodes().forEach(ds::addPrimitive);
+        ds.addPrimitive(way);
+        return ds;
+    }
+
+    @Test
+    void testStatistics() {
+        GetDataRunnable.cleanup(getDataSet(), null, null);
+        final CleanupPipeline.Statistics statistics = CleanupPipeline.getStatistics()
+                .get(DefaultCleanupStages.TAGS);
+        assertEquals(1, statistics.getRuns());
+        assertEquals(3, statistics.getProcessed());
+        assertTrue(statistics.getTime() > 0);
+    }
+
+    @Test
+    void testOrder() {
+        final List<String> run = new ArrayList<>();
+        CleanupPipeline.addStage(0, new TestStage("first", run));
+        CleanupPipeline.addStage(new TestStage("last", run));
+        assertEquals("first", CleanupPipeline.getStages().get(0).getName());
+        GetDataRunnable.cleanup(getDataSet(), null, null);
+        assertEquals(Arrays.asList("first", "last"), run);
+
+        run.clear();
+        assertTrue(CleanupPipeline.removeStage("first"));
+        assertFalse(CleanupPipeline.removeStage("first"));
+        GetDataRunnable.cleanup(getDataSet(), null, null);
+        assertEquals(Collections.singletonList("last"), run);
+    }
+
+    @Test
+    void testEnabled() {
+        final CleanupStage duplicateWays = CleanupPipeline.getStages().stream()
+                .filter(stage -> DefaultCleanupStages.DUPLICATE_WAYS.equals(stage.getName())).findFirst()
+                .orElseThrow(AssertionError::new);
+        final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+        assertTrue(CleanupPipeline.isEnabled(duplicateWays, null));
+        assertTrue(CleanupPipeline.isEnabled(duplicateWays, info));
+        info.setCategory(MapWithAICategory.BUILDING);
+        assertFalse(CleanupPipeline.isEnabled(duplicateWays, info), "Building sources do not have highways");
+        info.setCategory(MapWithAICategory.HIGHWAY);
+        assertTrue(CleanupPipeline.isEnabled(duplicateWays, info));
+
+        Config.getPref().putList(MapWithAIPlugin.NAME.concat(".cleanup.disabled"),
+                Collections.singletonList("test:" + DefaultCleanupStages.DUPLICATE_WAYS));
+        assertFalse(CleanupPipeline.isEnabled(duplicateWays, info));
+        assertTrue(CleanupPipeline.isEnabled(duplicateWays, null));
+        Config.getPref().putList(MapWithAIPlugin.NAME.concat(".cleanup.disabled"),
+                Collections.singletonList(DefaultCleanupStages.DUPLICATE_WAYS));
+        assertFalse(CleanupPipeline.isEnabled(duplicateWays, null));
+    }
+
+    private static final class TestStage implements CleanupStage {
+        private final String name;
+        private final List<String> run;
+
+        TestStage(String name, List<String> run) {
+            this.name = name;
+            this.run = run;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Collection<Class<? extends OsmPrimitive>> getReadTypes() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Collection<Class<? extends OsmPrimitive>> getWriteTypes() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public int run(CleanupContext context) {
+            run.add(name);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.OsmReader;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link ConflationContextExtractor}
+ */
+class ConflationContextExtractorTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences().projection();
+
+    private final Bounds bounds = new Bounds(0, 0, 0.01, 0.01);
+    private DataSet dataSet;
+    private Node inside;
+    private Node buffered;
+    private Node outside;
+    private Node wayEnd;
+    private Way way;
+
+    @BeforeEach
+    void setUp() {
+        dataSet = new DataSet();
+        inside = new Node(new LatLon(0.005, 0.005));
+        // ~50m outside of the bounds
+        buffered = new Node(new LatLon(0.0105, 0.005));
+        outside = new Node(new LatLon(1, 1));
+        wayEnd = new Node(new LatLon(2, 2));
+        way = TestUtils.newWay("highway=residential", inside, wayEnd);
+        dataSet.addPrimitiveRecursive(way);
+        dataSet.addPrimitive(buffered);
+        dataSet.addPrimitive(outside);
+    }
+
+    @Test
+    void testGetPrimitives() {
+        final Set<OsmPrimitive> primitives = ConflationContextExtractor.getPrimitives(dataSet, bounds, 100);
+        assertTrue(primitives.contains(inside));
+        assertTrue(primitives.contains(buffered), "Primitives in the buffer should be included");
+        assertTrue(primitives.contains(way));
+        assertTrue(primitives.contains(wayEnd), "Ways should be complete");
+        assertFalse(primitives.contains(outside));
+
+        assertFalse(ConflationContextExtractor.getPrimitives(dataSet, bounds, 0).contains(buffered));
+    }
+
+    @Test
+    void testContext() throws Exception {
+        final byte[] context = ConflationContextExtractor.getContext(dataSet, bounds, 100);
+        final DataSet parsed = OsmReader.parseDataSet(new ByteArrayInputStream(context),
+                NullProgressMonitor.INSTANCE);
+        assertEquals(3, parsed.getNodes().size());
+        assertEquals(1, parsed.getWays().size());
+
+        assertSame(context, ConflationContextExtractor.getContext(dataSet, bounds, 100),
+                "The context should be cached");
+        inside.setCoor(new LatLon(0.006, 0.006));
+        assertNotSame(context, ConflationContextExtractor.getContext(dataSet, bounds, 100),
+                "The cache should be invalidated when the data changes");
+    }
+}
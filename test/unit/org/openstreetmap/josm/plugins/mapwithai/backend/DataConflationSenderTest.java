@@ -0,0 +1,92 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAICategory;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIConflationCategory;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+
+/**
+ * Test class for {@link DataConflationSender}
+ */
+class DataConflationSenderTest {
+    @RegisterExtension
+    MapWithAITestRules rule = (MapWithAITestRules) new MapWithAITestRules().wiremock().projection();
+
+    private static final String CONFLATED = "<?xml version='1.0' encoding='UTF-8'?>"
+            + "<osm version='0.6'><node id='-1' lat='1.0' lon='1.0'><tag k='building' v='yes'/></node></osm>";
+
+    private DataSet external;
+
+    @BeforeEach
+    void setUp() {
+        ConflationResultCache.clear();
+        MapWithAIConflationCategory.addConflationUrlFor(MapWithAICategory.PREVIEW,
+                rule.getWireMock().baseUrl() + "/conflate");
+        external = new DataSet();
+        external.addPrimitive(new Node(new LatLon(1, 1)));
+    }
+
+    @Test
+    void testConflation() throws Exception {
+        rule.getWireMock().stubFor(post(urlEqualTo("/conflate"))
+                .willReturn(aResponse().withHeader("Content-Type", "text/xml").withBody(CONFLATED)));
+        final DataSet conflated = new DataConflationSender(MapWithAICategory.PREVIEW, null, external).start()
+                .get(10, TimeUnit.SECONDS);
+        assertNotNull(conflated);
+        assertEquals(1, conflated.getNodes().size());
+        assertTrue(conflated.getNodes().iterator().next().hasTag("building", "yes"));
+        rule.getWireMock().verify(postRequestedFor(urlEqualTo("/conflate")).withRequestBody(containing("external")));
+    }
+
+    @Test
+    void testCache() throws Exception {
+        rule.getWireMock().stubFor(post(urlEqualTo("/conflate"))
+                .willReturn(aResponse().withHeader("Content-Type", "text/xml").withBody(CONFLATED)));
+        assertNotNull(new DataConflationSender(MapWithAICategory.PREVIEW, null, external).start().get(10,
+                TimeUnit.SECONDS));
+        // The same data, with different ids
+        final DataSet reparsed = new DataSet();
+        reparsed.addPrimitive(new Node(new LatLon(1, 1)));
+        final DataSet conflated = new DataConflationSender(MapWithAICategory.PREVIEW, null, reparsed).start()
+                .get(10, TimeUnit.SECONDS);
+        assertNotNull(conflated);
+        assertTrue(conflated.getNodes().iterator().next().hasTag("building", "yes"));
+        rule.getWireMock().verify(1, postRequestedFor(urlEqualTo("/conflate")));
+
+        reparsed.getNodes().iterator().next().put("highway", "crossing");
+        assertNotNull(new DataConflationSender(MapWithAICategory.PREVIEW, null, reparsed).start().get(10,
+                TimeUnit.SECONDS));
+        rule.getWireMock().verify(2, postRequestedFor(urlEqualTo("/conflate")));
+    }
+
+    @Test
+    void testTimeout() {
+        rule.getWireMock().stubFor(post(urlEqualTo("/conflate")).willReturn(
+                aResponse().withFixedDelay(5_000).withHeader("Content-Type", "text/xml").withBody(CONFLATED)));
+        final DataConflationSender sender = new DataConflationSender(MapWithAICategory.PREVIEW, null, external).start();
+        assertThrows(TimeoutException.class, () -> sender.get(100, TimeUnit.MILLISECONDS));
+        assertTrue(sender.isCancelled(), "A timed out request should be cancelled");
+        assertTrue(sender.isDone());
+        assertThrows(CancellationException.class, () -> sender.get(100, TimeUnit.MILLISECONDS));
+    }
+}
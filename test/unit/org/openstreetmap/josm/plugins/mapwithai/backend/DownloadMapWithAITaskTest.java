@@ -2,6 +2,7 @@
 package org.openstreetmap.josm.plugins.mapwithai.backend;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -11,6 +12,8 @@ import java.net.URL;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
+import org.awaitility.Awaitility;
+import org.awaitility.Durations;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 import org.openstreetmap.josm.actions.downloadtasks.DownloadParams;
@@ -39,6 +42,23 @@ class DownloadMapWithAITaskTest {
         assertNotNull(task.getDownloadedData(), "Data should be downloaded");
     }
 
+    @Test
+    void testLayerDataSourceBounds() throws InterruptedException, ExecutionException {
+        DownloadMapWithAITask task = new DownloadMapWithAITask();
+        Future<?> future = task.download(null, new DownloadParams(), MapWithAIDataUtilsTest.getTestBounds(),
+                NullProgressMonitor.INSTANCE);
+        future.get();
+        MapWithAILayer layer = MapWithAIDataUtils.getLayer(false);
+        assertNotNull(layer, "The layer should be created");
+        // The data is merged into the layer in the background
+        Awaitility.await().atMost(Durations.TEN_SECONDS)
+                .until(() -> !layer.getDataSet().getDataSourceBounds().isEmpty());
+        assertFalse(layer.getDataSet().getDataSourceBounds().isEmpty(),
+                "The layer should know what area was downloaded");
+        assertFalse(task.getDownloadedData().getDataSourceBounds().isEmpty(),
+                "The downloaded data should also know what area was downloaded");
+    }
+
     @Test
     void testGetConfirmationMessage() throws MalformedURLException {
         DownloadMapWithAITask task = new DownloadMapWithAITask();
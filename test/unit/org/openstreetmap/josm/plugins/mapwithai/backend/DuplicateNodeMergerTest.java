@@ -0,0 +1,109 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link DuplicateNodeMerger}
+ */
+class DuplicateNodeMergerTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences().projection();
+
+    /** Roughly 0.1 m of latitude */
+    private static final double OFFSET = 0.000_001;
+
+    private static int merge(DataSet ds) {
+        return DuplicateNodeMerger.mergeNodes(ds, ds.getNodes(), 0.6);
+    }
+
+    @Test
+    void testMergeWayNodes() {
+        final Node shared1 = new Node(new LatLon(39, -108));
+        final Node shared2 = new Node(new LatLon(39 + OFFSET, -108));
+        final Way way1 = TestUtils.newWay("highway=residential", new Node(new LatLon(39, -108.001)), shared1);
+        final Way way2 = TestUtils.newWay("highway=residential", shared2, new Node(new LatLon(39.001, -108)));
+        final DataSet ds = new DataSet();
+        way1.getNodes().forEach(ds::addPrimitive);
+        way2.getNodes().forEach(ds::addPrimitive);
+        ds.addPrimitive(way1);
+        ds.addPrimitive(way2);
+
+        assertEquals(1, merge(ds));
+        assertSame(way1.lastNode(), way2.firstNode());
+        assertEquals(3, ds.getNodes().stream().filter(node -> !node.isDeleted()).count());
+    }
+
+    @Test
+    void testNodesAreNotChained() {
+        final DataSet ds = new DataSet();
+        for (int i = 0; i < 5; i++) {
+            ds.addPrimitive(new Node(new LatLon(39 + i * 4 * OFFSET, -108)));
+        }
+        assertEquals(2, merge(ds), "Only nodes that are close to the first node of a cluster should be merged");
+        assertEquals(3, ds.getNodes().stream().filter(node -> !node.isDeleted()).count());
+    }
+
+    @Test
+    void testRowOfTaggedNodes() {
+        final DataSet ds = new DataSet();
+        // Bollards every 5 m, which is less than ten times the merge distance
+        for (int i = 0; i < 5; i++) {
+            final Node bollard = new Node(new LatLon(39 + i * 45 * OFFSET, -108));
+            bollard.put("barrier", "bollard");
+            ds.addPrimitive(bollard);
+        }
+        assertEquals(2, merge(ds), "A row of nodes with the same tags must not collapse into one node");
+        assertEquals(3, ds.getNodes().stream().filter(node -> !node.isDeleted()).count());
+    }
+
+    @Test
+    void testTags() {
+        final DataSet ds = new DataSet();
+        final Node empty = new Node(new LatLon(39, -108));
+        final Node bench = new Node(new LatLon(39 + OFFSET, -108));
+        bench.put("amenity", "bench");
+        final Node bin = new Node(new LatLon(39, -108 + OFFSET));
+        bin.put("amenity", "waste_basket");
+        ds.addPrimitive(empty);
+        ds.addPrimitive(bench);
+        ds.addPrimitive(bin);
+        assertEquals(1, merge(ds), "Nodes with different tags must not be merged");
+        assertFalse(bench.isDeleted() && bin.isDeleted());
+        assertTrue(ds.getNodes().stream().filter(node -> !node.isDeleted())
+                .allMatch(node -> "bench".equals(node.get("amenity")) || "waste_basket".equals(node.get("amenity"))));
+
+        final Node farBench = new Node(new LatLon(39 + 30 * OFFSET, -108));
+        farBench.put("amenity", "bench");
+        ds.addPrimitive(farBench);
+        assertEquals(1, merge(ds), "Nodes with the same tags are merged further apart");
+    }
+
+    @Test
+    void testNonHighwayParents() {
+        final Node node1 = new Node(new LatLon(39, -108));
+        final Node node2 = new Node(new LatLon(39 + OFFSET, -108));
+        final Way building = TestUtils.newWay("building=yes", node1, new Node(new LatLon(39.001, -108)));
+        final DataSet ds = new DataSet();
+        building.getNodes().forEach(ds::addPrimitive);
+        ds.addPrimitive(building);
+        ds.addPrimitive(node2);
+        assertEquals(0, merge(ds));
+    }
+}
@@ -10,6 +10,7 @@ import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -27,6 +28,8 @@ import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.data.projection.ProjectionRegistry;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAILayerInfo;
 import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
 import org.openstreetmap.josm.testutils.JOSMTestRules;
 import org.openstreetmap.josm.tools.Geometry;
@@ -112,6 +115,38 @@ class GetDataRunnableTest {
         assertFalse(ds.allNonDeletedPrimitives().isEmpty());
     }
 
+    @Test
+    void testCleanupRegions() {
+        final Node inside = new Node(new LatLon(39, -108));
+        inside.put("current_id", "1");
+        inside.put("amenity", "bench");
+        final Node outside = new Node(new LatLon(40, -108));
+        outside.put("current_id", "2");
+        outside.put("amenity", "bench");
+        final DataSet ds = new DataSet(inside, outside);
+        GetDataRunnable.cleanupRegions(ds,
+                Collections.singleton(new Bounds(38.99, -108.01, 39.01, -107.99).toBBox()), null);
+        assertFalse(inside.hasKey("current_id"), "Data in the region should be cleaned up");
+        assertTrue(outside.hasKey("current_id"), "Data outside of the region should not be cleaned up");
+    }
+
+    @Test
+    void testCleanupRegionsChangesAreApplied() {
+        final Way first = TestUtils.newWay("highway=residential", new Node(new LatLon(39, -108.0005)),
+                new Node(new LatLon(39, -108)));
+        final Way second = TestUtils.newWay("highway=residential", new Node(new LatLon(39, -108)),
+                new Node(new LatLon(39.0005, -108)));
+        final DataSet ds = new DataSet();
+        Arrays.asList(first, second).forEach(way -> {
+            way.getNodes().forEach(ds::addPrimitive);
+            ds.addPrimitive(way);
+        });
+        GetDataRunnable.cleanupRegions(ds,
+                Collections.singleton(new Bounds(38.99, -108.01, 39.01, -107.99).toBBox()), null);
+        assertSame(first.lastNode(), second.firstNode(), "The ways in the dataset should share the merged node");
+        assertEquals(3, ds.getNodes().stream().filter(node -> !node.isDeleted()).count());
+    }
+
     @Test
     void testAlreadyAddedElements() {
         Way addedWay = TestUtils.newWay("", new Node(new LatLon(0, 0)), new Node(new LatLon(1, 1)));
@@ -147,4 +182,34 @@ class GetDataRunnableTest {
         DataSet ds = new DataSet();
         assertDoesNotThrow(() -> GetDataRunnable.replaceTags(ds));
     }
+
+    @Test
+    void testPartitionsAreNotSmallerThanSourceTiles() {
+        final List<MapWithAIInfo> layers = new ArrayList<>(MapWithAILayerInfo.getInstance().getLayers());
+        assumeTrue(!layers.isEmpty());
+        final MapWithAIInfo info = layers.get(0);
+        final int dimensions = MapWithAIDataUtils.MAXIMUM_SIDE_DIMENSIONS;
+        MapWithAITileSizeController.resetInstance();
+        try {
+            // Fast responses give the source larger tiles than the other sources
+            final MapWithAITileSizeController controller = MapWithAITileSizeController.getInstance();
+            final int zoom = controller.getZoom(info);
+            for (int i = 0; i < 3; i++) {
+                controller.recordSuccess(info, zoom, 500, 100);
+            }
+            final int sourceZoom = MapWithAIDataUtils.getTileZoom(dimensions, info);
+            final int partitionZoom = GetDataRunnable.getPartitionZoom(dimensions);
+            assertTrue(partitionZoom <= sourceZoom, "A source tile should never span several partitions");
+            final Bounds bounds = new Bounds(39.0, -108.5, 39.1, -108.4);
+            final List<MapWithAITile> partitions = MapWithAITile.getTiles(bounds, partitionZoom);
+            for (MapWithAITile tile : MapWithAIDataUtils.getTiles(Collections.singleton(bounds), dimensions, info)) {
+                // Tiles at a larger zoom are nested in the tiles at a smaller zoom
+                assertEquals(1, partitions.stream()
+                        .filter(partition -> partition.getBounds().contains(tile.getBounds().getCenter())).count(),
+                        () -> tile + " should be in exactly one partition");
+            }
+        } finally {
+            MapWithAITileSizeController.resetInstance();
+        }
+    }
 }
@@ -0,0 +1,87 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.commands.ConnectedCommand;
+import org.openstreetmap.josm.plugins.mapwithai.commands.DuplicateCommand;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link LocalConflation}
+ */
+class LocalConflationTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().projection();
+
+    /**
+     * Get OSM data with a single uploaded road
+     *
+     * @return The OSM data
+     */
+    private static DataSet getOsmData() {
+        final Node first = new Node(1, 1);
+        first.setCoor(new LatLon(39, -108.001));
+        final Node second = new Node(2, 1);
+        second.setCoor(new LatLon(39, -107.999));
+        final Way way = new Way(1, 1);
+        way.setNodes(Arrays.asList(first, second));
+        way.put("highway", "residential");
+        final DataSet dataSet = new DataSet(first, second);
+        dataSet.addPrimitive(way);
+        return dataSet;
+    }
+
+    private static Way addRoad(DataSet dataSet, LatLon start, LatLon end) {
+        final Node first = new Node(start);
+        final Node second = new Node(end);
+        final Way way = new Way();
+        way.setNodes(Arrays.asList(first, second));
+        way.put("highway", "residential");
+        dataSet.addPrimitive(first);
+        dataSet.addPrimitive(second);
+        dataSet.addPrimitive(way);
+        return way;
+    }
+
+    @Test
+    void testConnection() {
+        final DataSet externalData = new DataSet();
+        final Way way = addRoad(externalData, new LatLon(39.00002, -108.0005), new LatLon(39.001, -108.0005));
+        assertEquals(1, LocalConflation.conflate(externalData, getOsmData()));
+        assertEquals("w1,n1,n2", way.firstNode().get(ConnectedCommand.KEY));
+        assertFalse(way.lastNode().hasKey(ConnectedCommand.KEY), "The far end should not be connected");
+    }
+
+    @Test
+    void testDuplicate() {
+        final DataSet externalData = new DataSet();
+        final Way way = addRoad(externalData, new LatLon(39, -108.001), new LatLon(39.001, -108.001));
+        assertEquals(1, LocalConflation.conflate(externalData, getOsmData()));
+        assertEquals("n1", way.firstNode().get(DuplicateCommand.KEY));
+        assertFalse(way.firstNode().hasKey(ConnectedCommand.KEY), "Duplicates should not also be connected");
+    }
+
+    @Test
+    void testNewOsmData() {
+        final DataSet osmData = new DataSet();
+        addRoad(osmData, new LatLon(39, -108.001), new LatLon(39, -107.999));
+        final DataSet externalData = new DataSet();
+        addRoad(externalData, new LatLon(39, -108.001), new LatLon(39.001, -108.001));
+        assertEquals(0, LocalConflation.conflate(externalData, osmData),
+                "New OSM primitives cannot be referenced by the conflation tags");
+    }
+}
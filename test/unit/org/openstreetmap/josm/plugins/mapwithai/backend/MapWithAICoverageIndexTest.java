@@ -0,0 +1,92 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link MapWithAICoverageIndex}
+ */
+class MapWithAICoverageIndexTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences();
+
+    private final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+    private final MapWithAIInfo other = new MapWithAIInfo("Test 2", "https://example.org/{bbox}", "test2");
+    private final MapWithAICoverageIndex coverage = new MapWithAICoverageIndex();
+
+    @Test
+    void testTiles() {
+        final MapWithAITile tile = MapWithAITile.fromLatLon(39.0, -108.0, 14);
+        assertFalse(coverage.isCovered(info, tile));
+        coverage.add(info, tile);
+        assertTrue(coverage.isCovered(info, tile));
+        assertFalse(coverage.isCovered(other, tile), "Sources should be tracked separately");
+        for (MapWithAITile child : tile.getChildren()) {
+            assertTrue(coverage.isCovered(info, child), "Children of a covered tile are covered");
+        }
+        assertTrue(coverage.isCovered(info, MapWithAITile.fromLatLon(39.0, -108.0, 19)));
+        assertFalse(coverage.isCovered(info, tile.getParent()));
+    }
+
+    @Test
+    void testParentCoveredByChildren() {
+        final MapWithAITile tile = MapWithAITile.fromLatLon(39.0, -108.0, 13);
+        final List<MapWithAITile> children = tile.getChildren();
+        for (int i = 0; i < children.size(); i++) {
+            assertFalse(coverage.isCovered(info, tile));
+            coverage.add(info, children.get(i));
+        }
+        assertTrue(coverage.isCovered(info, tile), "A tile is covered when all of its children are");
+    }
+
+    @Test
+    void testLargeTiles() {
+        final MapWithAITile tile = MapWithAITile.fromLatLon(39.0, -108.0, MapWithAICoverageIndex.CHUNK_ZOOM - 1);
+        coverage.add(info, tile);
+        assertTrue(coverage.isCovered(info, tile));
+        assertTrue(coverage.isCovered(info, MapWithAITile.fromLatLon(39.0, -108.0, 16)));
+    }
+
+    @Test
+    void testBounds() {
+        final Bounds bounds = new Bounds(39.0, -108.0, 39.01, -107.99);
+        assertFalse(coverage.isCovered(info, bounds));
+        coverage.add(info, bounds);
+        assertTrue(coverage.isCovered(info, bounds));
+        assertTrue(coverage.isCovered(info, new Bounds(39.002, -107.998, 39.008, -107.992)));
+        assertFalse(coverage.isCovered(info, new Bounds(39.005, -108.0, 39.015, -107.99)),
+                "Partially covered bounds are not covered");
+    }
+
+    @Test
+    void testSmallBounds() {
+        final Bounds bounds = new Bounds(0.0001, 0.0001, 0.0002, 0.0002);
+        coverage.add(info, bounds);
+        assertTrue(coverage.isCovered(info, bounds));
+    }
+
+    @Test
+    void testMissingTiles() {
+        final Bounds bounds = new Bounds(39.0, -108.0, 39.05, -107.95);
+        final List<MapWithAITile> tiles = MapWithAITile.getTiles(bounds, 15);
+        coverage.add(info, tiles.get(0));
+        final List<MapWithAITile> missing = coverage.getMissingTiles(info, Collections.singleton(bounds), 15);
+        assertEquals(tiles.size() - 1, missing.size());
+        assertFalse(missing.contains(tiles.get(0)));
+    }
+}
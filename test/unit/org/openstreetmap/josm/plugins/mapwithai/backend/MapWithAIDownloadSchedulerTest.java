@@ -0,0 +1,258 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.awaitility.Awaitility;
+import org.awaitility.Durations;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.DataSource;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.plugins.mapwithai.MapWithAIPlugin;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link MapWithAIDownloadScheduler}
+ */
+class MapWithAIDownloadSchedulerTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences();
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    /** Released when the downloaded data may be processed */
+    private final CountDownLatch processLatch = new CountDownLatch(1);
+    private final List<Double> order = Collections.synchronizedList(new ArrayList<>());
+    private final List<DataSet> fetched = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() {
+        MapWithAIDownloadScheduler.shutdown();
+        Config.getPref().putInt(MapWithAIPlugin.NAME.concat(".download.threads"), 4);
+        Config.getPref().putInt(MapWithAIPlugin.NAME.concat(".download.perhost"), 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        latch.countDown();
+        processLatch.countDown();
+        MapWithAIDownloadScheduler.shutdown();
+    }
+
+    private Future<DataSet> submit(MapWithAIInfo info, double priority) {
+        // Use a different area for each priority, so that the downloads are not coalesced
+        return submit(info, priority, new Bounds(0, priority, 0.001, priority + 0.001));
+    }
+
+    private Future<DataSet> submit(MapWithAIInfo info, double priority, Bounds bounds) {
+        return MapWithAIDownloadScheduler.getInstance().submit(getDownloader(info, priority, bounds), priority, null);
+    }
+
+    private BoundingBoxMapWithAIDownloader getDownloader(MapWithAIInfo info, double priority, Bounds bounds) {
+        return new BoundingBoxMapWithAIDownloader(bounds, info, false) {
+            @Override
+            DataSet fetch(ProgressMonitor progressMonitor) {
+                order.add(priority);
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                final DataSet dataSet = new DataSet();
+                dataSet.addDataSource(new DataSource(bounds, "Test"));
+                fetched.add(dataSet);
+                return dataSet;
+            }
+
+            @Override
+            DataSet process(DataSet dataSet) {
+                return dataSet;
+            }
+        };
+    }
+
+    private BoundingBoxMapWithAIDownloader getSlowDownloader(MapWithAIInfo info, Bounds bounds) {
+        return new BoundingBoxMapWithAIDownloader(bounds, info, false) {
+            @Override
+            DataSet fetch(ProgressMonitor progressMonitor) {
+                order.add(-1d);
+                return new DataSet();
+            }
+
+            @Override
+            DataSet process(DataSet dataSet) {
+                // E.g., conflation
+                try {
+                    processLatch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return dataSet;
+            }
+        };
+    }
+
+    @Test
+    void testPerHostLimitAndPriority() throws Exception {
+        final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+        final List<Future<DataSet>> futures = new ArrayList<>();
+        futures.add(submit(info, 0));
+        Awaitility.await().atMost(Durations.FIVE_SECONDS).until(() -> order.size() == 1);
+        futures.add(submit(info, 3));
+        futures.add(submit(info, 1));
+        futures.add(submit(info, 2));
+        final MapWithAIDownloadScheduler scheduler = MapWithAIDownloadScheduler.getInstance();
+        assertEquals(1, scheduler.getRunningCount(), "Only one download per host should run");
+        assertEquals(3, scheduler.getQueuedCount());
+
+        latch.countDown();
+        for (Future<DataSet> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(Arrays.asList(0d, 1d, 2d, 3d), order, "Downloads should start in priority order");
+    }
+
+    @Test
+    void testDifferentHosts() {
+        submit(new MapWithAIInfo("Test", "https://example.com/{bbox}", "test"), 0);
+        submit(new MapWithAIInfo("Test 2", "https://example.org/{bbox}", "test2"), 0);
+        Awaitility.await().atMost(Durations.FIVE_SECONDS).until(() -> order.size() == 2);
+        assertEquals(2, MapWithAIDownloadScheduler.getInstance().getRunningCount());
+    }
+
+    @Test
+    void testCancelQueued() {
+        final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+        submit(info, 0);
+        Awaitility.await().atMost(Durations.FIVE_SECONDS).until(() -> order.size() == 1);
+        final Future<DataSet> queued = submit(info, 1);
+        assertEquals(1, MapWithAIDownloadScheduler.getInstance().getQueuedCount());
+        assertTrue(queued.cancel(true));
+        assertEquals(0, MapWithAIDownloadScheduler.getInstance().getQueuedCount());
+        assertThrows(CancellationException.class, () -> MapWithAIDownloadScheduler.await(queued, null));
+        latch.countDown();
+        assertEquals(1, order.size(), "The cancelled download should never start");
+    }
+
+    @Test
+    void testCoalescing() throws Exception {
+        final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+        final Bounds bounds = new Bounds(0, 0, 0.001, 0.001);
+        final Future<DataSet> first = submit(info, 1, bounds);
+        final Future<DataSet> second = submit(info, 0, bounds);
+        final Future<DataSet> third = submit(info, 2, bounds);
+        Awaitility.await().atMost(Durations.FIVE_SECONDS).until(() -> order.size() == 1);
+        assertEquals(Collections.singletonList(1d), order, "Only one download should be started");
+
+        assertTrue(first.cancel(true));
+        assertTrue(first.isCancelled());
+        assertThrows(CancellationException.class, () -> first.get(5, TimeUnit.SECONDS));
+        assertFalse(second.isDone(), "Cancelling one request should not cancel the shared download");
+
+        latch.countDown();
+        final DataSet dataSet = second.get(5, TimeUnit.SECONDS);
+        assertSame(dataSet, second.get(5, TimeUnit.SECONDS));
+        final DataSet other = third.get(5, TimeUnit.SECONDS);
+        assertNotSame(dataSet, other, "Each caller should get its own data");
+        // Merging one caller's data (which moves the data sources) should not affect the other caller's data
+        new DataSet().mergeFrom(dataSet);
+        assertFalse(other.getDataSourceBounds().isEmpty());
+        assertEquals(1, order.size());
+
+        submit(info, 3, bounds);
+        Awaitility.await().atMost(Durations.FIVE_SECONDS).until(() -> order.size() == 2);
+        assertEquals(3d, order.get(1), "Finished downloads should not be reused");
+    }
+
+    @Test
+    void testCancelCoalesced() {
+        final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+        submit(info, 0);
+        Awaitility.await().atMost(Durations.FIVE_SECONDS).until(() -> order.size() == 1);
+        final Bounds bounds = new Bounds(1, 1, 1.001, 1.001);
+        final Future<DataSet> first = submit(info, 1, bounds);
+        final Future<DataSet> second = submit(info, 1, bounds);
+        assertEquals(1, MapWithAIDownloadScheduler.getInstance().getQueuedCount());
+        assertTrue(first.cancel(true));
+        assertEquals(1, MapWithAIDownloadScheduler.getInstance().getQueuedCount(),
+                "The download should stay queued while someone is waiting for it");
+        assertTrue(second.cancel(true));
+        assertEquals(0, MapWithAIDownloadScheduler.getInstance().getQueuedCount());
+    }
+
+    @Test
+    void testSubmitAsync() throws Exception {
+        final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+        final Bounds bounds = new Bounds(0, 0, 0.001, 0.001);
+        final Future<DataSet> future = submit(info, 0, bounds);
+        final CompletableFuture<DataSet> completable = MapWithAIDownloadScheduler.getInstance()
+                .submitAsync(getDownloader(info, 1, bounds), 0);
+        assertFalse(completable.isDone());
+        latch.countDown();
+        assertNotSame(future.get(5, TimeUnit.SECONDS), completable.get(5, TimeUnit.SECONDS));
+        assertEquals(1, order.size(), "The asynchronous download should be coalesced with the existing download");
+    }
+
+    @Test
+    void testSingleCallerIsNotCopied() throws Exception {
+        final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+        final Future<DataSet> future = submit(info, 0);
+        latch.countDown();
+        assertSame(fetched.get(0), future.get(5, TimeUnit.SECONDS), "The only caller should not get a copy");
+    }
+
+    @Test
+    void testProcessingDoesNotUseDownloadSlot() throws Exception {
+        final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+        final MapWithAIDownloadScheduler scheduler = MapWithAIDownloadScheduler.getInstance();
+        final Future<DataSet> slow = scheduler.submit(getSlowDownloader(info, new Bounds(1, 1, 1.001, 1.001)), 0,
+                null);
+        final CompletableFuture<DataSet> slowAsync = scheduler
+                .submitAsync(getSlowDownloader(info, new Bounds(2, 2, 2.001, 2.001)), 0);
+        assertThrows(TimeoutException.class, () -> slow.get(500, TimeUnit.MILLISECONDS),
+                "The processing should be part of the timeout");
+        // Only one download per host, so the next download only starts once the slots are released
+        latch.countDown();
+        final Future<DataSet> next = submit(info, 1);
+        assertEquals(1, next.get(5, TimeUnit.SECONDS).getDataSources().size());
+        assertFalse(slowAsync.isDone(), "The data should still be processing");
+        processLatch.countDown();
+        slow.get(5, TimeUnit.SECONDS);
+        slowAsync.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testPriority() {
+        final Bounds bounds = new Bounds(1, 1, 2, 2);
+        assertEquals(0, MapWithAIDownloadScheduler.getPriority(bounds, null));
+        assertTrue(MapWithAIDownloadScheduler.getPriority(bounds, new LatLon(1.5, 1.5)) < MapWithAIDownloadScheduler
+                .getPriority(bounds, new LatLon(10, 10)));
+    }
+}
@@ -0,0 +1,138 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.awaitility.Awaitility;
+import org.awaitility.Durations;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link MapWithAIMergeQueue}
+ */
+class MapWithAIMergeQueueTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences().main().projection();
+
+    private static DataSet getTile(int i) {
+        final DataSet dataSet = new DataSet();
+        dataSet.addPrimitive(new Node(new LatLon(i * 0.001, i * 0.001)));
+        return dataSet;
+    }
+
+    @Test
+    void testSingleEventBatch() {
+        final MapWithAILayer layer = new MapWithAILayer(new DataSet(), "MapWithAI", null);
+        final MapWithAIMergeQueue queue = new MapWithAIMergeQueue(layer);
+        final AtomicInteger events = new AtomicInteger();
+        layer.getDataSet().addDataSetListener(new DataSetListenerAdapter(event -> events.incrementAndGet()));
+        final int tiles = 64;
+        // Hold the layer lock so that the asynchronous flush cannot run early
+        layer.getLock().lock();
+        try {
+            for (int i = 0; i < tiles; i++) {
+                queue.add(getTile(i));
+            }
+        } finally {
+            layer.getLock().unlock();
+        }
+        queue.flush();
+        Awaitility.await().atMost(Durations.FIVE_SECONDS).until(() -> queue.size() == 0);
+        queue.flush();
+        assertEquals(tiles, layer.getDataSet().getNodes().size());
+        assertEquals(1, events.get(), "All of the tiles should be merged in one event batch");
+    }
+
+    @Test
+    void testDirtyRegions() {
+        final MapWithAILayer layer = new MapWithAILayer(new DataSet(), "MapWithAI", null);
+        final MapWithAIMergeQueue queue = new MapWithAIMergeQueue(layer);
+        layer.getLock().lock();
+        try {
+            queue.add(getTile(1));
+            queue.add(getTile(100));
+        } finally {
+            layer.getLock().unlock();
+        }
+        queue.flush();
+        final List<BBox> regions = queue.takeDirtyRegions();
+        assertEquals(2, regions.size());
+        assertTrue(regions.stream().anyMatch(bbox -> bbox.bounds(new LatLon(0.1, 0.1))));
+        assertTrue(queue.takeDirtyRegions().isEmpty(), "Dirty regions should only be returned once");
+    }
+
+    @Test
+    void testBatchCleanup() {
+        final MapWithAILayer layer = new MapWithAILayer(new DataSet(), "MapWithAI", null);
+        final MapWithAIMergeQueue queue = new MapWithAIMergeQueue(layer);
+        layer.getLock().lock();
+        try {
+            // The two tiles have (nearly) the same node on their shared edge
+            queue.add(getRoadTile(new LatLon(0, 0), new LatLon(0, 0.001)));
+            queue.add(getRoadTile(new LatLon(0, 0.0010000001), new LatLon(0, 0.002)));
+        } finally {
+            layer.getLock().unlock();
+        }
+        queue.flush();
+        Awaitility.await().atMost(Durations.FIVE_SECONDS).until(() -> queue.size() == 0);
+        queue.flush();
+        assertEquals(3, layer.getDataSet().getNodes().stream().filter(node -> !node.isDeleted()).count(),
+                "Duplicate nodes across tiles should be merged before the data is added to the layer");
+    }
+
+    private static DataSet getRoadTile(LatLon first, LatLon second) {
+        final DataSet dataSet = new DataSet();
+        final Way way = TestUtils.newWay("highway=residential", new Node(first), new Node(second));
+        way.getNodes().forEach(dataSet::addPrimitive);
+        dataSet.addPrimitive(way);
+        return dataSet;
+    }
+
+    @Test
+    void testFlushInEdt() {
+        final MapWithAILayer layer = new MapWithAILayer(new DataSet(), "MapWithAI", null);
+        final MapWithAIMergeQueue queue = new MapWithAIMergeQueue(layer);
+        // The EDT holds the layer lock when data is added to an OSM layer, and the
+        // asynchronous flush may be running at the same time
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> GuiHelper.runInEDTAndWait(() -> {
+            layer.getLock().lock();
+            try {
+                queue.add(getTile(1));
+                queue.add(getTile(2));
+                queue.flush();
+            } finally {
+                layer.getLock().unlock();
+            }
+        }));
+        Awaitility.await().atMost(Durations.FIVE_SECONDS).until(() -> layer.getDataSet().getNodes().size() == 2);
+    }
+
+    @Test
+    void testEmptyFlush() {
+        final MapWithAILayer layer = new MapWithAILayer(new DataSet(), "MapWithAI", null);
+        final MapWithAIMergeQueue queue = new MapWithAIMergeQueue(layer);
+        queue.add(null);
+        assertEquals(0, queue.flush());
+        assertEquals(0, layer.getDataSet().allPrimitives().size());
+    }
+}
@@ -0,0 +1,77 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link MapWithAIRetryScheduler}
+ */
+class MapWithAIRetrySchedulerTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences();
+
+    private final MapWithAIInfo info = new MapWithAIInfo("Test", "https://example.com/{bbox}", "test");
+    private final MapWithAIInfo other = new MapWithAIInfo("Test 2", "https://example.org/{bbox}", "test2");
+
+    @BeforeEach
+    @AfterEach
+    void reset() {
+        MapWithAIRetryScheduler.shutdown();
+    }
+
+    @Test
+    void testDelay() {
+        for (int attempt = 1; attempt < 10; attempt++) {
+            final long delay = MapWithAIRetryScheduler.getDelay(attempt);
+            final long maximum = TimeUnit.SECONDS.toNanos(Math.min(300, 10L << (attempt - 1)));
+            assertTrue(delay >= maximum / 2 && delay <= maximum, "The delay should be between half and all of "
+                    + TimeUnit.NANOSECONDS.toSeconds(maximum) + " seconds, was " + delay);
+        }
+    }
+
+    @Test
+    void testCircuitBreaker() {
+        final MapWithAIRetryScheduler scheduler = MapWithAIRetryScheduler.getInstance();
+        assertTrue(scheduler.isAvailable(info));
+        assertFalse(scheduler.hasFailedRecently(info, 2, TimeUnit.MINUTES));
+        scheduler.recordFailure(info);
+        scheduler.recordFailure(info);
+        assertTrue(scheduler.isAvailable(info), "A couple of failures should not stop downloads");
+        assertTrue(scheduler.hasFailedRecently(info, 2, TimeUnit.MINUTES));
+        scheduler.recordFailure(info);
+        assertFalse(scheduler.isAvailable(info));
+        assertTrue(scheduler.isAvailable(other), "Other sources should not be affected");
+
+        scheduler.recordSuccess(new BoundingBoxMapWithAIDownloader(new Bounds(0, 0, 0.001, 0.001), info, false));
+        assertTrue(scheduler.isAvailable(info));
+        assertFalse(scheduler.hasFailedRecently(info, 2, TimeUnit.MINUTES));
+    }
+
+    @Test
+    void testMaximumAttempts() {
+        final MapWithAIRetryScheduler scheduler = MapWithAIRetryScheduler.getInstance();
+        final BoundingBoxMapWithAIDownloader downloader = new BoundingBoxMapWithAIDownloader(
+                new Bounds(0, 0, 0.001, 0.001), info, false);
+        assertTrue(scheduler.retry(downloader));
+        assertTrue(scheduler.retry(downloader));
+        assertTrue(scheduler.retry(downloader));
+        assertFalse(scheduler.retry(downloader), "Downloads should only be retried a few times");
+        assertTrue(scheduler.retry(new BoundingBoxMapWithAIDownloader(new Bounds(1, 1, 1.001, 1.001), info, false)),
+                "Other areas are retried separately");
+    }
+}
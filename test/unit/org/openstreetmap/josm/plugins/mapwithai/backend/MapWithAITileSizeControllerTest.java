@@ -0,0 +1,76 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link MapWithAITileSizeController}
+ */
+class MapWithAITileSizeControllerTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences();
+
+    private final MapWithAIInfo fast = new MapWithAIInfo("Fast", "https://example.com/{bbox}", "fast");
+    private final MapWithAIInfo slow = new MapWithAIInfo("Slow", "https://example.org/{bbox}", "slow");
+
+    @BeforeEach
+    @AfterEach
+    void reset() {
+        MapWithAITileSizeController.resetInstance();
+    }
+
+    @Test
+    void testDefaultZoom() {
+        assertEquals(MapWithAIPreferenceHelper.getTileZoom(), MapWithAITileSizeController.getInstance().getZoom(fast));
+    }
+
+    @Test
+    void testFastSourceGetsLargerTiles() {
+        final MapWithAITileSizeController controller = MapWithAITileSizeController.getInstance();
+        final int zoom = controller.getZoom(fast);
+        controller.recordSuccess(fast, zoom, 500, 100);
+        controller.recordSuccess(fast, zoom, 500, 100);
+        assertEquals(zoom, controller.getZoom(fast), "A couple of fast responses should not change the tile size");
+        controller.recordSuccess(fast, zoom, 500, 100);
+        assertEquals(zoom - 1, controller.getZoom(fast));
+        assertEquals(zoom, controller.getZoom(slow), "Other sources should not be affected");
+    }
+
+    @Test
+    void testSlowSourceGetsSmallerTiles() {
+        final MapWithAITileSizeController controller = MapWithAITileSizeController.getInstance();
+        final int zoom = controller.getZoom(slow);
+        controller.recordSuccess(slow, zoom, 45_000, 100);
+        assertEquals(zoom + 1, controller.getZoom(slow));
+        controller.recordFailure(slow);
+        assertEquals(zoom + 2, controller.getZoom(slow));
+    }
+
+    @Test
+    void testLargeTilesAreSplit() {
+        final MapWithAITileSizeController controller = MapWithAITileSizeController.getInstance();
+        final int zoom = controller.getZoom(fast);
+        controller.recordSuccess(fast, zoom, 500, 50_000);
+        assertEquals(zoom + 1, controller.getZoom(fast));
+    }
+
+    @Test
+    void testPersistence() {
+        final int zoom = MapWithAITileSizeController.getInstance().getZoom(slow);
+        MapWithAITileSizeController.getInstance().recordFailure(slow);
+        MapWithAITileSizeController.resetInstance();
+        assertEquals(zoom + 1, MapWithAITileSizeController.getInstance().getZoom(slow),
+                "The tile size should be remembered between sessions");
+    }
+}
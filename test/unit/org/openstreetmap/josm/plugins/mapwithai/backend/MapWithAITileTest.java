@@ -0,0 +1,60 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+
+/**
+ * Test class for {@link MapWithAITile}
+ */
+class MapWithAITileTest {
+    @Test
+    void testQuadKey() {
+        assertEquals("213", new MapWithAITile(3, 3, 5).getQuadKey(), "See the Bing maps tile system documentation");
+        assertEquals("", new MapWithAITile(0, 0, 0).getQuadKey());
+    }
+
+    @Test
+    void testOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new MapWithAITile(1, 2, 0));
+        assertThrows(IllegalArgumentException.class, () -> new MapWithAITile(MapWithAITile.MAX_ZOOM + 1, 0, 0));
+    }
+
+    @Test
+    void testBoundsRoundTrip() {
+        final MapWithAITile tile = MapWithAITile.fromLatLon(39.0734162, -108.5707107, 15);
+        assertTrue(tile.getBounds().contains(new LatLon(39.0734162, -108.5707107)));
+        final List<MapWithAITile> tiles = MapWithAITile.getTiles(tile.getBounds(), 15);
+        assertEquals(Arrays.asList(tile), tiles, "A tile's bounds should only be covered by the tile itself");
+        assertEquals(4, MapWithAITile.getTiles(tile.getBounds(), 16).size());
+        assertEquals(tile.getChildren(), MapWithAITile.getTiles(tile.getBounds(), 16));
+        tile.getChildren().forEach(child -> assertEquals(tile, child.getParent()));
+    }
+
+    @Test
+    void testGetTiles() {
+        final Bounds bounds = new Bounds(39.0734162, -108.5715723, 39.0738791, -108.5707107);
+        final List<MapWithAITile> tiles = MapWithAITile.getTiles(bounds, 15);
+        assertEquals(1, tiles.size());
+        assertTrue(tiles.get(0).getBounds().contains(bounds.getCenter()));
+        // Collapsed bounds should still get a tile
+        assertEquals(1, MapWithAITile.getTiles(new Bounds(bounds.getCenter()), 15).size());
+    }
+
+    @Test
+    void testZoomForDimensions() {
+        assertEquals(12, MapWithAITile.getZoomForDimensions(10_000));
+        assertTrue(MapWithAITile.getDimensionsForZoom(12) <= 10_000);
+        assertTrue(MapWithAITile.getDimensionsForZoom(11) > 10_000);
+        assertEquals(MapWithAITile.MAX_ZOOM, MapWithAITile.getZoomForDimensions(0));
+        assertEquals(MapWithAITile.MIN_ZOOM, MapWithAITile.getZoomForDimensions(Double.MAX_VALUE));
+    }
+}
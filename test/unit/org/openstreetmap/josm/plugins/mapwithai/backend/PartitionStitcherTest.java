@@ -0,0 +1,63 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link PartitionStitcher}
+ */
+class PartitionStitcherTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences().main().projection();
+
+    private static DataSet getPartition(LatLon first, LatLon second) {
+        final DataSet dataSet = new DataSet();
+        final Way way = TestUtils.newWay("highway=residential", new Node(first), new Node(second));
+        way.getNodes().forEach(dataSet::addPrimitive);
+        dataSet.addPrimitive(way);
+        return dataSet;
+    }
+
+    @Test
+    void testBorders() {
+        final BBox west = new BBox(-108.01, 39, -108, 39.01);
+        final BBox east = new BBox(-108, 39, -107.99, 39.01);
+        final BBox far = new BBox(-100.01, 39, -100, 39.01);
+        final Collection<BBox> borders = PartitionStitcher.getBorders(Arrays.asList(west, east, far));
+        // The shared edge, and the top and bottom edges that touch the corners of the other partition
+        assertEquals(6, borders.size());
+        assertTrue(borders.stream().anyMatch(border -> border.bounds(new LatLon(39.005, -108))));
+        assertTrue(borders.stream().noneMatch(border -> border.bounds(new LatLon(39.005, -100))),
+                "Edges that are not near another partition should not be cleaned up");
+        assertTrue(PartitionStitcher.getBorders(Arrays.asList(west, far)).isEmpty());
+    }
+
+    @Test
+    void testStitch() {
+        final DataSet west = getPartition(new LatLon(39, -108.001), new LatLon(39, -108));
+        final DataSet east = getPartition(new LatLon(39, -107.9999999), new LatLon(39, -107.999));
+        final DataSet stitched = PartitionStitcher.stitch(Arrays.asList(west, east), null,
+                GetDataRunnable.getDefaultTagCleanupRules());
+        assertEquals(3, stitched.getNodes().stream().filter(node -> !node.isDeleted()).count(),
+                "The nodes on the border should be merged");
+        assertEquals(2, stitched.getWays().stream().filter(way -> !way.isDeleted()).count());
+    }
+}
@@ -0,0 +1,92 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link ServerIdIndex}
+ */
+class ServerIdIndexTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().projection();
+
+    /**
+     * Get a tile with a road, as it would be downloaded
+     *
+     * @param end The end of the road
+     * @return The tile
+     */
+    private static DataSet getTile(LatLon end) {
+        final Node first = new Node(new LatLon(39, -108));
+        first.put(GetDataRunnable.SERVER_ID_KEY, "1");
+        final Node second = new Node(end);
+        second.put(GetDataRunnable.SERVER_ID_KEY, "2");
+        final Way way = new Way();
+        way.setNodes(Arrays.asList(first, second));
+        way.put("highway", "residential");
+        way.put(GetDataRunnable.SERVER_ID_KEY, "1");
+        final DataSet dataSet = new DataSet(first, second);
+        dataSet.addPrimitive(way);
+        return dataSet;
+    }
+
+    @Test
+    void testServerIds() {
+        final Map<OsmPrimitive, String> ids = ServerIdIndex.getServerIds(getTile(new LatLon(39.001, -108)));
+        assertEquals(3, ids.size());
+        assertTrue(ids.containsValue("node/1"));
+        assertTrue(ids.containsValue("way/1"), "Ids should include the type, since types have separate ids");
+    }
+
+    @Test
+    void testRemoveDuplicates() {
+        final ServerIdIndex index = new ServerIdIndex();
+        final DataSet first = getTile(new LatLon(39.001, -108));
+        final DataSet second = getTile(new LatLon(39.001, -108));
+        assertEquals(0, index.removeDuplicates(first, null, ServerIdIndex.getServerIds(first)));
+        assertEquals(3, index.removeDuplicates(second, null, ServerIdIndex.getServerIds(second)));
+        assertTrue(second.allNonDeletedPrimitives().isEmpty());
+        assertEquals(3, first.allNonDeletedPrimitives().size());
+    }
+
+    @Test
+    void testDifferentGeometry() {
+        final ServerIdIndex index = new ServerIdIndex();
+        final DataSet first = getTile(new LatLon(39.001, -108));
+        final DataSet second = getTile(new LatLon(39.002, -108));
+        index.removeDuplicates(first, null, ServerIdIndex.getServerIds(first));
+        // The way is different, so the first node (which is the same) is still needed
+        assertEquals(0, index.removeDuplicates(second, null, ServerIdIndex.getServerIds(second)));
+        assertFalse(second.getWays().iterator().next().isDeleted());
+    }
+
+    @Test
+    void testKeepServerIds() {
+        final DataSet dataSet = getTile(new LatLon(39.001, -108));
+        ServerIdIndex.keepServerIds(ServerIdIndex.getServerIds(dataSet));
+        // The cleanup removes the server ids
+        dataSet.allPrimitives().forEach(primitive -> primitive.remove(GetDataRunnable.SERVER_ID_KEY));
+        final Map<OsmPrimitive, String> ids = ServerIdIndex.takeServerIds(new DataSet(dataSet));
+        assertEquals(3, ids.size(), "The ids should be kept when the data is copied");
+        assertTrue(ids.containsValue("way/1"));
+        assertTrue(ids.keySet().stream().noneMatch(primitive -> primitive.hasKey(ServerIdIndex.KEY)));
+    }
+}
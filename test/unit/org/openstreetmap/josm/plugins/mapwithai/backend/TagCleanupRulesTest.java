@@ -0,0 +1,98 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Tag;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.commands.MergeDuplicateWays;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link TagCleanupRules}
+ */
+class TagCleanupRulesTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().preferences();
+
+    private static final String SERVER_ID_KEY = "current_id";
+
+    @Test
+    void testRuleOrder() {
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("highway", "road");
+        tags.put("old", "value");
+        tags.put("note", " ");
+        tags.put(MergeDuplicateWays.ORIG_ID, "1");
+        final Node node = new Node(LatLon.ZERO);
+        assertTrue(new TagCleanupRules().renameKeys(Collections.singletonMap("old", "highway_old"))
+                .addSource("source", "test")
+                .replaceTags(Collections.singletonMap(new Tag("highway", "road"), new Tag("highway", "residential")))
+                .removeKeys(MergeDuplicateWays.ORIG_ID).removeEmptyValues().apply(node, tags));
+        assertEquals(3, tags.size());
+        assertEquals("residential", tags.get("highway"));
+        assertEquals("value", tags.get("highway_old"));
+        assertEquals("test", tags.get("source"));
+    }
+
+    @Test
+    void testUnchanged() {
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("highway", "residential");
+        tags.put("source", "survey");
+        assertFalse(new TagCleanupRules().addSource("source", "test").removeKeys(MergeDuplicateWays.ORIG_ID)
+                .replaceTags(Collections.singletonMap(new Tag("highway", "road"), new Tag("highway", "residential")))
+                .removeEmptyValues().apply(new Way(), tags));
+        assertEquals("survey", tags.get("source"));
+    }
+
+    @Test
+    void testApply() {
+        final Way way = TestUtils.newWay("highway=residential current_id=5 " + MergeDuplicateWays.ORIG_ID + "=5",
+                new Node(LatLon.ZERO), new Node(LatLon.NORTH_POLE));
+        final Node emptyNode = new Node(new LatLon(1, 1));
+        emptyNode.put(SERVER_ID_KEY, "6");
+        final Node taggedNode = new Node(new LatLon(2, 2));
+        taggedNode.put("amenity", "bench");
+        taggedNode.put(SERVER_ID_KEY, "7");
+        final DataSet ds = new DataSet();
+        way.getNodes().forEach(ds::addPrimitive);
+        ds.addPrimitive(way);
+        ds.addPrimitive(emptyNode);
+        ds.addPrimitive(taggedNode);
+
+        new TagCleanupRules().removeKeys(MergeDuplicateWays.ORIG_ID).removeNodeKeys(SERVER_ID_KEY)
+                .addSource("source", "test").deleteEmptyNodes().apply(ds);
+        assertEquals("5", way.get(SERVER_ID_KEY), "Only nodes should lose node keys");
+        assertNull(way.get(MergeDuplicateWays.ORIG_ID));
+        assertEquals("test", way.get("source"));
+        way.getNodes().forEach(node -> assertFalse(node.hasKeys(), "Nodes in ways should not get a source tag"));
+        way.getNodes().forEach(node -> assertFalse(node.isDeleted()));
+        assertFalse(taggedNode.hasKey(SERVER_ID_KEY));
+        assertEquals("test", taggedNode.get("source"));
+        assertFalse(taggedNode.isDeleted());
+        assertEquals("test", emptyNode.get("source"));
+
+        new TagCleanupRules().removeKeys("source").deleteEmptyNodes().apply(ds);
+        assertTrue(emptyNode.isDeleted());
+        assertFalse(taggedNode.isDeleted());
+        way.getNodes().forEach(node -> assertFalse(node.isDeleted()));
+    }
+}
@@ -0,0 +1,91 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link WayFingerprintIndex}
+ */
+class WayFingerprintIndexTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().projection();
+
+    @Test
+    void testFingerprint() {
+        final Way way = TestUtils.newWay("building=yes", new Node(new LatLon(39, -108)),
+                new Node(new LatLon(39.001, -108)), new Node(new LatLon(39.001, -108.001)));
+        final Way reversed = TestUtils.newWay("building=yes " + GetDataRunnable.MAPWITHAI_SOURCE_TAG_KEY + "=test",
+                new Node(new LatLon(39.001, -108.001)), new Node(new LatLon(39.001, -108)),
+                new Node(new LatLon(39, -108)));
+        assertEquals(WayFingerprintIndex.getFingerprint(way), WayFingerprintIndex.getFingerprint(reversed));
+        reversed.put("building", "house");
+        assertNotEquals(WayFingerprintIndex.getFingerprint(way), WayFingerprintIndex.getFingerprint(reversed));
+    }
+
+    @Test
+    void testListener() {
+        final Way way = TestUtils.newWay("highway=residential", new Node(new LatLon(39, -108)),
+                new Node(new LatLon(39.001, -108)));
+        final Way copy = TestUtils.newWay("highway=residential", new Node(new LatLon(39, -108)),
+                new Node(new LatLon(39.001, -108)));
+        final DataSet ds = new DataSet();
+        way.getNodes().forEach(ds::addPrimitive);
+        ds.addPrimitive(way);
+        final WayFingerprintIndex index = WayFingerprintIndex.getIndex(ds);
+        assertSame(index, WayFingerprintIndex.getIndex(ds));
+        assertEquals(Collections.singletonList(way), index.getCandidates(copy));
+
+        way.put("highway", "service");
+        assertTrue(index.getCandidates(copy).isEmpty(), "Tag changes should update the index");
+        copy.put("highway", "service");
+        assertEquals(Collections.singletonList(way), index.getCandidates(copy));
+
+        way.firstNode().setCoor(new LatLon(39, -108.001));
+        assertTrue(index.getCandidates(copy).isEmpty(), "Node moves should update the index");
+
+        final Node node = new Node(new LatLon(39.002, -108));
+        ds.addPrimitive(node);
+        way.firstNode().setCoor(new LatLon(39, -108));
+        way.setNodes(Arrays.asList(node, way.firstNode(), way.lastNode()));
+        assertTrue(index.getCandidates(copy).isEmpty(), "Way node changes should update the index");
+        copy.addNode(new Node(new LatLon(39.002, -108)));
+        assertEquals(Collections.singletonList(way), index.getCandidates(copy));
+
+        ds.removePrimitive(way);
+        assertTrue(index.getCandidates(copy).isEmpty());
+    }
+
+    @Test
+    void testRoundingBoundary() {
+        // The coordinates are within the precision of the server, but round to different values
+        final Way way = TestUtils.newWay("highway=residential", new Node(new LatLon(39 + 0.49e-7, -108)),
+                new Node(new LatLon(39.001, -108)));
+        final Way copy = TestUtils.newWay("highway=residential", new Node(new LatLon(39 + 0.51e-7, -108)),
+                new Node(new LatLon(39.001, -108 - 0.51e-7)));
+        assertTrue(way.firstNode().getCoor().equalsEpsilon(copy.firstNode().getCoor()));
+        final DataSet ds = new DataSet();
+        way.getNodes().forEach(ds::addPrimitive);
+        ds.addPrimitive(way);
+        assertEquals(Collections.singletonList(way), WayFingerprintIndex.getIndex(ds).getCandidates(copy),
+                "Ways should be found even if their coordinates round differently");
+    }
+}
@@ -0,0 +1,98 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+import org.openstreetmap.josm.tools.Geometry;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link WayGeometryKernel}
+ */
+class WayGeometryKernelTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().projection();
+
+    @Test
+    void testCornerAngle() {
+        final Way way = TestUtils.newWay("", new Node(new LatLon(39, -108)), new Node(new LatLon(39.001, -108)),
+                new Node(new LatLon(39.001, -108.001)), new Node(new LatLon(39.0005, -107.999)));
+        final WayGeometryKernel kernel = WayGeometryKernel.get();
+        assertTrue(kernel.load(way));
+        assertEquals(4, kernel.size());
+        for (int i = 0; i < way.getNodesCount() - 2; i++) {
+            assertEquals(Geometry.getCornerAngle(way.getNode(i).getEastNorth(), way.getNode(i + 1).getEastNorth(),
+                    way.getNode(i + 2).getEastNorth()), kernel.getCornerAngle(i, i + 1, i + 2), 1e-12);
+        }
+    }
+
+    @Test
+    void testDistance() {
+        final Way way = TestUtils.newWay("", new Node(new LatLon(39, -108)), new Node(new LatLon(39.001, -108)));
+        final Way other = TestUtils.newWay("", new Node(new LatLon(39, -108.001)),
+                new Node(new LatLon(39.002, -108.001)));
+        final WayGeometryKernel kernel = WayGeometryKernel.get();
+        assertTrue(kernel.load(way));
+        assertTrue(kernel.loadOther(other));
+        assertEquals(Geometry.getDistance(way.firstNode(), other), kernel.getDistanceToOther(0), 1e-6);
+        assertEquals(Geometry.getDistance(way.lastNode(), other), kernel.getDistanceToOther(1), 1e-6);
+        assertEquals(25, WayGeometryKernel.getSegmentDistanceSq(0, 5, -3, 0, 3, 0), 1e-12);
+        assertEquals(25, WayGeometryKernel.getSegmentDistanceSq(6, 4, 0, 0, 3, 0), 1e-12);
+    }
+
+    private static Way addWay(Way way) {
+        final DataSet ds = new DataSet();
+        way.getNodes().stream().distinct().forEach(ds::addPrimitive);
+        ds.addPrimitive(way);
+        return way;
+    }
+
+    @Test
+    void testSpike() {
+        // The way goes past the third node, and then comes back to it
+        final Node middle = new Node(new LatLon(39.0005, -108.00001));
+        final Node end = new Node(new LatLon(39.001, -108));
+        final Way way = addWay(TestUtils.newWay("highway=residential", new Node(new LatLon(39, -108)), end, middle,
+                new Node(new LatLon(39.002, -108))));
+        GetDataRunnable.cleanupArtifacts(way);
+        assertSame(middle, way.getNode(1));
+        assertSame(end, way.getNode(2));
+
+        final WayGeometryKernel kernel = WayGeometryKernel.get();
+        assertTrue(kernel.load(way));
+        assertFalse(kernel.writeBack(way), "The way should only be written to if it was changed");
+    }
+
+    @Test
+    void testEndpointsAreNotSwapped() {
+        // The last node of the open way doubles back
+        final Node end = new Node(new LatLon(39.0005, -108.00001));
+        final Way open = addWay(TestUtils.newWay("highway=residential", new Node(new LatLon(39, -108)),
+                new Node(new LatLon(39.001, -108)), end));
+        GetDataRunnable.cleanupArtifacts(open);
+        assertSame(end, open.lastNode(), "The end of the way should not move");
+
+        // The way doubles back to the closing node
+        final Node first = new Node(new LatLon(39, -108));
+        final Node last = new Node(new LatLon(38.9995, -108.00049));
+        final Way closed = addWay(TestUtils.newWay("building=yes", first, new Node(new LatLon(39, -107.999)),
+                new Node(new LatLon(39.001, -107.999)), last, first));
+        GetDataRunnable.cleanupArtifacts(closed);
+        assertTrue(closed.isClosed(), "Closed ways should stay closed");
+        assertSame(last, closed.getNode(3));
+    }
+}
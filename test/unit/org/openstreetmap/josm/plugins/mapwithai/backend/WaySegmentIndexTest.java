@@ -0,0 +1,67 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.IWaySegment;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.testutils.MapWithAITestRules;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link WaySegmentIndex}
+ */
+class WaySegmentIndexTest {
+    @RegisterExtension
+    @SuppressFBWarnings("URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new MapWithAITestRules().projection();
+
+    @Test
+    void testAdjacency() {
+        final Node shared1 = new Node(new LatLon(39, -108));
+        final Node shared2 = new Node(new LatLon(39.001, -108));
+        final Way way1 = TestUtils.newWay("", new Node(new LatLon(38.999, -108)), shared1, shared2);
+        final Way way2 = TestUtils.newWay("", shared1, shared2, new Node(new LatLon(39.002, -108)));
+        final Way way3 = TestUtils.newWay("", shared2, new Node(new LatLon(39.001, -107.999)));
+        final WaySegmentIndex index = new WaySegmentIndex(Arrays.asList(way1, way2, way3));
+
+        assertEquals(Arrays.asList(way1, way2, way3), index.getWays(shared2));
+        assertEquals(3, index.getSegments(shared2).size());
+        assertEquals(2, index.getWaysSharingNodes(way1, 2).size());
+        assertFalse(index.getWaysSharingNodes(way1, 2).contains(way3));
+
+        final List<IWaySegment<Node, Way>> touching = index.getTouchingSegments(new IWaySegment<>(way1, 1), way2);
+        assertEquals(2, touching.size());
+        assertEquals(0, touching.get(0).getLowerIndex());
+        assertEquals(1, touching.get(1).getLowerIndex());
+
+        way3.setNodes(Arrays.asList(way3.lastNode(), new Node(new LatLon(39.001, -107.998))));
+        index.update(way3);
+        assertEquals(2, index.getWays(shared2).size());
+        assertTrue(index.getSegments(shared2).stream().noneMatch(segment -> segment.getWay() == way3));
+    }
+
+    @Test
+    void testNearbyWays() {
+        final Way way = TestUtils.newWay("", new Node(new LatLon(39, -108)), new Node(new LatLon(39, -107.99)));
+        final WaySegmentIndex index = new WaySegmentIndex(Collections.singleton(way), 5);
+        final EastNorth middle = new Node(new LatLon(39, -107.995)).getEastNorth();
+        assertTrue(index.getNearbyWays(middle, 1).contains(way), "The middle of a long segment should be indexed");
+        final EastNorth far = new Node(new LatLon(39.01, -107.995)).getEastNorth();
+        assertTrue(index.getNearbyWays(far, 1).isEmpty());
+    }
+}
@@ -0,0 +1,78 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.mapwithai.commands;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.mapwithai.commands.cleanup.MissingConnectionTags;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Test class for {@link ConflationCommandRegistry}
+ */
+class ConflationCommandRegistryTest {
+    @RegisterExtension
+    @SuppressFBWarnings(value = "URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD")
+    JOSMTestRules rule = new JOSMTestRules().projection();
+
+    @Test
+    void testKeys() {
+        assertTrue(ConflationCommandRegistry.getKeys().containsAll(Arrays.asList(ConnectedCommand.KEY,
+                DuplicateCommand.KEY, MergeAddressBuildings.KEY, MergeBuildingAddress.KEY)));
+        assertTrue(ConflationCommandRegistry.getKeysThatShouldNotExistInOSM().contains(ConnectedCommand.KEY));
+        assertFalse(ConflationCommandRegistry.getKeysThatShouldNotExistInOSM().contains(MergeAddressBuildings.KEY),
+                "Buildings should be uploaded");
+        assertEquals(ConnectedCommand.class,
+                ConflationCommandRegistry.getDescriptors(ConnectedCommand.KEY).get(0).getCommandClass());
+        assertEquals(ConflationCommandRegistry.getCommandClasses(), CreateConnectionsCommand.getConflationCommands());
+
+        final Node node = new Node(new LatLon(0, 0));
+        assertFalse(ConflationCommandRegistry.hasConflationKey(node));
+        node.put(DuplicateCommand.KEY, "n1");
+        assertTrue(ConflationCommandRegistry.hasConflationKey(node));
+    }
+
+    @Test
+    void testSort() {
+        final Way way = TestUtils.newWay("highway=residential", new Node(new LatLon(0, 0)),
+                new Node(new LatLon(0, 1)));
+        final Map<ConflationCommandRegistry.Descriptor, Collection<OsmPrimitive>> sorted = ConflationCommandRegistry
+                .sort(Arrays.asList(way, way.firstNode(), way.lastNode()));
+        for (ConflationCommandRegistry.Descriptor descriptor : ConflationCommandRegistry.getDescriptors()) {
+            if (descriptor.getCommandClass() == ConnectedCommand.class) {
+                assertEquals(2, sorted.get(descriptor).size(), "Only nodes can be connected");
+            } else if (descriptor.getCommandClass() == MissingConnectionTags.class) {
+                assertEquals(1, sorted.get(descriptor).size(), "Only ways are checked");
+                assertTrue(sorted.get(descriptor).contains(way));
+            }
+        }
+    }
+
+    @Test
+    void testRegister() {
+        assertFalse(ConflationCommandRegistry.register(ConnectedCommand.class), "Commands are only registered once");
+        assertTrue(ConflationCommandRegistry.unregister(AlreadyConflatedCommand.class));
+        try {
+            assertFalse(ConflationCommandRegistry.getCommandClasses().contains(AlreadyConflatedCommand.class));
+            assertFalse(ConflationCommandRegistry.unregister(AlreadyConflatedCommand.class));
+        } finally {
+            assertTrue(ConflationCommandRegistry.register(AlreadyConflatedCommand.class));
+        }
+        assertEquals(AlreadyConflatedCommand.class, ConflationCommandRegistry.getDescriptors()
+                .get(ConflationCommandRegistry.getDescriptors().size() - 1).getCommandClass());
+    }
+}
@@ -2,10 +2,17 @@
 package org.openstreetmap.josm.plugins.mapwithai.commands.conflation;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
 
 import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.plugins.mapwithai.commands.AbstractConflationCommand;
+import org.openstreetmap.josm.plugins.mapwithai.commands.ConnectedCommand;
+import org.openstreetmap.josm.plugins.mapwithai.commands.DuplicateCommand;
 
 class AbstractConflationCommandTest {
     /**
@@ -16,4 +23,20 @@ class AbstractConflationCommandTest {
     void testBadPrimitive() {
         assertDoesNotThrow(() -> AbstractConflationCommand.getPrimitives(new DataSet(), "Linie 401699530"));
     }
+
+    @Test
+    void testPrefetchNothingMissing() {
+        final DataSet dataSet = new DataSet();
+        final Node existing = new Node(1, 1);
+        existing.setCoor(new LatLon(0, 0));
+        dataSet.addPrimitive(existing);
+        final Node dupe = new Node(new LatLon(0, 0));
+        dupe.put(DuplicateCommand.KEY, "n1");
+        final Node newDupe = new Node(new LatLon(0, 0));
+        newDupe.put(DuplicateCommand.KEY, "n-1");
+        final Node bad = new Node(new LatLon(0, 0));
+        bad.put(ConnectedCommand.KEY, "Linie 401699530");
+        assertEquals(0, AbstractConflationCommand.prefetchPrimitives(dataSet, Arrays.asList(dupe, newDupe, bad),
+                ConnectedCommand.KEY, DuplicateCommand.KEY), "Only missing, uploaded primitives should be fetched");
+    }
 }
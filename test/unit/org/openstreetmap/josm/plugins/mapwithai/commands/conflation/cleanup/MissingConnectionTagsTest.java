@@ -3,6 +3,7 @@ package org.openstreetmap.josm.plugins.mapwithai.commands.conflation.cleanup;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.Arrays;
@@ -100,4 +101,30 @@ class MissingConnectionTagsTest {
         }
     }
 
+    /**
+     * Check that the duplicate nodes for several ways are all found at once
+     */
+    @WoundedTest
+    void testDupeNodeBatch() {
+        new WindowMocker();
+        new MissingConnectionTagsMocker().setDefaultOption(JOptionPane.YES_OPTION);
+        Node osm1 = new Node(new LatLon(1, 1));
+        Node osm2 = new Node(new LatLon(2, 2));
+        Way osmWay1 = TestUtils.newWay("highway=residential", osm1, new Node(new LatLon(1, 0.9)));
+        Way osmWay2 = TestUtils.newWay("highway=residential", osm2, new Node(new LatLon(2, 1.9)));
+        Way way1 = TestUtils.newWay("highway=residential", new Node(new LatLon(1, 1)), new Node(new LatLon(1, 1.1)));
+        Way way2 = TestUtils.newWay("highway=residential", new Node(new LatLon(2, 2)), new Node(new LatLon(2, 2.1)));
+        for (Way way : Arrays.asList(osmWay1, osmWay2, way1, way2)) {
+            way.getNodes().forEach(ds::addPrimitive);
+            ds.addPrimitive(way);
+        }
+        osm1.setOsmId(1, 1);
+        osm2.setOsmId(2, 1);
+        Command command = missing.getCommand(Arrays.asList(way1, way2));
+        assertNotNull(command);
+        assertEquals(osm1.getOsmPrimitiveId(), SimplePrimitiveId.fromString(way1.firstNode().get("dupe")));
+        assertEquals(osm2.getOsmPrimitiveId(), SimplePrimitiveId.fromString(way2.firstNode().get("dupe")));
+        assertFalse(way1.lastNode().hasKey("dupe"));
+        assertFalse(way2.lastNode().hasKey("dupe"));
+    }
 }
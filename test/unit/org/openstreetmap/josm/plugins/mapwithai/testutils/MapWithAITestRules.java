@@ -27,6 +27,7 @@ import org.openstreetmap.josm.io.OsmApi;
 import org.openstreetmap.josm.io.OsmApiInitializationException;
 import org.openstreetmap.josm.io.OsmTransferCanceledException;
 import org.openstreetmap.josm.plugins.mapwithai.backend.DataAvailability;
+import org.openstreetmap.josm.plugins.mapwithai.backend.MapWithAIPreferenceHelper;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIConflationCategory;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAIInfo;
 import org.openstreetmap.josm.plugins.mapwithai.data.mapwithai.MapWithAILayerInfo;
@@ -137,6 +138,8 @@ public class MapWithAITestRules extends JOSMTestRules {
                 }
                 DataAvailability.setReleaseUrl(replaceUrl(wireMock, DataAvailability.getReleaseUrl()));
                 Config.getPref().put("osm-server.url", wireMock.baseUrl());
+                // The wiremock responses are recorded for the requested bboxes, not for tiles
+                MapWithAIPreferenceHelper.setTiledDownload(false);
                 // Avoid cases where tests could write the wiremock url to some fields.
                 if (sourceSites == null) {
                     sourceSites = MapWithAILayerInfo.getImageryLayersSites();